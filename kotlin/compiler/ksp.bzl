@@ -40,3 +40,13 @@ def kt_configure_ksp():
         name = "symbol-processing-cmdline",
         jar = _KSP_COMPILER_PLUGIN_REPO_PREFIX + "symbol-processing-cmdline.jar",
     )
+
+    kt_jvm_import(
+        name = "symbol-processing-aa-embeddable",
+        jar = _KSP_COMPILER_PLUGIN_REPO_PREFIX + "symbol-processing-aa-embeddable.jar",
+    )
+
+    kt_jvm_import(
+        name = "symbol-processing-common-deps",
+        jar = _KSP_COMPILER_PLUGIN_REPO_PREFIX + "symbol-processing-common-deps.jar",
+    )
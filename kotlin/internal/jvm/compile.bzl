@@ -66,9 +66,19 @@ def _java_info(target):
 
 def _deps_artifacts(toolchain, targets):
     """Collect Jdeps artifacts if required."""
-    deps_artifacts = [t[JavaInfo].outputs.jdeps for t in targets if JavaInfo in t and t[JavaInfo].outputs.jdeps] if toolchain.experimental_report_unused_deps else []
+    required = toolchain.experimental_report_unused_deps or toolchain.experimental_reduce_classpath_mode == "KOTLINBUILDER_REDUCED"
+    deps_artifacts = [t[JavaInfo].outputs.jdeps for t in targets if JavaInfo in t and t[JavaInfo].outputs.jdeps] if required else []
     return depset(deps_artifacts)
 
+def _kt_jdeps_required(toolchain):
+    """Whether KotlinCompile runs the jdeps plugin, only the features reading its output need it."""
+    return (
+        toolchain.experimental_report_unused_deps or
+        toolchain.experimental_unused_inputs_list or
+        toolchain.experimental_source_jdeps or
+        toolchain.experimental_reduce_classpath_mode == "KOTLINBUILDER_REDUCED"
+    )
+
 def _partitioned_srcs(srcs):
     """Creates a struct of srcs sorted by extension. Fails if there are no sources."""
     kt_srcs = []
@@ -233,31 +243,110 @@ def _new_plugin_from(all_cfgs, plugins_for_phase):
 
 # INTERNAL ACTIONS #####################################################################################################
 def _fold_jars_action(ctx, rule_kind, toolchains, output_jar, input_jars, action_type = ""):
-    """Set up an action to Fold the input jars into a normalized output jar."""
+    """Set up an action to Fold the input jars into a normalized output jar.
+
+    The jars are merged by the KotlinBuilder worker, sharing the worker of the compile actions.
+    """
     args = ctx.actions.args()
-    args.add_all([
-        "--normalize",
-        "--exclude_build_data",
-        "--add_missing_directories",
-    ])
-    args.add_all([
-        "--deploy_manifest_lines",
-        "Target-Label: %s" % str(ctx.label),
-        "Injecting-Rule-Kind: %s" % rule_kind,
-    ])
+    args.set_param_file_format("multiline")
+    args.use_param_file("--flagfile=%s", use_always = True)
+    args.add("--target_label", ctx.label)
+    args.add("--rule_kind", rule_kind)
     args.add("--output", output_jar)
-    args.add_all(input_jars, before_each = "--sources")
+    args.add_all("--fold_jars", input_jars)
     ctx.actions.run(
         mnemonic = "KotlinFoldJars" + action_type,
         inputs = input_jars,
+        tools = [
+            toolchains.kt.kotlinbuilder.files_to_run,
+            toolchains.kt.kotlin_home.files_to_run,
+        ],
         outputs = [output_jar],
-        executable = toolchains.java.single_jar,
-        arguments = [args],
+        executable = toolchains.kt.kotlinbuilder.files_to_run.executable,
+        execution_requirements = _utils.add_dicts(
+            toolchains.kt.execution_requirements,
+            {"worker-key-mnemonic": "KotlinCompile"},
+        ),
+        arguments = [ctx.actions.args(), args],
         progress_message = "Merging Kotlin output jar %%{label}%s from %d inputs" % (
             "" if not action_type else " (%s)" % action_type,
             len(input_jars),
         ),
+        env = {
+            "LC_CTYPE": "en_US.UTF-8",
+            "REPOSITORY_NAME": _utils.builder_workspace_name(ctx),
+        },
+    )
+
+def _merge_jdeps_action(ctx, toolchains, output_jdeps, input_jdeps):
+    """Set up an action to merge the jdeps of the Kotlin and Java compilations of a target.
+
+    The files are merged by the KotlinBuilder worker, sharing the worker of the compile actions.
+    """
+    args = ctx.actions.args()
+    args.set_param_file_format("multiline")
+    args.use_param_file("--flagfile=%s", use_always = True)
+    args.add("--target_label", ctx.label)
+    args.add("--output", output_jdeps)
+    args.add_all("--merge_jdeps", input_jdeps)
+    ctx.actions.run(
+        mnemonic = "KotlinMergeJdeps",
+        inputs = input_jdeps,
+        tools = [
+            toolchains.kt.kotlinbuilder.files_to_run,
+            toolchains.kt.kotlin_home.files_to_run,
+        ],
+        outputs = [output_jdeps],
+        executable = toolchains.kt.kotlinbuilder.files_to_run.executable,
+        execution_requirements = _utils.add_dicts(
+            toolchains.kt.execution_requirements,
+            {"worker-key-mnemonic": "KotlinCompile"},
+        ),
+        arguments = [ctx.actions.args(), args],
+        progress_message = "Merging Kotlin jdeps %%{label} from %d inputs" % len(input_jdeps),
+        env = {
+            "LC_CTYPE": "en_US.UTF-8",
+            "REPOSITORY_NAME": _utils.builder_workspace_name(ctx),
+        },
+    )
+
+def _pack_sources_action(ctx, rule_kind, toolchains, output_source_jar, sources, source_jars, action_type = ""):
+    """Set up an action to pack sources and source jars into a source jar.
+
+    The jar is written by the KotlinBuilder worker, sharing the worker of the compile actions, instead of
+    spawning singlejar as java_common.pack_sources does.
+    """
+    args = ctx.actions.args()
+    args.set_param_file_format("multiline")
+    args.use_param_file("--flagfile=%s", use_always = True)
+    args.add("--target_label", ctx.label)
+    args.add("--rule_kind", rule_kind)
+    args.add("--kotlin_output_srcjar", output_source_jar)
+    args.add_all("--pack_sources", sources + source_jars, omit_if_empty = False)
+    ctx.actions.run(
+        mnemonic = "KotlinPackSources" + action_type,
+        inputs = sources + source_jars,
+        tools = [
+            toolchains.kt.kotlinbuilder.files_to_run,
+            toolchains.kt.kotlin_home.files_to_run,
+        ],
+        outputs = [output_source_jar],
+        executable = toolchains.kt.kotlinbuilder.files_to_run.executable,
+        execution_requirements = _utils.add_dicts(
+            toolchains.kt.execution_requirements,
+            {"worker-key-mnemonic": "KotlinCompile"},
+        ),
+        arguments = [ctx.actions.args(), args],
+        progress_message = "Packing Kotlin source jar %%{label}%s from %d inputs" % (
+            "" if not action_type else " (%s)" % action_type,
+            len(sources) + len(source_jars),
+        ),
+        env = {
+            "LC_CTYPE": "en_US.UTF-8",
+            "REPOSITORY_NAME": _utils.builder_workspace_name(ctx),
+        },
     )
+    return output_source_jar
 
 def _run_ksp_builder_actions(
         ctx,
@@ -311,8 +400,13 @@ def _run_kt_builder_action(
         plugins,
         outputs,
         build_kotlin = True,
-        mnemonic = "KotlinCompile"):
-    """Creates a KotlinBuilder action invocation."""
+        mnemonic = "KotlinCompile",
+        worker_key = None,
+        compile_java = False):
+    """Creates a KotlinBuilder action invocation.
+
+    Actions with the same worker_key, the mnemonic by default, share their workers. With compile_java
+    the worker also compiles the Java sources, with javac, into the output jars."""
     kotlinc_options = ctx.attr.kotlinc_opts[KotlincOptions] if ctx.attr.kotlinc_opts else toolchains.kt.kotlinc_options
     javac_options = ctx.attr.javac_opts[JavacOptions] if ctx.attr.javac_opts else toolchains.kt.javac_options
 
@@ -324,7 +418,9 @@ def _run_kt_builder_action(
     # unwrap kotlinc_options/javac_options options or default to the ones being provided by the toolchain
     args.add_all("--kotlin_passthrough_flags", kotlinc_options_to_flags(kotlinc_options))
 
-    #     args.add_all("--javacopts", javac_options_to_flags(javac_options))
+    if compile_java:
+        args.add("--compile_java", True)
+        args.add_all("--javacopts", javac_options_to_flags(javac_options))
     args.add_all("--direct_dependencies", _java_infos_to_compile_jars(compile_deps.deps))
     args.add("--strict_kotlin_deps", toolchains.kt.experimental_strict_kotlin_deps)
     args.add_all("--classpath", compile_deps.compile_jars)
@@ -334,8 +430,20 @@ def _run_kt_builder_action(
     args.add_all("--source_jars", srcs.src_jars + generated_src_jars, omit_if_empty = True)
     args.add_all("--deps_artifacts", deps_artifacts, omit_if_empty = True)
     args.add_all("--kotlin_friend_paths", associates.jars, map_each = _associate_utils.flatten_jars)
-    if ctx.coverage_instrumented():
+    # a header jar is only compiled against, it is neither instrumented nor compressed
+    header_compile = mnemonic == "KotlinHeaderCompile"
+    if ctx.coverage_instrumented() and not header_compile:
         args.add("--instrument_coverage", True)
+    if toolchains.kt.experimental_compile_result_cache:
+        args.add("--compile_result_cache", True)
+    if toolchains.kt.experimental_ksp_incremental and annotation_processors:
+        args.add("--ksp_incremental", True)
+    if toolchains.kt.experimental_ksp2 and annotation_processors:
+        args.add("--ksp2", True)
+    if toolchains.kt.experimental_compress_jars and not header_compile:
+        args.add("--compress_jar", True)
+    if header_compile:
+        args.add("--header_compilation", True)
 
     # collect and prepare plugin descriptor for the worker
     args.add_all(
@@ -408,10 +516,11 @@ def _run_kt_builder_action(
             toolchains.kt.kotlin_home.files_to_run,
         ],
         outputs = [f for f in outputs.values()],
+        unused_inputs_list = outputs.get("unused_inputs_list"),
         executable = toolchains.kt.kotlinbuilder.files_to_run.executable,
         execution_requirements = _utils.add_dicts(
             toolchains.kt.execution_requirements,
-            {"worker-key-mnemonic": mnemonic},
+            {"worker-key-mnemonic": worker_key or mnemonic},
         ),
         arguments = [ctx.actions.args(), args],
         progress_message = progress_message,
@@ -473,28 +582,50 @@ def kt_jvm_produce_jar_actions(ctx, rule_kind):
     )
 
     compile_jar = outputs_struct.compile_jar
+    jdeps = outputs_struct.jdeps
     generated_src_jars = outputs_struct.generated_src_jars
     annotation_processing = outputs_struct.annotation_processing
 
-    source_jar = java_common.pack_sources(
-        ctx.actions,
-        output_source_jar = ctx.outputs.srcjar,
-        sources = srcs.kt + srcs.java,
-        source_jars = srcs.src_jars + generated_src_jars,
-        java_toolchain = toolchains.java,
-    )
+    if toolchain.experimental_worker_source_jars:
+        source_jar = _pack_sources_action(
+            ctx,
+            rule_kind = rule_kind,
+            toolchains = toolchains,
+            output_source_jar = ctx.outputs.srcjar,
+            sources = srcs.kt + srcs.java,
+            source_jars = srcs.src_jars + generated_src_jars,
+        )
 
-    generated_source_jar = java_common.pack_sources(
-        ctx.actions,
-        output_source_jar = ctx.actions.declare_file(ctx.label.name + "-gensrc.jar"),
-        source_jars = generated_src_jars,
-        java_toolchain = toolchains.java,
-    ) if generated_src_jars else None
+        generated_source_jar = _pack_sources_action(
+            ctx,
+            rule_kind = rule_kind,
+            toolchains = toolchains,
+            output_source_jar = ctx.actions.declare_file(ctx.label.name + "-gensrc.jar"),
+            sources = [],
+            source_jars = generated_src_jars,
+            action_type = "Generated",
+        ) if generated_src_jars else None
+    else:
+        source_jar = java_common.pack_sources(
+            ctx.actions,
+            output_source_jar = ctx.outputs.srcjar,
+            sources = srcs.kt + srcs.java,
+            source_jars = srcs.src_jars + generated_src_jars,
+            java_toolchain = toolchains.java,
+        )
+
+        generated_source_jar = java_common.pack_sources(
+            ctx.actions,
+            output_source_jar = ctx.actions.declare_file(ctx.label.name + "-gensrc.jar"),
+            source_jars = generated_src_jars,
+            java_toolchain = toolchains.java,
+        ) if generated_src_jars else None
 
     java_info = JavaInfo(
         output_jar = output_jar,
         compile_jar = compile_jar,
         source_jar = source_jar,
+        jdeps = jdeps,
         deps = compile_deps.deps,
         runtime_deps = [_java_info(d) for d in ctx.attr.runtime_deps],
         exports = [_java_info(d) for d in getattr(ctx.attr, "exports", [])],
@@ -512,6 +643,7 @@ def kt_jvm_produce_jar_actions(ctx, rule_kind):
     return struct(
         java = java_info,
         instrumented_files = instrumented_files,
+        source_jdeps = outputs_struct.source_jdeps,
         kt = _KtJvmInfo(
             srcs = ctx.files.srcs,
             module_name = associates.module_name,
@@ -581,9 +713,17 @@ def _run_kt_java_builder_actions(
         A struct containing the a list of output_jars and a struct annotation_processing jars
     """
     has_kt_sources = srcs.kt or srcs.src_jars
+    toolchain = toolchains.kt
 
-    # run KSP
-    if has_kt_sources and ksp_annotation_processors:
+    # KSP either runs in its own action or, in single pass mode, as part of the KotlinCompile action
+    ksp_single_pass = has_kt_sources and ksp_annotation_processors and toolchain.experimental_ksp_single_pass
+    ksp_generated_java_srcjar = None
+    compile_generated_src_jars = generated_ksp_src_jars
+    if ksp_single_pass:
+        compile_generated_src_jars = list(generated_ksp_src_jars)
+        ksp_generated_java_srcjar = ctx.actions.declare_file(ctx.label.name + "-ksp-kt-gensrc.jar")
+        generated_ksp_src_jars.append(ksp_generated_java_srcjar)
+    elif has_kt_sources and ksp_annotation_processors:
         ksp_generated_class_jar = _run_ksp_builder_actions(
             ctx,
             rule_kind = rule_kind,
@@ -601,17 +741,61 @@ def _run_kt_java_builder_actions(
     java_infos = []
     outputs = None
     kt_compile_jar = None
-
-    toolchain = toolchains.kt
+    kt_jdeps = None
+    jdeps = None
+    source_jdeps = None
 
     kt_stubs_for_java = None
     kt_output_jar = None
     has_java_sources = srcs.java or srcs.src_jars or (generated_ksp_src_jars and is_ksp_processor_generating_java(ctx.attr.plugins))
 
+    # javac runs in the KotlinCompile worker, writing one output jar, unless javac plugins have to run
+    # or the target needs JavaBuilder otherwise
+    java_in_worker = (
+        has_kt_sources and
+        has_java_sources and
+        toolchain.experimental_compile_java_in_worker and
+        not annotation_processors and
+        not "kt_compile_java_in_worker_incompatible" in ctx.attr.tags
+    )
+
+    # a header jar lets dependents compile while the KotlinCompile action of the target still runs. It
+    # needs the generated sources up front, so it is not built with kapt or single pass KSP.
+    header_compile = (
+        has_kt_sources and
+        not java_in_worker and
+        toolchain.experimental_header_compilation and
+        not annotation_processors and
+        not ksp_single_pass and
+        not "kt_header_compilation_incompatible" in ctx.attr.tags
+    )
+
     # build Kotlin
     if has_kt_sources:
-        kt_output_jar = ctx.actions.declare_file(ctx.label.name + "-kt.jar") if has_java_sources else output_jar
-        if not "kt_abi_plugin_incompatible" in ctx.attr.tags and toolchain.experimental_use_abi_jars == True:
+        kt_output_jar = ctx.actions.declare_file(ctx.label.name + "-kt.jar") if has_java_sources and not java_in_worker else output_jar
+        if header_compile:
+            kt_compile_jar = ctx.actions.declare_file(ctx.label.name + "-kt.header.jar")
+            _run_kt_builder_action(
+                ctx = ctx,
+                rule_kind = rule_kind,
+                toolchains = toolchains,
+                srcs = srcs,
+                generated_src_jars = compile_generated_src_jars,
+                associates = associates,
+                compile_deps = compile_deps,
+                deps_artifacts = deps_artifacts,
+                annotation_processors = [],
+                transitive_runtime_jars = transitive_runtime_jars,
+                plugins = plugins,
+                outputs = {"output": kt_compile_jar},
+                build_kotlin = True,
+                mnemonic = "KotlinHeaderCompile",
+                worker_key = "KotlinCompile",
+            )
+            outputs = {
+                "output": kt_output_jar,
+            }
+        elif not "kt_abi_plugin_incompatible" in ctx.attr.tags and toolchain.experimental_use_abi_jars == True:
             kt_compile_jar = ctx.actions.declare_file(ctx.label.name + "-kt.abi.jar")
             outputs = {
                 "output": kt_output_jar,
@@ -622,23 +806,33 @@ def _run_kt_java_builder_actions(
             outputs = {
                 "output": kt_output_jar,
             }
-
-        kt_jdeps = None
+        if ksp_generated_java_srcjar:
+            outputs["ksp_generated_java_srcjar"] = ksp_generated_java_srcjar
+
+        if _kt_jdeps_required(toolchain):
+            kt_jdeps = ctx.actions.declare_file(ctx.label.name + "-kt.jdeps")
+            outputs["kotlin_output_jdeps"] = kt_jdeps
+            if toolchain.experimental_unused_inputs_list:
+                outputs["unused_inputs_list"] = ctx.actions.declare_file(ctx.label.name + "-kt.unused_inputs")
+            if toolchain.experimental_source_jdeps:
+                source_jdeps = ctx.actions.declare_file(ctx.label.name + "-kt.source.jdeps")
+                outputs["kotlin_output_source_jdeps"] = source_jdeps
         _run_kt_builder_action(
             ctx = ctx,
             rule_kind = rule_kind,
             toolchains = toolchains,
             srcs = srcs,
-            generated_src_jars = generated_ksp_src_jars,
+            generated_src_jars = compile_generated_src_jars,
             associates = associates,
             compile_deps = compile_deps,
             deps_artifacts = deps_artifacts,
-            annotation_processors = [],
+            annotation_processors = ksp_annotation_processors if ksp_single_pass else [],
             transitive_runtime_jars = transitive_runtime_jars,
             plugins = plugins,
             outputs = outputs,
             build_kotlin = True,
             mnemonic = "KotlinCompile",
+            compile_java = java_in_worker,
         )
 
         if not annotation_processors or not srcs.kt:
@@ -654,10 +848,11 @@ def _run_kt_java_builder_actions(
             neverlink = getattr(ctx.attr, "neverlink", False),
         )
         java_infos.append(kt_java_info)
+        jdeps = kt_jdeps
 
     compile_jar = kt_compile_jar
     ap_generated_src_jar = None
-    if has_java_sources:
+    if has_java_sources and not java_in_worker:
         java_output_jar = output_jar if kt_output_jar == None else ctx.actions.declare_file(ctx.label.name + "-java.jar")
 
         java_part_java_info = _compile_java_sources(
@@ -673,6 +868,18 @@ def _run_kt_java_builder_actions(
 
         java_infos.append(java_part_java_info)
         ap_generated_src_jar = java_part_java_info.annotation_processing.source_jar
+        java_jdeps = java_part_java_info.outputs.jdeps
+        if kt_jdeps == None:
+            jdeps = java_jdeps
+        elif java_jdeps:
+            # the jars used by either compilation, for the reduced classpath of dependents
+            jdeps = ctx.actions.declare_file(ctx.label.name + ".jdeps")
+            _merge_jdeps_action(
+                ctx,
+                toolchains = toolchains,
+                output_jdeps = jdeps,
+                input_jdeps = [kt_jdeps, java_jdeps],
+            )
         compile_jars = [jars.ijar for jars in java_part_java_info.java_outputs]
         output_jars = [jars.class_jar for jars in java_part_java_info.java_outputs]
 
@@ -718,6 +925,8 @@ def _run_kt_java_builder_actions(
 
     return struct(
         compile_jar = compile_jar,
+        jdeps = jdeps,
+        source_jdeps = source_jdeps,
         generated_src_jars = generated_ksp_src_jars,
         annotation_processing = annotation_processing,
     )
@@ -41,7 +41,8 @@ def _make_providers(ctx, providers, transitive_files = depset(order = "default")
     files = [ctx.outputs.jar]
     if providers.java.outputs.jdeps:
         files.append(providers.java.outputs.jdeps)
-    return [
+    source_jdeps = getattr(providers, "source_jdeps", None)
+    return ([OutputGroupInfo(source_jdeps = depset([source_jdeps]))] if source_jdeps else []) + [
         providers.java,
         providers.kt,
         providers.instrumented_files,
@@ -65,6 +65,16 @@ def _kotlin_toolchain_impl(ctx):
         experimental_strict_kotlin_deps = ctx.attr.experimental_strict_kotlin_deps,
         experimental_report_unused_deps = ctx.attr.experimental_report_unused_deps,
         experimental_reduce_classpath_mode = ctx.attr.experimental_reduce_classpath_mode,
+        experimental_compile_result_cache = ctx.attr.experimental_compile_result_cache,
+        experimental_ksp_single_pass = ctx.attr.experimental_ksp_single_pass,
+        experimental_ksp_incremental = ctx.attr.experimental_ksp_incremental,
+        experimental_ksp2 = ctx.attr.experimental_ksp2,
+        experimental_compress_jars = ctx.attr.experimental_compress_jars,
+        experimental_worker_source_jars = ctx.attr.experimental_worker_source_jars,
+        experimental_unused_inputs_list = ctx.attr.experimental_unused_inputs_list,
+        experimental_source_jdeps = ctx.attr.experimental_source_jdeps,
+        experimental_header_compilation = ctx.attr.experimental_header_compilation,
+        experimental_compile_java_in_worker = ctx.attr.experimental_compile_java_in_worker,
         javac_options = ctx.attr.javac_options[JavacOptions] if ctx.attr.javac_options else None,
         kotlinc_options = ctx.attr.kotlinc_options[KotlincOptions] if ctx.attr.kotlinc_options else None,
         empty_jar = ctx.file._empty_jar,
@@ -184,13 +194,76 @@ _kt_toolchain = rule(
             ],
         ),
         "experimental_reduce_classpath_mode": attr.string(
-            doc = "Removes unneeded dependencies from the classpath",
+            doc = """Removes unneeded dependencies from the classpath. KOTLINBUILDER_REDUCED compiles
+            against the direct dependencies and the jars their jdeps report as used, compiling again
+            with the full classpath if a symbol is missing.""",
             default = "NONE",
             values = [
                 "NONE",
                 "KOTLINBUILDER_REDUCED",
             ],
         ),
+        "experimental_compile_result_cache": attr.bool(
+            doc = """Reuse compile outputs kept by the worker when the sources and options are unchanged
+            and the classpath only changed in ways that do not affect its ABI, e.g. method bodies
+            of Java dependencies.""",
+            default = False,
+        ),
+        "experimental_ksp_single_pass": attr.bool(
+            doc = """Run KSP processors within the KotlinCompile action and compile the generated sources in
+            the same request, instead of running a separate KotlinKsp action.""",
+            default = False,
+        ),
+        "experimental_ksp_incremental": attr.bool(
+            doc = """Run KSP incrementally in the persistent worker. Caches are kept by the worker per target
+            and a full run is done whenever processors, their options or the classpath ABI change.""",
+            default = False,
+        ),
+        "experimental_ksp2": attr.bool(
+            doc = """Run KSP processors with KSP2, the K2 based standalone engine, inside the worker instead of
+            the KSP1 compiler plugin, which analyses with language version 1.9.""",
+            default = False,
+        ),
+        "experimental_compress_jars": attr.bool(
+            doc = """DEFLATE the entries of the runtime jar of Kotlin compilations instead of storing them.
+            Entries are compressed in parallel and the output stays deterministic. Trades CPU time for
+            smaller jars to store and transfer.""",
+            default = False,
+        ),
+        "experimental_worker_source_jars": attr.bool(
+            doc = """Pack the source jars of Kotlin targets in the KotlinBuilder worker instead of spawning
+            singlejar through java_common.pack_sources. Source files are placed according to their package.""",
+            default = False,
+        ),
+        "experimental_unused_inputs_list": attr.bool(
+            doc = """Report the direct dependencies no class of which was used by KotlinCompile as unused inputs, so
+            changes to them do not rerun the action. Only applies to K2 compilations without annotation
+            processors, compiler plugins or Java sources.""",
+            default = False,
+        ),
+        "experimental_source_jdeps": attr.bool(
+            doc = """Write a `-kt.source.jdeps` file next to the jdeps of a target, listing for each used
+            dependency the Kotlin source files that need it, in the `source_jdeps` output group. Only
+            written by K2 compilations.""",
+            default = False,
+        ),
+        "experimental_header_compilation": attr.bool(
+            doc = """Compile the Kotlin sources of a target in a separate KotlinHeaderCompile action, without
+            jdeps, Java sources, annotation processing or coverage, and use its jar as the compile jar.
+            The classes of the header jar have no method bodies, except for Kotlin inline functions.
+            Dependents compile against it while the KotlinCompile action of the target still runs.
+            Targets using kapt or single pass KSP, or tagged `kt_header_compilation_incompatible`, are
+            compiled as usual.""",
+            default = False,
+        ),
+        "experimental_compile_java_in_worker": attr.bool(
+            doc = """Compile the Java sources of mixed targets with javac in the KotlinCompile worker, which writes
+            the output and ABI jars of the whole target. This saves the JavaBuilder action and the actions
+            folding its jars with the Kotlin ones. Java sources are not checked for strict deps, nor by
+            Error Prone. Targets with annotation processors, or tagged
+            `kt_compile_java_in_worker_incompatible`, are compiled by JavaBuilder.""",
+            default = False,
+        ),
         "javac_options": attr.label(
             doc = "Compiler options for javac",
             providers = [JavacOptions],
@@ -252,6 +325,16 @@ def define_kt_toolchain(
         experimental_report_unused_deps = None,
         experimental_reduce_classpath_mode = None,
         experimental_multiplex_workers = True,
+        experimental_compile_result_cache = False,
+        experimental_ksp_single_pass = False,
+        experimental_ksp_incremental = False,
+        experimental_ksp2 = False,
+        experimental_compress_jars = False,
+        experimental_worker_source_jars = False,
+        experimental_unused_inputs_list = False,
+        experimental_source_jdeps = False,
+        experimental_header_compilation = False,
+        experimental_compile_java_in_worker = False,
         javac_options = Label("//kotlin/internal:default_javac_options"),
         kotlinc_options = Label("//kotlin/internal:default_kotlinc_options"),
         jvm_runtime = None,
@@ -276,6 +359,16 @@ def define_kt_toolchain(
         experimental_strict_kotlin_deps = experimental_strict_kotlin_deps,
         experimental_report_unused_deps = experimental_report_unused_deps,
         experimental_reduce_classpath_mode = experimental_reduce_classpath_mode,
+        experimental_compile_result_cache = experimental_compile_result_cache,
+        experimental_ksp_single_pass = experimental_ksp_single_pass,
+        experimental_ksp_incremental = experimental_ksp_incremental,
+        experimental_ksp2 = experimental_ksp2,
+        experimental_compress_jars = experimental_compress_jars,
+        experimental_worker_source_jars = experimental_worker_source_jars,
+        experimental_unused_inputs_list = experimental_unused_inputs_list,
+        experimental_source_jdeps = experimental_source_jdeps,
+        experimental_header_compilation = experimental_header_compilation,
+        experimental_compile_java_in_worker = experimental_compile_java_in_worker,
         javac_options = javac_options,
         kotlinc_options = kotlinc_options,
         visibility = ["//visibility:public"],
@@ -18,7 +18,11 @@
 package io.bazel.kotlin.builder.cmd
 
 import io.bazel.kotlin.builder.tasks.buildKotlin
+import io.bazel.kotlin.builder.tasks.jvm.CompileResultCache
 import io.bazel.kotlin.builder.tasks.jvm.KotlinJvmTaskExecutor
+import io.bazel.kotlin.builder.tasks.jvm.KspIncrementalCache
+import io.bazel.kotlin.builder.tasks.jvm.OutputJarCache
+import io.bazel.kotlin.builder.tasks.jvm.SourceJarCache
 import io.bazel.kotlin.builder.toolchain.KotlinToolchain
 import io.bazel.worker.createWorker
 import kotlin.system.exitProcess
@@ -26,7 +30,13 @@ import kotlin.system.exitProcess
 object Build {
   @JvmStatic
   fun main(args: Array<String>) {
-    val jvmTaskExecutor = KotlinJvmTaskExecutor(KotlinToolchain.createToolchain())
+    val jvmTaskExecutor = KotlinJvmTaskExecutor(
+      toolchain = KotlinToolchain.createToolchain(),
+      compileResultCache = CompileResultCache.create(),
+      kspIncrementalCache = KspIncrementalCache.create(),
+      outputJarCache = OutputJarCache.create(),
+    )
+    val sourceJarCache = SourceJarCache.create()
     val status = createWorker(args.asList()).start { taskContext, args ->
       buildKotlin(
         workingDir = taskContext.workingDir,
@@ -34,6 +44,8 @@ object Build {
         jvmTaskExecutor = jvmTaskExecutor,
         out = taskContext.logging.asPrintStream(),
         logging = taskContext.logging,
+        inputDigests = taskContext.inputDigests,
+        sourceJarCache = sourceJarCache,
       )
     }
     exitProcess(status)
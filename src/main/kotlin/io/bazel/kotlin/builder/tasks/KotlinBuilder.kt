@@ -17,15 +17,19 @@
 package io.bazel.kotlin.builder.tasks
 
 import io.bazel.kotlin.builder.tasks.jvm.KotlinJvmTaskExecutor
+import io.bazel.kotlin.builder.tasks.jvm.SourceJarCache
 import io.bazel.kotlin.builder.tasks.jvm.expandWithSources
 import io.bazel.kotlin.builder.toolchain.CompilationStatusException
 import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
 import io.bazel.kotlin.builder.utils.ArgMap
 import io.bazel.kotlin.builder.utils.createArgMap
+import io.bazel.kotlin.builder.utils.jars.JarCreator
+import io.bazel.kotlin.builder.utils.jars.SourceJarCreator
 import io.bazel.kotlin.builder.utils.jars.SourceJarExtractor
 import io.bazel.kotlin.model.*
 import io.bazel.worker.ContextLog.Logging
 import java.io.File
+import java.io.IOException
 import java.io.PrintStream
 import java.nio.file.Files
 import java.nio.file.Path
@@ -63,6 +67,7 @@ private enum class KotlinBuilderFlags {
   KOTLIN_OUTPUT_SRCJAR,
   KOTLIN_FRIEND_PATHS,
   KOTLIN_OUTPUT_JDEPS,
+  KOTLIN_OUTPUT_SOURCE_JDEPS,
   KOTLIN_DEBUG_TAGS,
   ABI_JAR,
   GENERATED_JAVA_SRCJAR,
@@ -71,6 +76,17 @@ private enum class KotlinBuilderFlags {
   REDUCED_CLASSPATH_MODE,
   INSTRUMENT_COVERAGE,
   KSP_GENERATED_JAVA_SRCJAR,
+  COMPILE_RESULT_CACHE,
+  KSP_INCREMENTAL,
+  KSP2,
+  FOLD_JARS,
+  COMPRESS_JAR,
+  PACK_SOURCES,
+  UNUSED_INPUTS_LIST,
+  MERGE_JDEPS,
+  COMPILE_JAVA,
+  JAVACOPTS,
+  HEADER_COMPILATION,
 }
 
 fun buildKotlin(
@@ -79,29 +95,50 @@ fun buildKotlin(
   args: List<String>,
   logging: Logging,
   jvmTaskExecutor: KotlinJvmTaskExecutor,
+  inputDigests: Map<String, String> = emptyMap(),
+  sourceJarCache: SourceJarCache? = null,
 ): Int {
   check(args.isNotEmpty()) {
     "expected at least a single arg got: ${args.joinToString(" ")}"
   }
 
-  val argMap = createArgMap(
-    FLAG_FILE_RE.matchEntire(args[0])?.groups?.get(1)?.let {
-      Files.readAllLines(Path.of(it.value))
-    } ?: args,
-    enumClass = KotlinBuilderFlags::class.java,
-  )
+  val argMap = createArgMap(expandFlagFile(args), enumClass = KotlinBuilderFlags::class.java)
+  if (argMap.has(KotlinBuilderFlags.FOLD_JARS)) {
+    return foldJars(workingDir = workingDir, args = argMap, logging = logging)
+  }
+  if (argMap.has(KotlinBuilderFlags.MERGE_JDEPS)) {
+    return mergeJdeps(
+      workingDir = workingDir,
+      inputs = argMap.mandatory(KotlinBuilderFlags.MERGE_JDEPS),
+      output = argMap.mandatorySingle(KotlinBuilderFlags.OUTPUT),
+      label = argMap.optionalSingle(KotlinBuilderFlags.TARGET_LABEL),
+      logging = logging,
+    )
+  }
+  // present without values when there is nothing to pack
+  if (argMap.optional(KotlinBuilderFlags.PACK_SOURCES) != null) {
+    return packSources(workingDir = workingDir, args = argMap, logging = logging)
+  }
   val task = createBuildTask(argMap)
   val compileContext = CompilationTaskContext(
     label = task.label,
     debug = task.debug,
     out = out,
-    executionRoot = Path.of("").toAbsolutePath().toString() + File.separator
+    executionRoot = Path.of("").toAbsolutePath().toString() + File.separator,
+    workingDir = workingDir.toAbsolutePath().normalize(),
+    inputDigests = inputDigests,
   )
   var success = false
   try {
     when (task.platform) {
       Platform.JVM -> {
-        val task = createJvmTask(info = task, workingDir = workingDir, args = argMap, context = compileContext)
+        val task = createJvmTask(
+          info = task,
+          workingDir = workingDir,
+          args = argMap,
+          context = compileContext,
+          sourceJarCache = sourceJarCache,
+        )
         compileContext.whenTracing {
           printLines(
             header = "jvm task message:",
@@ -126,6 +163,62 @@ fun buildKotlin(
   return 0
 }
 
+/** Returns the arguments in the flag file [args] refers to, or [args] if it has none. */
+internal fun expandFlagFile(args: List<String>): List<String> =
+  FLAG_FILE_RE.matchEntire(args[0])?.groups?.get(1)?.let {
+    Files.readAllLines(Path.of(it.value))
+  } ?: args
+
+/**
+ * Merges the jars of a mixed Kotlin and Java target into the output jar, copying entries without
+ * inflating them.
+ */
+private fun foldJars(
+  workingDir: Path,
+  args: ArgMap<KotlinBuilderFlags>,
+  logging: Logging,
+): Int {
+  try {
+    JarCreator(
+      path = workingDir.resolve(args.mandatorySingle(KotlinBuilderFlags.OUTPUT)),
+      targetLabel = args.mandatorySingle(KotlinBuilderFlags.TARGET_LABEL),
+      injectingRuleKind = args.mandatorySingle(KotlinBuilderFlags.RULE_KIND),
+    ).use { jar ->
+      for (input in args.mandatory(KotlinBuilderFlags.FOLD_JARS)) {
+        jar.addJar(workingDir.resolve(input))
+      }
+    }
+  } catch (e: IOException) {
+    logging.error(e) { "Failed to fold jars" }
+    return 1
+  }
+  return 0
+}
+
+/**
+ * Packs source files and source jars into the source jar of a target, placing each source file
+ * according to its package.
+ */
+private fun packSources(
+  workingDir: Path,
+  args: ArgMap<KotlinBuilderFlags>,
+  logging: Logging,
+): Int {
+  try {
+    val output = workingDir.resolve(args.mandatorySingle(KotlinBuilderFlags.KOTLIN_OUTPUT_SRCJAR))
+    val sources = args.mandatory(KotlinBuilderFlags.PACK_SOURCES).map(workingDir::resolve)
+    SourceJarCreator(output).apply {
+      addSources(sources.stream())
+      execute()
+    }
+  } catch (e: Exception) {
+    // I/O failures, and sources that end up at the same path in the jar
+    logging.error(e) { "Failed to pack sources" }
+    return 1
+  }
+  return 0
+}
+
 private fun formatDataClassToString(input: String): CharSequence {
   val indentUnit = "  "
   var currentIndent = ""
@@ -187,6 +280,7 @@ private fun createJvmTask(
   workingDir: Path,
   args: ArgMap<KotlinBuilderFlags>,
   context: CompilationTaskContext,
+  sourceJarCache: SourceJarCache?,
 ): JvmCompilationTask {
   var outJar = args.optionalSingle(KotlinBuilderFlags.OUTPUT)
   val generatedKspSrcJar = args.optionalSingle(KotlinBuilderFlags.KSP_GENERATED_JAVA_SRCJAR)
@@ -228,12 +322,13 @@ private fun createJvmTask(
         val sourceJarExtractor = SourceJarExtractor(
           destDir = srcJarsDir,
           fileMatcher = { it.endsWith(".kt") || it.endsWith(".java") || it.contains("/META-INF/") },
+          treeCache = sourceJarCache?.treeCache(context),
         )
         sourceJarExtractor.jarFiles.addAll(sourceJars.map { p -> Path.of(p) })
         sourceJarExtractor.execute()
         expandWithSources(
-          javaSources = kotlinSourcesMutable,
-          kotlinSources = javaSourcesMutable,
+          javaSources = javaSourcesMutable,
+          kotlinSources = kotlinSourcesMutable,
           sources = sourceJarExtractor.sourcesList.iterator(),
           srcJarsDir = srcJarsDir,
           generatedClasses = generatedClassDir
@@ -254,6 +349,13 @@ private fun createJvmTask(
     info = info,
     compileKotlin = args.optionalSingle(KotlinBuilderFlags.BUILD_KOTLIN).let { it == null || it.toBoolean() },
     instrumentCoverage = args.optionalSingle(KotlinBuilderFlags.INSTRUMENT_COVERAGE).toBoolean(),
+    useCompileResultCache =
+      args.optionalSingle(KotlinBuilderFlags.COMPILE_RESULT_CACHE).toBoolean(),
+    kspIncremental = args.optionalSingle(KotlinBuilderFlags.KSP_INCREMENTAL).toBoolean(),
+    useKsp2 = args.optionalSingle(KotlinBuilderFlags.KSP2).toBoolean(),
+    compressJar = args.optionalSingle(KotlinBuilderFlags.COMPRESS_JAR).toBoolean(),
+    compileJava = args.optionalSingle(KotlinBuilderFlags.COMPILE_JAVA).toBoolean(),
+    headerCompilation = args.optionalSingle(KotlinBuilderFlags.HEADER_COMPILATION).toBoolean(),
     outputs = Outputs(
       jar = jar,
       srcjar = args.optionalSingle(KotlinBuilderFlags.KOTLIN_OUTPUT_SRCJAR)?.let { workingDir.resolve(it) },
@@ -261,6 +363,10 @@ private fun createJvmTask(
       generatedJavaSrcJar = args.optionalSingle(KotlinBuilderFlags.GENERATED_JAVA_SRCJAR),
       abiJar = args.optionalSingle(KotlinBuilderFlags.ABI_JAR)?.let { workingDir.resolve(it) },
       generatedKspSrcJar = generatedKspSrcJar?.let { workingDir.resolve(it) },
+      unusedInputsList =
+        args.optionalSingle(KotlinBuilderFlags.UNUSED_INPUTS_LIST)?.let { workingDir.resolve(it) },
+      sourceJdeps = args.optionalSingle(KotlinBuilderFlags.KOTLIN_OUTPUT_SOURCE_JDEPS)
+        ?.let { workingDir.resolve(it) },
     ),
     directories = Directories(
       classes = resolveAndCreate("classes"),
@@ -290,6 +396,8 @@ private fun createJvmTask(
 
       kotlinSources = kotlinSources,
       javaSources = javaSources,
+      javacFlags = args.optional(KotlinBuilderFlags.JAVACOPTS) ?: emptyList(),
+      sourceJars = sourceJars,
     ),
   )
   return root
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks
+
+import io.bazel.kotlin.builder.tasks.jvm.JdepsMerger
+import io.bazel.kotlin.builder.utils.createArgMap
+import io.bazel.worker.ContextLog.Logging
+import io.bazel.worker.TaskContext
+import io.bazel.worker.Work
+import java.io.IOException
+import java.nio.file.Path
+
+private enum class MergeJdepsFlags {
+  INPUTS,
+  OUTPUT,
+  TARGET_LABEL,
+}
+
+/**
+ * Merges the jdeps files of a target, like the Kotlin and javac ones of a mixed target, into the
+ * jdeps of the target. Without a target label, the one of the first input is kept.
+ */
+class MergeJdeps : Work {
+  override fun invoke(
+    ctx: TaskContext,
+    args: List<String>,
+  ): Int {
+    val argMap = createArgMap(expandFlagFile(args), enumClass = MergeJdepsFlags::class.java)
+    return mergeJdeps(
+      workingDir = ctx.workingDir,
+      inputs = argMap.mandatory(MergeJdepsFlags.INPUTS),
+      output = argMap.mandatorySingle(MergeJdepsFlags.OUTPUT),
+      label = argMap.optionalSingle(MergeJdepsFlags.TARGET_LABEL),
+      logging = ctx.logging,
+    )
+  }
+}
+
+internal fun mergeJdeps(
+  workingDir: Path,
+  inputs: List<String>,
+  output: String,
+  label: String?,
+  logging: Logging,
+): Int {
+  try {
+    val merger = JdepsMerger()
+    for (input in inputs) {
+      merger.add(workingDir.resolve(input))
+    }
+    merger.write(workingDir.resolve(output), label)
+  } catch (e: IOException) {
+    logging.error(e) { "Failed to merge jdeps" }
+    return 1
+  }
+  return 0
+}
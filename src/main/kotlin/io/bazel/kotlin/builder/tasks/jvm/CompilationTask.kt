@@ -21,6 +21,7 @@ package io.bazel.kotlin.builder.tasks.jvm
 import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
 import io.bazel.kotlin.builder.toolchain.KotlinToolchain
 import io.bazel.kotlin.builder.toolchain.KotlincInvoker
+import io.bazel.kotlin.builder.toolchain.Ksp2Invoker
 import io.bazel.kotlin.builder.utils.bazelRuleKind
 import io.bazel.kotlin.builder.utils.jars.JarCreator
 import io.bazel.kotlin.builder.utils.partitionJvmSources
@@ -29,12 +30,14 @@ import java.io.File
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
 import java.util.stream.Collectors
 import kotlin.io.path.ExperimentalPathApi
 import kotlin.io.path.deleteRecursively
 
 private const val API_VERSION_ARG = "-api-version"
 private const val LANGUAGE_VERSION_ARG = "-language-version"
+private const val JVM_DEFAULT_FLAG = "-Xjvm-default"
 
 private const val MANIFEST_DIR = "META-INF/"
 
@@ -88,10 +91,14 @@ internal fun configurePlugins(
   }
 }
 
-internal fun kspArgs(task: JvmCompilationTask, toolchain: KotlinToolchain): CompilationArgs {
+internal fun kspArgs(
+  task: JvmCompilationTask,
+  toolchain: KotlinToolchain,
+  incremental: KspIncrementalCache.Run? = null,
+  projectBaseDir: Path = task.directories.incrementalData,
+): CompilationArgs {
   val dirs = task.directories
   val generatedJavaSources = dirs.generatedJavaSources
-  clearDirContent(generatedJavaSources)
 
   val args = CompilationArgs()
   args.plugin(toolchain.kspSymbolProcessingCommandLine)
@@ -99,10 +106,10 @@ internal fun kspArgs(task: JvmCompilationTask, toolchain: KotlinToolchain): Comp
     args.flag("-Xallow-no-source-files")
     val values = arrayOf(
       "apclasspath" to listOf(task.inputs.processorPaths.joinToString(File.pathSeparator)),
-      // projectBaseDir shouldn't matter because incremental is disabled
-      "projectBaseDir" to listOf(dirs.incrementalData),
-      // Disable incremental mode
-      "incremental" to listOf("false"),
+      // KSP records paths in its caches relative to projectBaseDir, so for incremental runs it
+      // must be the same for every request of the target
+      "projectBaseDir" to listOf(if (incremental == null) dirs.incrementalData else projectBaseDir),
+      "incremental" to listOf((incremental != null).toString()),
       // Directory where class files are written to. Files written to this directory are class
       // files being written directly from the annotation processor, not Kotlinc
       "classOutputDir" to listOf(dirs.generatedClasses),
@@ -115,8 +122,8 @@ internal fun kspArgs(task: JvmCompilationTask, toolchain: KotlinToolchain): Comp
       "resourceOutputDir" to listOf(dirs.generatedSources),
       // TODO(bencodes) Not sure what this directory is yet.
       "kspOutputDir" to listOf(dirs.incrementalData),
-      // Directory to write KSP caches. Shouldn't matter because incremental is disabled
-      "cachesDir" to listOf(dirs.incrementalData),
+      // Directory to write KSP caches, restored from the worker for incremental runs
+      "cachesDir" to listOf(incremental?.cachesDir ?: dirs.incrementalData),
       // Set withCompilation to false because we run this as part of the standard kotlinc pass
       // If we ever want to flip this to true, we probably want to integrate this directly
       // into the KotlinCompile action.
@@ -132,6 +139,10 @@ internal fun kspArgs(task: JvmCompilationTask, toolchain: KotlinToolchain): Comp
         args.flag(pair.first, value.toString())
       }
     }
+    if (incremental != null && incremental.incremental) {
+      args.flag("knownModified", incremental.modified.joinToString(File.pathSeparator))
+      args.flag("knownRemoved", incremental.removed.joinToString(File.pathSeparator))
+    }
   }
   return args
 }
@@ -141,6 +152,8 @@ internal fun runPlugins(
   context: CompilationTaskContext,
   plugins: KotlinToolchain,
   compiler: KotlincInvoker,
+  kspIncrementalCache: KspIncrementalCache? = null,
+  ksp2: Lazy<Ksp2Invoker>? = null,
 ) {
   val inputs = task.inputs
   if ((inputs.processors.isEmpty() && inputs.stubsPluginClasspath.isEmpty()) ||
@@ -149,62 +162,252 @@ internal fun runPlugins(
   }
 
   if (task.outputs.generatedKspSrcJar != null) {
-    runKspPlugin(
-      task = task,
-      context = context,
-      toolchain = plugins,
-      compiler = compiler,
-    )
+    val incrementalCache = if (task.kspIncremental) kspIncrementalCache else null
+    if (task.useKsp2 && ksp2 != null) {
+      runKsp(task, context, "Ksp2", incrementalCache) { incremental ->
+        val args = ksp2Args(task, context, incremental)
+        context.whenTracing {
+          printLines("Ksp2 arguments", args.asSequence())
+        }
+        context.executeTool(printOnSuccess = context.isTracing) { ksp2.value.run(args, it) }
+      }
+    } else {
+      runKsp(task, context, "Ksp", incrementalCache) { incremental ->
+        val overrides = mutableMapOf(
+          API_VERSION_ARG to kspKotlinToolchainVersion(task.info.toolchainInfo.apiVersion),
+          LANGUAGE_VERSION_ARG to
+            kspKotlinToolchainVersion(task.info.toolchainInfo.languageVersion),
+        )
+        val args = baseArgs(task, overrides)
+          .plus(kspArgs(task, plugins, incremental, context.workingDir))
+          .flag("-d", task.directories.generatedClasses.toString())
+          .values(task.inputs.kotlinSources)
+          .values(task.inputs.javaSources)
+          .toList()
+        context.executeCompilerTask(
+          args = args,
+          compiler = compiler,
+          printOnSuccess = context.isTracing,
+        )
+      }
+    }
   }
 }
 
-private fun runKspPlugin(
+private fun runKsp(
   task: JvmCompilationTask,
   context: CompilationTaskContext,
-  toolchain: KotlinToolchain,
-  compiler: KotlincInvoker,
+  name: String,
+  incrementalCache: KspIncrementalCache?,
+  run: (incremental: KspIncrementalCache.Run?) -> List<String>,
 ) {
-  return context.execute("Ksp (${task.inputs.processors.joinToString(", ")})") {
-    val overrides = mutableMapOf(
-      API_VERSION_ARG to kspKotlinToolchainVersion(task.info.toolchainInfo.apiVersion),
-      LANGUAGE_VERSION_ARG to kspKotlinToolchainVersion(task.info.toolchainInfo.languageVersion),
-    )
-    val args = baseArgs(task, overrides)
-      .plus(kspArgs(task, toolchain))
-      .flag("-d", task.directories.generatedClasses.toString())
-      .values(task.inputs.kotlinSources)
-      .values(task.inputs.javaSources)
-      .toList()
-    val outputLines = context.executeCompilerTask(
-      args = args,
-      compiler = compiler,
-      printOnSuccess = context.isTracing,
-    )
+  return context.execute("$name (${task.inputs.processors.joinToString(", ")})") {
+    clearDirContent(task.directories.generatedJavaSources)
+    // generated sources are compiled in single pass mode, so stale ones must not survive
+    clearDirContent(task.directories.generatedSources)
+    val incremental = incrementalCache?.let {
+      context.execute("restore KSP caches") { it.prepare(context, task) }
+    }
+    context.whenTracing {
+      if (incremental != null) {
+        printLines(
+          "$name incremental run",
+          sequenceOf("incremental: ${incremental.incremental}") +
+            incremental.modified.asSequence().map { "modified: $it" } +
+            incremental.removed.asSequence().map { "removed: $it" },
+        )
+      }
+    }
+    val outputLines = run(incremental)
     // if tracing is enabled, the output should be formatted in a special way, if we aren't
     // tracing then any compiler output would make it's way to the console as is.
     context.whenTracing {
-      printLines("Ksp output", outputLines.asSequence())
+      printLines("$name output", outputLines.asSequence())
+    }
+    if (incrementalCache != null && incremental != null) {
+      context.execute("store KSP caches") { incrementalCache.store(task, incremental) }
+    }
+  }
+}
+
+/**
+ * Arguments for [Ksp2Invoker]. Unlike KSP1, KSP2 analyses with the K2 frontend, so the toolchain
+ * language and api versions are used as they are.
+ */
+private fun ksp2Args(
+  task: JvmCompilationTask,
+  context: CompilationTaskContext,
+  incremental: KspIncrementalCache.Run?,
+): List<String> {
+  val dirs = task.directories
+  val inputs = task.inputs
+
+  fun paths(values: List<Any>): String =
+    values.joinToString(File.pathSeparator) { context.workingDir.resolve(it.toString()).toString() }
+
+  return listOf(
+    "moduleName=${task.info.moduleName}",
+    "sourceRoots=${paths(inputs.kotlinSources)}",
+    "javaSourceRoots=${paths(inputs.javaSources)}",
+    "libraries=${paths(inputs.classpath)}",
+    "processorPath=${paths(inputs.processorPaths)}",
+    "projectBaseDir=${if (incremental == null) dirs.incrementalData else context.workingDir}",
+    "outputBaseDir=${dirs.incrementalData}",
+    "cachesDir=${incremental?.cachesDir ?: dirs.incrementalData}",
+    "classOutputDir=${dirs.generatedClasses}",
+    "kotlinOutputDir=${dirs.generatedSources}",
+    "javaOutputDir=${dirs.generatedJavaSources}",
+    "resourceOutputDir=${dirs.generatedSources}",
+    "jvmTarget=${task.jvmTarget}",
+    "jvmDefaultMode=${jvmDefaultMode(task)}",
+    "languageVersion=${task.info.toolchainInfo.languageVersion}",
+    "apiVersion=${task.info.toolchainInfo.apiVersion}",
+    "incremental=${incremental != null}",
+    "modifiedSources=${paths(incremental?.modified.orEmpty())}",
+    "removedSources=${paths(incremental?.removed.orEmpty())}",
+  )
+}
+
+/**
+ * Adds the sources generated by KSP to the compilation inputs, so a single request can run the
+ * processors and compile their output without packing and unpacking a source jar in between.
+ * Resources written under META-INF are copied to the generated classes as it is done for source
+ * jars.
+ */
+internal fun withKspGeneratedSources(task: JvmCompilationTask): JvmCompilationTask {
+  val dirs = task.directories
+  val kotlinSources = ArrayList(task.inputs.kotlinSources)
+  val javaSources = ArrayList(task.inputs.javaSources)
+  for (dir in listOf(dirs.generatedSources, dirs.generatedJavaSources)) {
+    if (!Files.isDirectory(dir)) {
+      continue
+    }
+    val files = Files.walk(dir).use { stream ->
+      stream.filter { Files.isRegularFile(it) }.sorted().collect(Collectors.toList())
+    }
+    for (file in files) {
+      val name = file.toString()
+      when {
+        name.endsWith(".kt") -> kotlinSources.add(name)
+        name.endsWith(".java") -> javaSources.add(name)
+        dir.relativize(file).startsWith(MANIFEST_DIR.removeSuffix("/")) -> {
+          val destPath = dirs.generatedClasses.resolve(dir.relativize(file).toString())
+          Files.createDirectories(destPath.parent)
+          Files.copy(file, destPath, StandardCopyOption.REPLACE_EXISTING)
+        }
+      }
     }
   }
+  return task.copy(
+    inputs = task.inputs.copy(kotlinSources = kotlinSources, javaSources = javaSources),
+  )
 }
 
+/**
+ * Returns the `-Xjvm-default` mode kotlinc compiles the task with, so that KSP2 resolves interface
+ * members as the compiled classes declare them. The last occurrence wins, as it does for kotlinc.
+ */
+private fun jvmDefaultMode(task: JvmCompilationTask): String =
+  task.info.passthroughFlags
+    .lastOrNull { it.startsWith("$JVM_DEFAULT_FLAG=") }
+    ?.substringAfter('=')
+    // the default of the KSP2 command line
+    ?: "disable"
+
 private fun kspKotlinToolchainVersion(version: String): String {
   // KSP doesn't support Kotlin 2.0 yet, so we need to use 1.9
   return if (version.toFloat() >= 2.0) "1.9" else version
 }
 
 /**
- * Produce the primary output jar.
+ * Moves the output jar left by a previous build, if any, out of the way of the new one and returns
+ * it.
  */
-internal fun createOutputJar(task: JvmCompilationTask) {
+internal fun previousOutputJar(task: JvmCompilationTask): Path? {
+  val jar = task.outputs.jar!!
+  if (!Files.isRegularFile(jar)) {
+    return null
+  }
+  val previous = task.directories.temp.resolve("previous.jar")
+  Files.createDirectories(previous.parent)
+  return Files.move(jar, previous, StandardCopyOption.REPLACE_EXISTING)
+}
+
+/**
+ * Produce the primary output jar, reusing compressed entries of [previousJar] if given. Compiled
+ * classes are instrumented in memory when coverage is collected, and stripped by [compiler] to
+ * header classes in a header compilation.
+ */
+internal fun createOutputJar(
+  task: JvmCompilationTask,
+  compiler: KotlincInvoker,
+  previousJar: Path? = null,
+) {
   JarCreator(
     path = task.outputs.jar!!,
     targetLabel = task.info.label,
     injectingRuleKind = task.info.bazelRuleKind,
+    compress = task.compressJar,
+    previous = previousJar,
   ).use {
-    it.addDirectory(task.directories.classes)
+    if (task.headerCompilation) {
+      it.addEntries(headerClasses(compiledClasses(task), compiler))
+    } else if (task.instrumentCoverage) {
+      it.addEntries(CoverageInstrumentation.instrument(task, compiledClasses(task)))
+    } else {
+      it.addDirectory(task.directories.classes)
+    }
     it.addDirectory(task.directories.generatedClasses)
+    // with coverage, the Java classes were instrumented along with the Kotlin ones
+    if (task.compileJava && !task.instrumentCoverage) {
+      it.addDirectory(javaClasses(task))
+    }
+  }
+}
+
+/** Reads the classes kotlinc, and javac when it ran in the same request, compiled for [task]. */
+private fun compiledClasses(task: JvmCompilationTask): Map<String, ByteArray> {
+  val classes = readDirectoryEntries(task.directories.classes)
+  if (task.compileJava) {
+    readDirectoryEntries(javaClasses(task)).forEach(classes::putIfAbsent)
+  }
+  return classes
+}
+
+/**
+ * Returns the classes javac compiled for [task] without method bodies, for the ABI jar, so editing
+ * a method body of a Java source does not change the compile jar of a mixed target.
+ */
+internal fun javaHeaderClasses(
+  task: JvmCompilationTask,
+  compiler: KotlincInvoker,
+): Map<String, ByteArray> = headerClasses(readDirectoryEntries(javaClasses(task)), compiler)
+
+/** Returns [classes] with the bodies of the methods dropped, resources are kept as they are. */
+private fun headerClasses(
+  classes: Map<String, ByteArray>,
+  compiler: KotlincInvoker,
+): Map<String, ByteArray> {
+  val entries = ConcurrentHashMap<String, ByteArray>(classes.size * 2 + 1)
+  classes.entries.parallelStream().forEach { (name, bytes) ->
+    entries[name] = if (name.endsWith(".class")) compiler.stripAbi(bytes) else bytes
+  }
+  return entries
+}
+
+/** Reads the files of a class directory by jar entry name. */
+private fun readDirectoryEntries(dir: Path): HashMap<String, ByteArray> {
+  val entries = HashMap<String, ByteArray>()
+  if (!Files.isDirectory(dir)) {
+    return entries
+  }
+  Files.walk(dir).use { stream ->
+    stream.filter { Files.isRegularFile(it) }.forEach {
+      entries[dir.relativize(it).toString().replace(File.separatorChar, '/')] =
+        Files.readAllBytes(it)
+    }
   }
+  return entries
 }
 
 /**
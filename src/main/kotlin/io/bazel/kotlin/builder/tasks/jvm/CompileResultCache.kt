@@ -0,0 +1,198 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.utils.DiskCache
+import io.bazel.kotlin.model.JvmCompilationTask
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+
+/**
+ * Worker-local cache of compile results keyed by the ABI of the classpath.
+ *
+ * Bazel invalidates a compile action whenever any byte of its classpath changes, even if the
+ * dependency only changed a method body. The key used here hashes the task options, the source
+ * contents and the ABI fingerprint of every classpath jar instead, so such a rebuild is served
+ * by copying the previous outputs. Compiler warnings of the original compilation are not replayed.
+ */
+class CompileResultCache internal constructor(
+  private val cache: DiskCache,
+  private val fingerprints: InputFingerprints,
+) {
+  /**
+   * Restores the outputs of [task] from the cache or runs [compile] and stores its outputs.
+   */
+  fun getOrCompile(
+    context: CompilationTaskContext,
+    task: JvmCompilationTask,
+    compile: () -> Unit,
+  ) {
+    val outputs = outputsOf(task)
+    val key = try {
+      context.execute("compute compile cache key") { computeKey(context, task, outputs) }
+    } catch (e: IOException) {
+      null
+    }
+    if (key != null && restore(key, outputs)) {
+      context.whenTracing { printLines("compile result cache", sequenceOf("hit $key")) }
+      return
+    }
+
+    compile()
+
+    if (key != null) {
+      context.execute("store compile result") {
+        cache.put(key) { dir ->
+          for ((name, path) in outputs) {
+            if (!Files.exists(path)) {
+              return@put false
+            }
+            Files.copy(path, dir.resolve(name))
+          }
+          true
+        }
+      }
+    }
+  }
+
+  private fun restore(
+    key: String,
+    outputs: List<Pair<String, Path>>,
+  ): Boolean {
+    val dir = cache.get(key) ?: return false
+    try {
+      for ((name, path) in outputs) {
+        Files.createDirectories(path.parent)
+        Files.copy(dir.resolve(name), path, StandardCopyOption.REPLACE_EXISTING)
+      }
+      return true
+    } catch (e: IOException) {
+      cache.remove(key)
+      return false
+    }
+  }
+
+  private fun computeKey(
+    context: CompilationTaskContext,
+    task: JvmCompilationTask,
+    outputs: List<Pair<String, Path>>,
+  ): String {
+    val digest = MessageDigest.getInstance("SHA-256")
+
+    fun add(value: String) {
+      digest.update(value.toByteArray())
+      digest.update(0)
+    }
+
+    fun addPath(path: Path) {
+      add(InputFingerprints.relativize(context, path))
+    }
+
+    val info = task.info
+    add(info.label)
+    add(info.platform.name)
+    add(info.ruleKind.name)
+    add(info.moduleName)
+    info.passthroughFlags.forEach(::add)
+    add(info.toolchainInfo.apiVersion)
+    add(info.toolchainInfo.languageVersion)
+    add(info.strictKotlinDeps)
+    add(info.reducedClasspathMode)
+    add(task.jvmTarget.toString())
+    add(task.compileKotlin.toString())
+    add(task.instrumentCoverage.toString())
+    add(task.compressJar.toString())
+    add(task.compileJava.toString())
+    add(task.headerCompilation.toString())
+    task.friendPaths.forEach(::addPath)
+    outputs.forEach { (name, path) ->
+      add(name)
+      addPath(path)
+    }
+
+    val inputs = task.inputs
+    inputs.directDependencies.forEach(::add)
+    inputs.processors.forEach(::add)
+    inputs.stubsPluginOptions.forEach(::add)
+    inputs.compilerPluginOptions.forEach(::add)
+    inputs.javacFlags.forEach(::add)
+
+    for (source in inputs.kotlinSources + inputs.javaSources) {
+      val path = context.workingDir.resolve(source)
+      addPath(path)
+      digest.update(fingerprints.contentDigest(context, path))
+    }
+    for (path in inputs.classpath) {
+      addPath(path)
+      digest.update(fingerprints.abiFingerprint(context, path))
+    }
+    val tools = inputs.processorPaths + inputs.stubsPluginClasspath + inputs.depsArtifacts
+    for (path in tools.map { context.workingDir.resolve(it) } + inputs.compilerPluginClasspath) {
+      addPath(path)
+      digest.update(fingerprints.contentDigest(context, path))
+    }
+    // source jars also fill the generated classes directory with their resources, it is not
+    // cleared between requests and must not be read here
+    for (path in inputs.sourceJars.map { context.workingDir.resolve(it) }) {
+      addPath(path)
+      digest.update(fingerprints.contentDigest(context, path))
+    }
+
+    return InputFingerprints.toHex(digest.digest())
+  }
+
+  private fun outputsOf(task: JvmCompilationTask): List<Pair<String, Path>> {
+    val outputs = task.outputs
+    return listOfNotNull(
+      outputs.jar?.let { "jar" to it },
+      outputs.abiJar?.let { "abi.jar" to it },
+      outputs.jdeps?.let { "jdeps" to it },
+      outputs.srcjar?.let { "srcjar" to it },
+      outputs.generatedKspSrcJar?.let { "ksp-gensrc.jar" to it },
+      outputs.unusedInputsList?.let { "unused-inputs" to it },
+      outputs.sourceJdeps?.let { "source-jdeps" to it },
+      outputs.generatedJavaSrcJar?.takeIf { it.isNotEmpty() }
+        ?.let { "kapt-gensrc.jar" to Path.of(it) },
+      outputs.generatedClassJar?.takeIf { it.isNotEmpty() }
+        ?.let { "kapt-genclass.jar" to Path.of(it) },
+    )
+  }
+
+  companion object {
+    private const val MAX_BYTES = 1L shl 30
+
+    /** Creates a cache in the temp directory of the worker, bounded to 1 GiB. */
+    @JvmStatic
+    fun create(): CompileResultCache =
+      CompileResultCache(
+        cache = DiskCache.inTempDirectory(name = "compile-results", maxBytes = MAX_BYTES),
+        fingerprints = InputFingerprints(),
+      )
+
+    /** Creates a cache rooted in [root], bounded to 1 GiB. The root is cleared on first use. */
+    @JvmStatic
+    fun create(root: Path): CompileResultCache =
+      CompileResultCache(
+        cache = DiskCache(root = root, maxBytes = MAX_BYTES),
+        fingerprints = InputFingerprints(),
+      )
+  }
+}
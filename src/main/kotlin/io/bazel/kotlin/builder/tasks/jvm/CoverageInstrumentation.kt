@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.model.JvmCompilationTask
+import org.jacoco.core.instr.Instrumenter
+import org.jacoco.core.runtime.OfflineInstrumentationAccessGenerator
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/** Suffix of the original classes the Bazel JaCoCo runner reads coverage metadata from. */
+private const val UNINSTRUMENTED_SUFFIX = ".uninstrumented"
+
+/** Suffix of the list of the sources of a jar, the runner maps classes to sources with it. */
+private const val PATHS_FOR_COVERAGE_SUFFIX = "-paths-for-coverage.txt"
+
+/**
+ * Instruments classes for JaCoCo offline coverage, the way JavaBuilder does for Java targets.
+ *
+ * The instrumented class depends on the bytes of the original one alone, so instrumented classes
+ * are kept for the lifetime of the worker, keyed by a digest of the original bytes. Classes that
+ * did not change since a previous build are not instrumented again.
+ */
+internal object CoverageInstrumentation {
+  private const val MAX_CACHED_BYTES = 256L shl 20
+
+  private val instrumented = ConcurrentHashMap<ByteBuffer, ByteArray>()
+  private val cachedBytes = AtomicLong()
+
+  /**
+   * Returns the entries of the output jar of [task] for its compiled [classes]: the instrumented
+   * classes, the original ones with an `.uninstrumented` suffix and the list of sources. Other
+   * entries are kept as they are.
+   *
+   * @param classes file contents by jar entry name
+   */
+  fun instrument(
+    task: JvmCompilationTask,
+    classes: Map<String, ByteArray>,
+  ): Map<String, ByteArray> {
+    val instrumenter = Instrumenter(OfflineInstrumentationAccessGenerator())
+    val entries = ConcurrentHashMap<String, ByteArray>(classes.size * 2 + 1)
+    classes.entries.parallelStream().forEach { (name, bytes) ->
+      if (!name.endsWith(".class")) {
+        entries[name] = bytes
+        return@forEach
+      }
+      entries[name] = instrumented(instrumenter, name, bytes)
+      entries[name + UNINSTRUMENTED_SUFFIX] = bytes
+    }
+
+    val inputs = task.inputs
+    val paths = (inputs.kotlinSources + inputs.javaSources)
+      .joinToString(separator = "\n", postfix = "\n")
+      .toByteArray()
+    entries[task.outputs.jar!!.fileName.toString() + PATHS_FOR_COVERAGE_SUFFIX] = paths
+    return entries
+  }
+
+  private fun instrumented(
+    instrumenter: Instrumenter,
+    name: String,
+    bytes: ByteArray,
+  ): ByteArray {
+    val key = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(bytes))
+    instrumented[key]?.let { return it }
+    val result = instrumenter.instrument(bytes, name)
+    if (cachedBytes.addAndGet(result.size.toLong()) > MAX_CACHED_BYTES) {
+      instrumented.clear()
+      cachedBytes.set(result.size.toLong())
+    }
+    instrumented[key] = result
+    return result
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.utils.jars.AbiFingerprint
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Digests of request inputs, memoized for the lifetime of the worker.
+ *
+ * Inputs are identified by the digest Bazel reports for them and, when there is none, by their
+ * absolute path, size and modification time. Each map is cleared once it holds
+ * [MAX_CACHED_FINGERPRINTS] entries, a long-lived worker sees every version of every input.
+ */
+internal class InputFingerprints {
+  private val abiFingerprints = ConcurrentHashMap<String, ByteArray>()
+  private val contentDigests = ConcurrentHashMap<String, ByteArray>()
+
+  /** Returns the [AbiFingerprint] of a classpath entry. */
+  fun abiFingerprint(
+    context: CompilationTaskContext,
+    path: Path,
+  ): ByteArray {
+    if (!Files.isRegularFile(path)) {
+      return contentDigest(context, path)
+    }
+    return memoize(abiFingerprints, identity(context, path)) { AbiFingerprint.of(path) }
+  }
+
+  /** Returns a digest of the content of [path]. */
+  fun contentDigest(
+    context: CompilationTaskContext,
+    path: Path,
+  ): ByteArray {
+    if (!Files.isRegularFile(path)) {
+      // directories and missing files are identified by their path alone
+      return ByteArray(0)
+    }
+    context.inputDigests[relativize(context, path)]?.let {
+      return it.toByteArray()
+    }
+    return memoize(contentDigests, identity(context, path)) {
+      MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path))
+    }
+  }
+
+  private inline fun memoize(
+    fingerprints: ConcurrentHashMap<String, ByteArray>,
+    key: String,
+    compute: () -> ByteArray,
+  ): ByteArray {
+    var fingerprint = fingerprints[key]
+    if (fingerprint == null) {
+      fingerprint = compute()
+      if (fingerprints.size >= MAX_CACHED_FINGERPRINTS) {
+        fingerprints.clear()
+      }
+      fingerprints[key] = fingerprint
+    }
+    return fingerprint
+  }
+
+  private fun identity(
+    context: CompilationTaskContext,
+    path: Path,
+  ): String =
+    context.inputDigests[relativize(context, path)]?.let { "digest:$it" }
+      ?: "file:${path.toAbsolutePath()}:${Files.size(path)}:" +
+      Files.getLastModifiedTime(path).toMillis()
+
+  companion object {
+    internal const val MAX_CACHED_FINGERPRINTS = 50_000
+
+    /**
+     * Returns [path] relative to the request working directory if it is located within it, so it
+     * is stable across sandboxes.
+     */
+    fun relativize(
+      context: CompilationTaskContext,
+      path: Path,
+    ): String {
+      val absolute = path.toAbsolutePath().normalize()
+      return if (absolute.startsWith(context.workingDir)) {
+        context.workingDir.relativize(absolute).toString()
+      } else {
+        absolute.toString()
+      }
+    }
+
+    fun toHex(bytes: ByteArray): String = bytes.joinToString("") { "%02x".format(it) }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.toolchain.JavacInvoker
+import io.bazel.kotlin.model.JvmCompilationTask
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+
+/** javac flags choosing the language level, the jvm target of the task is used without them. */
+private val LANGUAGE_LEVEL_FLAGS = listOf("-source", "-target", "--source", "--target", "--release")
+
+private const val ADD_EXPORTS_FLAG = "--add-exports"
+
+/** Flags of the javac options meant for Error Prone or kotlinc, JavaBuilder handles the first. */
+private val FOREIGN_FLAG_PREFIXES = listOf("-Xep", "-Xexplicit-api")
+
+/** Returns where javac writes the classes of the Java sources of [task]. */
+internal fun javaClasses(task: JvmCompilationTask): Path =
+  task.directories.temp.resolve("java-classes")
+
+/**
+ * Compiles the Java sources of [task] with [javac], against the classes kotlinc has just written,
+ * so that the output jars hold both and no JavaBuilder action runs after KotlinCompile.
+ *
+ * Annotation processors are not run, the rules leave targets using them to JavaBuilder.
+ */
+internal fun compileJava(
+  task: JvmCompilationTask,
+  context: CompilationTaskContext,
+  javac: JavacInvoker,
+) {
+  val classes = javaClasses(task)
+  clearDirContent(classes)
+  val inputs = task.inputs
+  if (inputs.javaSources.isEmpty()) {
+    return
+  }
+  val classpath = listOf(task.directories.classes, task.directories.generatedClasses)
+    .plus(inputs.classpath)
+    .filter(Files::exists)
+
+  val args = javacFlags(task)
+  args.addAll(listOf("-encoding", "UTF-8", "-proc:none"))
+  // sources must not be looked up on the classpath, only the given ones are compiled
+  args.addAll(listOf("-sourcepath", ""))
+  args.addAll(listOf("-cp", classpath.joinToString(File.pathSeparator)))
+  args.addAll(listOf("-d", classes.toString()))
+  val sources = inputs.javaSources.map { context.workingDir.resolve(it) }
+
+  context.whenTracing {
+    printLines("javac arguments", (args + sources.map(Path::toString)).asSequence())
+  }
+  val usedJars = HashSet<Path>()
+  context.executeTool { javac.compile(args, sources, it, usedJars) }
+  addJavaDependencies(task, context.workingDir, usedJars)
+}
+
+/**
+ * Returns the javac options of [task] as javac arguments. The options render the language level
+ * flags with their value, like `--release 11`, only those are split, other options are passed
+ * unchanged.
+ */
+private fun javacFlags(task: JvmCompilationTask): MutableList<String> {
+  val flags = ArrayList<String>()
+  for (option in task.inputs.javacFlags) {
+    if (FOREIGN_FLAG_PREFIXES.any { option.startsWith(it) }) {
+      continue
+    }
+    val flag = option.substringBefore(' ')
+    if (flag in LANGUAGE_LEVEL_FLAGS && flag != option) {
+      flags.add(flag)
+      flags.add(option.substringAfter(' ').trim())
+    } else {
+      flags.add(option)
+    }
+  }
+  val hasLanguageLevel = flags.any { flag ->
+    LANGUAGE_LEVEL_FLAGS.any { flag == it || flag.startsWith("$it=") }
+  }
+  if (!hasLanguageLevel) {
+    val release = task.jvmTarget!!.removePrefix("1.")
+    if (flags.none { it.startsWith(ADD_EXPORTS_FLAG) }) {
+      flags.addAll(listOf("--release", release))
+    } else {
+      // javac does not export packages of system modules when compiling for a release, and there
+      // are no modules to export packages from before Java 9
+      if ((release.toIntOrNull() ?: Int.MAX_VALUE) < 9) {
+        flags.removeAll { it.startsWith(ADD_EXPORTS_FLAG) }
+      }
+      flags.addAll(listOf("-source", release, "-target", release))
+    }
+  }
+  return flags
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.devtools.build.lib.view.proto.Deps
+import com.google.protobuf.CodedInputStream
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.ExtensionRegistryLite
+import com.google.protobuf.WireFormat
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.toolchain.KotlinToolchain
+import io.bazel.kotlin.model.JvmCompilationTask
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.TreeSet
+
+private const val LANGUAGE_VERSION_FLAG = "-language-version"
+
+/** Whether the jdeps plugin runs for [task], it reports dependencies during code generation. */
+internal fun generatesJdeps(task: JvmCompilationTask): Boolean =
+  task.outputs.jar != null && task.outputs.jdeps != null
+
+/** Adds the jdeps plugin, reporting the classpath jars used by [task], to [args]. */
+internal fun addJdepsPlugin(
+  args: CompilationArgs,
+  task: JvmCompilationTask,
+  context: CompilationTaskContext,
+  toolchain: KotlinToolchain,
+) {
+  // the plugin writes the files during code generation only, stale ones must not survive a failure
+  Files.deleteIfExists(task.outputs.jdeps!!)
+  task.outputs.sourceJdeps?.let(Files::deleteIfExists)
+  args.plugin(toolchain.jdepsGen) {
+    flag("output", task.outputs.jdeps.toString())
+    flag("target_label", task.info.label)
+    flag("working_dir", context.workingDir.toString())
+    task.inputs.directDependencies.forEach { flag("direct_dependencies", it) }
+    flag("strict_kotlin_deps", task.info.strictKotlinDeps)
+    task.outputs.sourceJdeps?.let { flag("output_sources", it.toString()) }
+  }
+}
+
+/**
+ * Adds the classpath jars javac read classes from, [usedJars], to the jdeps of [task]: the plugin
+ * only sees the Kotlin sources. Direct dependencies are explicit and keep the spelling they were
+ * given with, other jars are implicit and relative to [workingDir].
+ */
+internal fun addJavaDependencies(
+  task: JvmCompilationTask,
+  workingDir: Path,
+  usedJars: Set<Path>,
+) {
+  if (!generatesJdeps(task) || usedJars.isEmpty()) {
+    return
+  }
+  val root = workingDir.toAbsolutePath().normalize()
+  val directDependencies = task.inputs.directDependencies
+    .associateBy { root.resolve(it).normalize() }
+  val classpath = task.inputs.classpath.toHashSet()
+  val javaDependencies = Deps.Dependencies.newBuilder()
+    .setRuleLabel(task.info.label)
+    .setSuccess(true)
+  for (jar in usedJars.map { it.toAbsolutePath().normalize() }.filter { it in classpath }) {
+    val direct = directDependencies[jar]
+    val dependency = Deps.Dependency.newBuilder()
+    if (direct != null) {
+      dependency.setPath(direct).setKind(Deps.Dependency.Kind.EXPLICIT)
+    } else {
+      val path = if (jar.startsWith(root)) root.relativize(jar).toString() else jar.toString()
+      dependency.setPath(path).setKind(Deps.Dependency.Kind.IMPLICIT)
+    }
+    javaDependencies.addDependency(dependency)
+  }
+  val javaJdeps = task.directories.temp.resolve("java.jdeps")
+  Files.write(javaJdeps, javaDependencies.build().toByteArray())
+
+  val jdeps = task.outputs.jdeps!!
+  val merger = JdepsMerger()
+  // kotlinc does not run without Kotlin sources
+  if (Files.exists(jdeps)) {
+    merger.add(jdeps)
+  }
+  merger.add(javaJdeps)
+  merger.write(jdeps)
+}
+
+/**
+ * Writes the jdeps and unused inputs outputs the compiler did not produce: empty jdeps files
+ * when there was nothing to compile or the frontend does not attribute usages to sources, and the
+ * list of unused inputs.
+ */
+internal fun writeDependencyOutputs(task: JvmCompilationTask) {
+  val outputs = task.outputs
+  for (jdeps in listOfNotNull(outputs.jdeps, outputs.sourceJdeps)) {
+    if (!Files.exists(jdeps)) {
+      Files.write(
+        jdeps,
+        Deps.Dependencies.newBuilder()
+          .setRuleLabel(task.info.label)
+          // the compilation succeeded, merged jdeps of mixed targets must not report a failure
+          .setSuccess(true)
+          .build()
+          .toByteArray(),
+      )
+    }
+  }
+  outputs.unusedInputsList?.let { Files.write(it, unusedInputs(task)) }
+}
+
+/**
+ * Returns the direct dependencies no class of which was referenced, as execution root relative
+ * paths. Bazel will not run the action again if only those change.
+ *
+ * The list is left empty whenever usages may be missing from the jdeps file: the plugin only
+ * records them with the K2 frontend, and annotation processors, compiler plugins and Java sources
+ * can load classes the Kotlin frontend never sees.
+ */
+private fun unusedInputs(task: JvmCompilationTask): List<String> {
+  val inputs = task.inputs
+  val jdeps = task.outputs.jdeps
+  if (jdeps == null ||
+    !generatesJdeps(task) ||
+    !task.compileKotlin ||
+    !usesK2(task) ||
+    inputs.processors.isNotEmpty() ||
+    inputs.stubsPluginClasspath.isNotEmpty() ||
+    inputs.compilerPluginClasspath.isNotEmpty() ||
+    // javac usages are only recorded when the worker compiles the Java sources
+    (inputs.javaSources.isNotEmpty() && !task.compileJava) ||
+    task.outputs.generatedKspSrcJar != null
+  ) {
+    return emptyList()
+  }
+  val dependencies = JdepsMerger().apply { add(jdeps) }
+  return inputs.directDependencies
+    .filter { dependencies.kindOf(it) == Deps.Dependency.Kind.UNUSED }
+    .distinct()
+}
+
+private fun usesK2(task: JvmCompilationTask): Boolean {
+  var version = task.info.toolchainInfo.languageVersion
+  val flags = task.info.passthroughFlags
+  for ((index, flag) in flags.withIndex()) {
+    if (flag == LANGUAGE_VERSION_FLAG && index + 1 < flags.size) {
+      version = flags[index + 1]
+    } else if (flag.startsWith("$LANGUAGE_VERSION_FLAG=")) {
+      version = flag.substringAfter('=')
+    }
+  }
+  return (version.substringBefore('.').toIntOrNull() ?: 0) >= 2
+}
+
+/**
+ * Merges jdeps files, such as the Kotlin and javac ones of a mixed target, keeping the strongest
+ * kind reported for each jar: explicit, then implicit, incomplete and unused. The source locations
+ * of a jar are the union of those reported by every input.
+ *
+ * Inputs are read one dependency at a time and only the merged kind and locations of each jar are
+ * kept, so neither the inputs nor the result are materialized as lists of dependencies.
+ */
+class JdepsMerger {
+  private val dependencies = HashMap<String, MergedDependency>()
+  private val containedPackages = TreeSet<String>()
+  private var ruleLabel: String? = null
+  private var success = true
+
+  fun add(jdeps: Path) {
+    var inputSuccess = false
+    Files.newInputStream(jdeps).use { stream ->
+      val input = CodedInputStream.newInstance(stream)
+      while (true) {
+        val tag = input.readTag()
+        when (WireFormat.getTagFieldNumber(tag)) {
+          // end of input
+          0 -> break
+          Deps.Dependencies.DEPENDENCY_FIELD_NUMBER -> {
+            val dependency = input.readMessage(Deps.Dependency.parser(), EMPTY_REGISTRY)
+            val merged = dependencies[dependency.path]
+            if (merged == null) {
+              dependencies[dependency.path] = MergedDependency(dependency)
+            } else {
+              merged.add(dependency)
+            }
+          }
+          Deps.Dependencies.RULE_LABEL_FIELD_NUMBER -> {
+            val label = input.readString()
+            if (ruleLabel == null) {
+              ruleLabel = label
+            }
+          }
+          Deps.Dependencies.SUCCESS_FIELD_NUMBER -> inputSuccess = input.readBool()
+          Deps.Dependencies.CONTAINED_PACKAGE_FIELD_NUMBER ->
+            containedPackages.add(input.readString())
+          else -> input.skipField(tag)
+        }
+      }
+    }
+    success = success && inputSuccess
+  }
+
+  /** Returns the merged kind of the dependency on [path], or null if no input reports it. */
+  fun kindOf(path: String): Deps.Dependency.Kind? = dependencies[path]?.kind
+
+  /** Returns the paths of the jars some input reports as used. */
+  fun usedPaths(): Sequence<String> =
+    dependencies.asSequence().filter { it.value.kind != Deps.Dependency.Kind.UNUSED }.map { it.key }
+
+  /**
+   * Writes the merged dependencies to [output], ordered by path. The rule label is [label], or the
+   * one of the first input reporting a label.
+   */
+  fun write(
+    output: Path,
+    label: String? = null,
+  ) {
+    Files.newOutputStream(output).use { stream ->
+      val out = CodedOutputStream.newInstance(stream)
+      for (path in dependencies.keys.sorted()) {
+        val merged = dependencies.getValue(path)
+        val dependency = Deps.Dependency.newBuilder().setPath(path).setKind(merged.kind)
+        merged.locations?.let { dependency.addAllLocation(it) }
+        out.writeMessage(Deps.Dependencies.DEPENDENCY_FIELD_NUMBER, dependency.build())
+      }
+      (label ?: ruleLabel)?.let { out.writeString(Deps.Dependencies.RULE_LABEL_FIELD_NUMBER, it) }
+      out.writeBool(Deps.Dependencies.SUCCESS_FIELD_NUMBER, success)
+      for (containedPackage in containedPackages) {
+        out.writeString(Deps.Dependencies.CONTAINED_PACKAGE_FIELD_NUMBER, containedPackage)
+      }
+      out.flush()
+    }
+  }
+
+  private class MergedDependency(
+    dependency: Deps.Dependency,
+  ) {
+    var kind: Deps.Dependency.Kind = dependency.kind
+
+    // most jars are reported without locations, the set is only allocated for those that have some
+    var locations: LinkedHashSet<Deps.SourceLocation>? = null
+
+    init {
+      addLocations(dependency)
+    }
+
+    fun add(dependency: Deps.Dependency) {
+      kind = strongest(kind, dependency.kind)
+      addLocations(dependency)
+    }
+
+    private fun addLocations(dependency: Deps.Dependency) {
+      if (dependency.locationCount > 0) {
+        (locations ?: LinkedHashSet<Deps.SourceLocation>().also { locations = it })
+          .addAll(dependency.locationList)
+      }
+    }
+  }
+
+  private companion object {
+    val EMPTY_REGISTRY: ExtensionRegistryLite = ExtensionRegistryLite.getEmptyRegistry()
+
+    fun strongest(
+      a: Deps.Dependency.Kind,
+      b: Deps.Dependency.Kind,
+    ): Deps.Dependency.Kind = if (strength(b) > strength(a)) b else a
+
+    fun strength(kind: Deps.Dependency.Kind): Int =
+      when (kind) {
+        Deps.Dependency.Kind.EXPLICIT -> 3
+        Deps.Dependency.Kind.IMPLICIT -> 2
+        Deps.Dependency.Kind.INCOMPLETE -> 1
+        else -> 0
+      }
+  }
+}
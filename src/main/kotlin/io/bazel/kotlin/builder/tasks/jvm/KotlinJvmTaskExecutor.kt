@@ -17,8 +17,10 @@
 package io.bazel.kotlin.builder.tasks.jvm
 
 import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.toolchain.JavacInvoker
 import io.bazel.kotlin.builder.toolchain.KotlinToolchain
 import io.bazel.kotlin.builder.toolchain.KotlincInvoker
+import io.bazel.kotlin.builder.toolchain.Ksp2Invoker
 import io.bazel.kotlin.builder.utils.bazelRuleKind
 import io.bazel.kotlin.builder.utils.jars.JarCreator
 import io.bazel.kotlin.model.JvmCompilationTask
@@ -30,28 +32,62 @@ import java.nio.file.Path
  */
 private const val X_FRIENDS_PATH_SEPARATOR = ","
 
-class KotlinJvmTaskExecutor(
+class KotlinJvmTaskExecutor @JvmOverloads constructor(
   private val toolchain: KotlinToolchain,
+  private val compileResultCache: CompileResultCache? = null,
+  private val kspIncrementalCache: KspIncrementalCache? = null,
+  private val outputJarCache: OutputJarCache? = null,
 ) {
   private val compiler = KotlincInvoker(baseJars = toolchain.getBaseJarsWithReflect())
+  private val ksp2 = lazy { Ksp2Invoker(toolchain.getKsp2Jars()) }
+  private val javac = lazy { JavacInvoker() }
 
   fun execute(
     context: CompilationTaskContext,
     task: JvmCompilationTask,
+  ) {
+    if (task.useCompileResultCache && compileResultCache != null) {
+      compileResultCache.getOrCompile(context, task) { doExecuteTask(context, task) }
+    } else {
+      doExecuteTask(context, task)
+    }
+  }
+
+  private fun doExecuteTask(
+    context: CompilationTaskContext,
+    task: JvmCompilationTask,
   ) {
     runPlugins(
       task = task,
       context = context,
       plugins = toolchain,
       compiler = compiler,
+      kspIncrementalCache = kspIncrementalCache,
+      ksp2 = ksp2,
     )
+    // KSP ran in this request, its output is compiled right away (single pass mode)
+    val outputs = task.outputs
+    val compileTask = if (
+      task.compileKotlin && outputs.jar != null && outputs.generatedKspSrcJar != null
+    ) {
+      withKspGeneratedSources(task)
+    } else {
+      task
+    }
     context.execute("compile classes") {
-      if (task.compileKotlin) {
+      if (compileTask.compileKotlin) {
         context.execute("kotlinc") {
-          doCompileKotlin(task, context, compiler, toolchain)
+          compileWithReducedClasspath(compileTask, context) {
+            doCompileKotlin(it, context, compiler, toolchain)
+          }
+        }
+      }
+      if (compileTask.compileJava) {
+        context.execute("javac") {
+          compileJava(compileTask, context, javac.value)
         }
       }
-      doExecute(task, context)
+      doExecute(compileTask, context, compiler, outputJarCache)
     }
   }
 }
@@ -80,6 +116,10 @@ private fun doCompileKotlin(
     args.plugin(toolchain.skipCodeGen)
   }
 
+  if (generatesJdeps(task)) {
+    addJdepsPlugin(args = args, task = task, context = context, toolchain = toolchain)
+  }
+
   configurePlugins(
     args = args,
     task = task,
@@ -104,10 +144,24 @@ private fun doCompileKotlin(
 private fun doExecute(
   task: JvmCompilationTask,
   context: CompilationTaskContext,
+  compiler: KotlincInvoker,
+  outputJarCache: OutputJarCache?,
 ) {
   val outputs = task.outputs
   if (outputs.jar != null) {
-    context.execute("create jar") { createOutputJar(task) }
+    context.execute("create jar") {
+      // only compressed entries are worth reusing, stored ones are as cheap to write as to copy
+      if (task.compressJar && outputJarCache != null) {
+        createOutputJar(
+          task,
+          compiler,
+          previousJar = outputJarCache.get(task) ?: previousOutputJar(task),
+        )
+        outputJarCache.store(task)
+      } else {
+        createOutputJar(task, compiler)
+      }
+    }
   }
   if (outputs.abiJar != null) {
     context.execute("create abi jar") {
@@ -118,6 +172,9 @@ private fun doExecute(
       ).use {
         it.addDirectory(task.directories.abiClasses!!)
         it.addDirectory(task.directories.generatedClasses)
+        if (task.compileJava) {
+          it.addEntries(javaHeaderClasses(task, compiler))
+        }
       }
     }
   }
@@ -155,4 +212,9 @@ private fun doExecute(
       }
     }
   }
+  if (outputs.jdeps != null || outputs.sourceJdeps != null || outputs.unusedInputsList != null) {
+    context.execute("write dependencies") {
+      writeDependencyOutputs(task)
+    }
+  }
 }
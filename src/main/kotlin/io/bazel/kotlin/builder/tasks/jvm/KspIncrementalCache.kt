@@ -0,0 +1,234 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.utils.DiskCache
+import io.bazel.kotlin.model.JvmCompilationTask
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.stream.Collectors
+
+/**
+ * Keeps the KSP caches and generated outputs of the last run of each target in the worker, so
+ * the next run of the same target can process incrementally.
+ *
+ * A run is incremental only if the processors, their options and the ABI of the classpath are
+ * unchanged, in which case the changed and removed sources are passed to KSP. Anything else,
+ * including a missing or unreadable entry, results in a full run with empty caches.
+ */
+class KspIncrementalCache internal constructor(
+  private val cache: DiskCache,
+  private val fingerprints: InputFingerprints,
+) {
+  /** An incremental KSP run prepared by [prepare]. */
+  class Run internal constructor(
+    @JvmField val cachesDir: Path,
+    @JvmField val modified: List<Path>,
+    @JvmField val removed: List<Path>,
+    @JvmField val incremental: Boolean,
+    @JvmField internal val manifest: Map<String, String>,
+  )
+
+  /**
+   * Restores caches and outputs of the previous run of [task] into its directories. The output
+   * directories are expected to be empty.
+   */
+  fun prepare(
+    context: CompilationTaskContext,
+    task: JvmCompilationTask,
+  ): Run {
+    val cachesDir = task.directories.incrementalData.resolve(CACHES)
+    clearDirContent(cachesDir)
+    val manifest = manifestOf(context, task)
+
+    val entry = cache.get(keyOf(task))
+    val previous = entry?.let {
+      try {
+        readManifest(it.resolve(MANIFEST))
+      } catch (e: IOException) {
+        null
+      }
+    }
+    if (entry == null || previous == null || !isCompatible(previous, manifest)) {
+      return Run(cachesDir, emptyList(), emptyList(), incremental = false, manifest = manifest)
+    }
+
+    try {
+      copyTree(entry.resolve(CACHES), cachesDir)
+      for ((name, dir) in outputDirectories(task)) {
+        // files already present, e.g. resources extracted from source jars, are more recent
+        copyTree(entry.resolve(name), dir, replaceExisting = false)
+      }
+    } catch (e: IOException) {
+      clearDirContent(cachesDir)
+      for ((_, dir) in outputDirectories(task)) {
+        clearDirContent(dir)
+      }
+      return Run(cachesDir, emptyList(), emptyList(), incremental = false, manifest = manifest)
+    }
+
+    val modified = manifest.filter { (key, digest) ->
+      key.startsWith(SOURCE) && previous[key] != digest
+    }
+    val removed = previous.keys.filter { it.startsWith(SOURCE) && it !in manifest }
+    return Run(
+      cachesDir = cachesDir,
+      modified = modified.keys.map { context.workingDir.resolve(it.removePrefix(SOURCE)) },
+      removed = removed.map { context.workingDir.resolve(it.removePrefix(SOURCE)) },
+      incremental = true,
+      manifest = manifest,
+    )
+  }
+
+  /** Keeps the caches and outputs of a successful run for the next run of the same target. */
+  fun store(
+    task: JvmCompilationTask,
+    run: Run,
+  ) {
+    val key = keyOf(task)
+    cache.remove(key)
+    cache.put(key) { dir ->
+      Files.write(
+        dir.resolve(MANIFEST),
+        run.manifest.entries.map { (key, value) -> "$key\t$value" },
+      )
+      copyTree(run.cachesDir, dir.resolve(CACHES))
+      for ((name, source) in outputDirectories(task)) {
+        copyTree(source, dir.resolve(name))
+      }
+      true
+    }
+  }
+
+  private fun isCompatible(
+    previous: Map<String, String>,
+    current: Map<String, String>,
+  ): Boolean {
+    val previousOptions = previous.filterKeys { !it.startsWith(SOURCE) }
+    val currentOptions = current.filterKeys { !it.startsWith(SOURCE) }
+    return previousOptions == currentOptions
+  }
+
+  private fun manifestOf(
+    context: CompilationTaskContext,
+    task: JvmCompilationTask,
+  ): Map<String, String> {
+    val manifest = LinkedHashMap<String, String>()
+    val digest = MessageDigest.getInstance("SHA-256")
+    val info = task.info
+    val inputs = task.inputs
+    val options = listOf(
+      info.label,
+      info.moduleName,
+      info.toolchainInfo.apiVersion,
+      info.toolchainInfo.languageVersion,
+      task.jvmTarget.toString(),
+    )
+    for (option in options + inputs.processors + inputs.stubsPluginOptions) {
+      digest.update(option.toByteArray())
+      digest.update(0)
+    }
+    for (path in inputs.processorPaths + inputs.stubsPluginClasspath) {
+      digest.update(fingerprints.contentDigest(context, context.workingDir.resolve(path)))
+    }
+    manifest[OPTIONS] = InputFingerprints.toHex(digest.digest())
+    for (path in inputs.classpath) {
+      manifest[CLASSPATH + InputFingerprints.relativize(context, path)] =
+        InputFingerprints.toHex(fingerprints.abiFingerprint(context, path))
+    }
+    for (source in inputs.kotlinSources + inputs.javaSources) {
+      val path = context.workingDir.resolve(source)
+      manifest[SOURCE + InputFingerprints.relativize(context, path)] =
+        InputFingerprints.toHex(fingerprints.contentDigest(context, path))
+    }
+    return manifest
+  }
+
+  private fun keyOf(task: JvmCompilationTask): String =
+    InputFingerprints.toHex(
+      MessageDigest.getInstance("SHA-256").digest(task.info.label.toByteArray()),
+    )
+
+  private fun outputDirectories(task: JvmCompilationTask): List<Pair<String, Path>> {
+    val dirs = task.directories
+    return listOf(
+      "kotlin" to dirs.generatedSources,
+      "java" to dirs.generatedJavaSources,
+      "classes" to dirs.generatedClasses,
+    )
+  }
+
+  companion object {
+    private const val MAX_BYTES = 1L shl 30
+    private const val CACHES = "ksp-caches"
+    private const val MANIFEST = "manifest.txt"
+    private const val OPTIONS = "options"
+    private const val CLASSPATH = "classpath:"
+    private const val SOURCE = "source:"
+
+    /** Creates a cache in the temp directory of the worker, bounded to 1 GiB. */
+    @JvmStatic
+    fun create(): KspIncrementalCache =
+      KspIncrementalCache(
+        cache = DiskCache.inTempDirectory(name = "ksp-caches", maxBytes = MAX_BYTES),
+        fingerprints = InputFingerprints(),
+      )
+
+    /** Creates a cache rooted in [root], bounded to 1 GiB. The root is cleared on first use. */
+    @JvmStatic
+    fun create(root: Path): KspIncrementalCache =
+      KspIncrementalCache(
+        cache = DiskCache(root = root, maxBytes = MAX_BYTES),
+        fingerprints = InputFingerprints(),
+      )
+
+    private fun readManifest(path: Path): Map<String, String> =
+      Files.readAllLines(path).associate {
+        val separator = it.indexOf('\t')
+        it.substring(0, separator) to it.substring(separator + 1)
+      }
+
+    private fun copyTree(
+      from: Path,
+      to: Path,
+      replaceExisting: Boolean = true,
+    ) {
+      if (!Files.isDirectory(from)) {
+        return
+      }
+      val files = Files.walk(from).use { stream -> stream.collect(Collectors.toList()) }
+      for (file in files) {
+        val target = to.resolve(from.relativize(file).toString())
+        if (Files.isDirectory(file)) {
+          Files.createDirectories(target)
+        } else if (replaceExisting || !Files.exists(target)) {
+          Files.createDirectories(target.parent)
+          Files.copy(
+            file,
+            target,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.COPY_ATTRIBUTES,
+          )
+        }
+      }
+    }
+  }
+}
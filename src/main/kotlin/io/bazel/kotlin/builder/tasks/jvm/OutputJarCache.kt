@@ -0,0 +1,61 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.utils.DiskCache
+import io.bazel.kotlin.model.JvmCompilationTask
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+
+/**
+ * Keeps the last compressed output jar of each target in the worker. The next build of the same
+ * target copies the compressed bytes of unchanged entries from it instead of compressing them
+ * again, see [io.bazel.kotlin.builder.utils.jars.JarCreator].
+ */
+class OutputJarCache internal constructor(
+  private val cache: DiskCache,
+) {
+  /** Returns the jar of the previous build of [task], if any. */
+  internal fun get(task: JvmCompilationTask): Path? =
+    cache.get(keyOf(task))?.resolve(JAR)?.takeIf { Files.isRegularFile(it) }
+
+  /** Keeps the output jar of [task] for its next build. */
+  internal fun store(task: JvmCompilationTask) {
+    val key = keyOf(task)
+    cache.remove(key)
+    cache.put(key) { dir ->
+      Files.copy(task.outputs.jar!!, dir.resolve(JAR))
+      true
+    }
+  }
+
+  private fun keyOf(task: JvmCompilationTask): String =
+    InputFingerprints.toHex(
+      MessageDigest.getInstance("SHA-256").digest(task.info.label.toByteArray()),
+    )
+
+  companion object {
+    private const val MAX_BYTES = 512L shl 20
+    private const val JAR = "output.jar"
+
+    /** Creates a cache in the temp directory of the worker, bounded to 512 MiB. */
+    @JvmStatic
+    fun create(): OutputJarCache =
+      OutputJarCache(DiskCache.inTempDirectory(name = "output-jars", maxBytes = MAX_BYTES))
+  }
+}
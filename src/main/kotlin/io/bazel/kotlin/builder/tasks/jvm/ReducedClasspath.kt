@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.toolchain.CompilationStatusException
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.model.JvmCompilationTask
+import java.nio.file.Files
+import java.nio.file.Path
+
+private const val REDUCED_CLASSPATH_MODE = "KOTLINBUILDER_REDUCED"
+
+/**
+ * Compiler messages that can be caused by a jar missing from a reduced classpath. The last two
+ * are the K1 and K2 wordings of a supertype that cannot be loaded.
+ */
+private val MISSING_SYMBOL_MESSAGES = listOf(
+  "Unresolved reference",
+  "Check your module classpath for missing or conflicting dependencies",
+  "Supertypes of the following classes cannot be resolved",
+)
+
+/**
+ * Runs [compile] with the reduced classpath of [task] in the `KOTLINBUILDER_REDUCED` mode, see
+ * [reduceClasspath]. The jdeps of the dependencies only tell which jars they needed, the sources of
+ * the task may need more, so a compilation failing on a missing symbol is run again with the full
+ * classpath.
+ */
+internal fun compileWithReducedClasspath(
+  task: JvmCompilationTask,
+  context: CompilationTaskContext,
+  compile: (JvmCompilationTask) -> Unit,
+) {
+  val reduced = reduceClasspath(task, context.workingDir)
+  if (reduced == null) {
+    compile(task)
+    return
+  }
+  context.whenTracing {
+    printLines(
+      "reduced classpath",
+      reduced.inputs.classpath.asSequence().map { it.toString() },
+    )
+  }
+  try {
+    compile(reduced)
+  } catch (e: CompilationStatusException) {
+    if (e.lines.none { line -> MISSING_SYMBOL_MESSAGES.any { it in line } }) {
+      throw e
+    }
+    context.whenTracing {
+      printLines(
+        "missing symbols with the reduced classpath, compiling with the full classpath",
+        e.lines.asSequence(),
+      )
+    }
+    compile(task)
+  }
+}
+
+/**
+ * Returns [task] with a classpath of its direct dependencies and of the jars the jdeps of its
+ * dependencies report as used, or null if the classpath is not reduced: the mode is off, there
+ * are no jdeps or they keep every jar.
+ *
+ * The order of the classpath is kept, a class present in several jars resolves to the same one.
+ */
+internal fun reduceClasspath(
+  task: JvmCompilationTask,
+  workingDir: Path,
+): JvmCompilationTask? {
+  val inputs = task.inputs
+  if (task.info.reducedClasspathMode != REDUCED_CLASSPATH_MODE || inputs.depsArtifacts.isEmpty()) {
+    return null
+  }
+  val merger = JdepsMerger()
+  for (jdeps in inputs.depsArtifacts) {
+    val path = workingDir.resolve(jdeps)
+    // dependencies without sources, like jvm imports, have no jdeps to read
+    if (Files.exists(path)) {
+      merger.add(path)
+    }
+  }
+  val kept = HashSet<Path>()
+  fun keep(path: String) {
+    kept.add(workingDir.resolve(path).toAbsolutePath().normalize())
+  }
+  inputs.directDependencies.forEach(::keep)
+  merger.usedPaths().forEach(::keep)
+
+  val classpath = inputs.classpath.filter { it in kept }
+  if (classpath.size == inputs.classpath.size) {
+    return null
+  }
+  return task.copy(inputs = inputs.copy(classpath = classpath))
+}
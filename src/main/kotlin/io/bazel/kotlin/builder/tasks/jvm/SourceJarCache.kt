@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.utils.DiskCache
+import io.bazel.kotlin.builder.utils.jars.SourceJarExtractor
+import java.nio.file.Path
+import java.security.MessageDigest
+
+/**
+ * Keeps the trees extracted from source jars in the worker, keyed by the digest of the jar. A
+ * generated source jar read by several targets, or by every build of a target, is extracted once
+ * and then hard linked into the request, see [SourceJarExtractor].
+ */
+class SourceJarCache internal constructor(
+  private val cache: DiskCache,
+) {
+  private val fingerprints = InputFingerprints()
+
+  /** Returns the cache for the source jars of the request of [context]. */
+  fun treeCache(context: CompilationTaskContext): SourceJarExtractor.TreeCache =
+    SourceJarExtractor.TreeCache { jar, extract ->
+      val key = InputFingerprints.toHex(
+        MessageDigest.getInstance("SHA-256").digest(fingerprints.contentDigest(context, jar)),
+      )
+      cache.get(key) ?: cache.put(key) { dir ->
+        extract(dir)
+        true
+      }
+    }
+
+  companion object {
+    private const val MAX_BYTES = 1L shl 30
+
+    /** Creates a cache in the temp directory of the worker, bounded to 1 GiB. */
+    @JvmStatic
+    fun create(): SourceJarCache =
+      SourceJarCache(DiskCache.inTempDirectory(name = "source-jars", maxBytes = MAX_BYTES))
+
+    /** Creates a cache rooted in [root], bounded to 1 GiB. The root is cleared on first use. */
+    @JvmStatic
+    fun create(root: Path): SourceJarCache =
+      SourceJarCache(DiskCache(root = root, maxBytes = MAX_BYTES))
+  }
+}
@@ -19,12 +19,17 @@ package io.bazel.kotlin.builder.toolchain
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.PrintStream
+import java.nio.file.Path
 
-class CompilationTaskContext(
+class CompilationTaskContext @JvmOverloads constructor(
   private val label: String,
   debug: List<String>,
   private val out: PrintStream,
   private val executionRoot: String,
+  /** Directory the request paths are relative to, the sandbox directory for sandboxed requests. */
+  @JvmField val workingDir: Path = Path.of(executionRoot),
+  /** Digests of the request inputs reported through the worker protocol, keyed by input path. */
+  @JvmField val inputDigests: Map<String, String> = emptyMap(),
 ) {
   private val start = System.currentTimeMillis()
   private var timings: MutableList<String>?
@@ -99,10 +104,19 @@ class CompilationTaskContext(
     compiler: KotlincInvoker,
     printOnFail: Boolean = true,
     printOnSuccess: Boolean = true,
+  ): List<String> = executeTool(printOnFail, printOnSuccess) { compiler.compile(args, it) }
+
+  /**
+   * Execute a tool that reports like the compiler, see [executeCompilerTask].
+   */
+  fun executeTool(
+    printOnFail: Boolean = true,
+    printOnSuccess: Boolean = true,
+    tool: (PrintStream) -> Int,
   ): List<String> {
     val outputStream = ByteArrayOutputStream()
     val ps = PrintStream(outputStream)
-    val result = compiler.compile(args, ps)
+    val result = tool(ps)
     val output = ByteArrayInputStream(outputStream.toByteArray()).bufferedReader().readLines()
     if (result != 0) {
       if (printOnFail) {
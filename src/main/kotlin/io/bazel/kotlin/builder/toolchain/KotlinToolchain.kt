@@ -17,16 +17,32 @@
 package io.bazel.kotlin.builder.toolchain
 
 import io.bazel.kotlin.builder.utils.resolveVerifiedFromProperty
+import java.io.InputStream
 import java.io.PrintStream
+import java.io.PrintWriter
 import java.lang.invoke.MethodHandle
 import java.lang.invoke.MethodHandles
 import java.lang.invoke.MethodType
+import java.net.URI
 import java.net.URLClassLoader
+import java.nio.charset.StandardCharsets
 import java.nio.file.Path
+import java.nio.file.Paths
+import javax.tools.FileObject
+import javax.tools.ForwardingJavaFileManager
+import javax.tools.ForwardingJavaFileObject
+import javax.tools.JavaCompiler
+import javax.tools.JavaFileManager
+import javax.tools.JavaFileObject
+import javax.tools.StandardJavaFileManager
+import javax.tools.StandardLocation
+import javax.tools.ToolProvider
 
 class KotlinToolchain private constructor(
   private val baseJars: List<Path>,
+  private val ksp2BaseJars: List<Path>,
   @JvmField val skipCodeGen: CompilerPlugin,
+  @JvmField val jdepsGen: CompilerPlugin,
   @JvmField val kspSymbolProcessingApi: CompilerPlugin,
   @JvmField val kspSymbolProcessingCommandLine: CompilerPlugin,
 ) {
@@ -39,6 +55,10 @@ class KotlinToolchain private constructor(
       resolveVerifiedFromProperty("@rules_kotlin...skip-code-gen")
     }
 
+    private val JDEPS_GEN_PLUGIN by lazy {
+      resolveVerifiedFromProperty("@rules_kotlin...jdeps-gen")
+    }
+
     private val KSP_SYMBOL_PROCESSING_API by lazy {
       resolveVerifiedFromProperty("@com_github_google_ksp...symbol-processing-api")
     }
@@ -47,6 +67,14 @@ class KotlinToolchain private constructor(
       resolveVerifiedFromProperty("@com_github_google_ksp...symbol-processing-cmdline")
     }
 
+    private val KSP2_AA_EMBEDDABLE by lazy {
+      resolveVerifiedFromProperty("@com_github_google_ksp...symbol-processing-aa-embeddable")
+    }
+
+    private val KSP2_COMMON_DEPS by lazy {
+      resolveVerifiedFromProperty("@com_github_google_ksp...symbol-processing-common-deps")
+    }
+
     private val KOTLIN_REFLECT by lazy {
       resolveVerifiedFromProperty("@rules_kotlin..kotlin.compiler.kotlin-reflect")
     }
@@ -56,6 +84,7 @@ class KotlinToolchain private constructor(
         kotlinc = resolveVerifiedFromProperty("@com_github_jetbrains_kotlin...kotlin-compiler"),
         compiler = COMPILER,
         skipCodeGenFile = SKIP_CODE_GEN_PLUGIN,
+        jdepsGenFile = JDEPS_GEN_PLUGIN,
         kspSymbolProcessingApi = KSP_SYMBOL_PROCESSING_API,
         kspSymbolProcessingCommandLine = KSP_SYMBOL_PROCESSING_CMDLINE,
         kotlinxSerializationCoreJvm = resolveVerifiedFromProperty("@com_github_jetbrains_kotlinx...serialization-core-jvm"),
@@ -68,6 +97,7 @@ class KotlinToolchain private constructor(
       kotlinc: Path,
       compiler: Path,
       skipCodeGenFile: Path,
+      jdepsGenFile: Path,
       kspSymbolProcessingApi: Path,
       kspSymbolProcessingCommandLine: Path,
       kotlinxSerializationCoreJvm: Path,
@@ -82,13 +112,16 @@ class KotlinToolchain private constructor(
           // (and a NoClassDef err) in the compiler extension interfaces.
           // This may cause issues in accepting user defined compiler plugins.
           skipCodeGenFile,
+          jdepsGenFile,
           kspSymbolProcessingApi,
           kspSymbolProcessingCommandLine,
           kotlinxSerializationCoreJvm,
           kotlinxSerializationJson,
           kotlinxSerializationJsonJvm,
         ),
+        ksp2BaseJars = listOf(kotlinc, compiler, kspSymbolProcessingApi),
         skipCodeGen = CompilerPlugin(skipCodeGenFile, "io.bazel.kotlin.plugin.SkipCodeGen"),
+        jdepsGen = CompilerPlugin(jdepsGenFile, "io.bazel.kotlin.plugin.jdeps.JDepsGen"),
         kspSymbolProcessingApi = CompilerPlugin(
           kspSymbolProcessingApi.toAbsolutePath(),
           "com.google.devtools.ksp.symbol-processing",
@@ -102,6 +135,12 @@ class KotlinToolchain private constructor(
   }
 
   fun getBaseJarsWithReflect(): List<Path> = baseJars + listOf(KOTLIN_REFLECT)
+
+  /**
+   * Jars of the standalone KSP2 engine. It bundles a relocated copy of the compiler, so it gets a
+   * class loader of its own and is only resolved by toolchains that opt into it.
+   */
+  fun getKsp2Jars(): List<Path> = ksp2BaseJars + listOf(KSP2_AA_EMBEDDABLE, KSP2_COMMON_DEPS)
 }
 
 data class CompilerPlugin(
@@ -109,25 +148,40 @@ data class CompilerPlugin(
   @JvmField val id: String,
 )
 
+private fun createClassLoader(baseJars: List<Path>): ClassLoader =
+  try {
+    // not system, but platform as parent - we should not include app classpath, only platform (JDK)
+    URLClassLoader(
+      baseJars.map { it.toUri().toURL() }.toTypedArray(),
+      ClassLoader.getPlatformClassLoader(),
+    )
+  } catch (e: Exception) {
+    throw RuntimeException(baseJars.toString(), e)
+  }
+
+private fun findExecMethod(
+  classloader: ClassLoader,
+  className: String,
+): MethodHandle {
+  return MethodHandles.lookup().findStatic(
+    classloader.loadClass(className),
+    "exec",
+    MethodType.methodType(Integer.TYPE, PrintStream::class.java, Array<String>::class.java),
+  )
+}
+
 class KotlincInvoker(baseJars: List<Path>) {
   private val execMethod: MethodHandle
+  private val stripMethod: MethodHandle
 
   init {
     System.setProperty("zip.handler.uses.crc.instead.of.timestamp", "true")
-
-    val classloader = try {
-      // not system, but platform as parent - we should not include app classpath, only platform (JDK)
-      URLClassLoader(
-        baseJars.map { it.toUri().toURL() }.toTypedArray(),
-        ClassLoader.getPlatformClassLoader(),
-      )
-    } catch (e: Exception) {
-      throw RuntimeException(baseJars.toString(), e)
-    }
-    execMethod = MethodHandles.lookup().findStatic(
-      classloader.loadClass("io.bazel.kotlin.compiler.BazelK2JVMCompiler"),
-      "exec",
-      MethodType.methodType(Integer.TYPE, PrintStream::class.java, Array<String>::class.java),
+    val classloader = createClassLoader(baseJars)
+    execMethod = findExecMethod(classloader, "io.bazel.kotlin.compiler.BazelK2JVMCompiler")
+    stripMethod = MethodHandles.lookup().findStatic(
+      classloader.loadClass("io.bazel.kotlin.compiler.BazelAbiStripper"),
+      "strip",
+      MethodType.methodType(ByteArray::class.java, ByteArray::class.java),
     )
   }
 
@@ -141,4 +195,116 @@ class KotlincInvoker(baseJars: List<Path>) {
   ): Int {
     return execMethod.invokeExact(out, args.toTypedArray()) as Int
   }
+
+  /**
+   * Returns the header class of the class file [bytes]: method bodies are dropped, except those of
+   * the Kotlin inline functions, which the compiler reads from the classes of dependencies.
+   */
+  fun stripAbi(bytes: ByteArray): ByteArray = stripMethod.invokeExact(bytes) as ByteArray
+}
+
+/**
+ * Runs KSP2 in the worker JVM. Arguments are `name=value` pairs understood by
+ * `io.bazel.kotlin.compiler.BazelKsp2Runner`.
+ */
+class Ksp2Invoker(jars: List<Path>) {
+  private val execMethod =
+    findExecMethod(createClassLoader(jars), "io.bazel.kotlin.compiler.BazelKsp2Runner")
+
+  fun run(
+    args: List<String>,
+    out: PrintStream,
+  ): Int {
+    return execMethod.invokeExact(out, args.toTypedArray()) as Int
+  }
+}
+
+/**
+ * Runs the javac of the worker JDK in process through `javax.tools`, sparing mixed targets a
+ * JavaBuilder action.
+ */
+class JavacInvoker {
+  private val javac: JavaCompiler = checkNotNull(ToolProvider.getSystemJavaCompiler()) {
+    "the worker JVM has no Java compiler"
+  }
+
+  /**
+   * Compiles [sources] with the javac [options], reporting to [out]. The classpath jars javac read
+   * classes from are added to [usedJars], the jdeps of the target tell its dependents about them.
+   */
+  fun compile(
+    options: List<String>,
+    sources: List<Path>,
+    out: PrintStream,
+    usedJars: MutableSet<Path>,
+  ): Int {
+    val writer = PrintWriter(out)
+    javac.getStandardFileManager(null, null, StandardCharsets.UTF_8).use { fileManager ->
+      val success = javac
+        .getTask(
+          writer,
+          UsageRecordingFileManager(fileManager, usedJars),
+          null,
+          options,
+          null,
+          fileManager.getJavaFileObjectsFromPaths(sources),
+        ).call()
+      writer.flush()
+      return if (success) 0 else 1
+    }
+  }
+}
+
+/**
+ * Records the jars of the classes javac reads from the classpath. Listing a package does not make
+ * its jar used, only reading one of its classes does.
+ */
+private class UsageRecordingFileManager(
+  fileManager: StandardJavaFileManager,
+  private val usedJars: MutableSet<Path>,
+) : ForwardingJavaFileManager<StandardJavaFileManager>(fileManager) {
+  override fun list(
+    location: JavaFileManager.Location,
+    packageName: String,
+    kinds: Set<JavaFileObject.Kind>,
+    recurse: Boolean,
+  ): Iterable<JavaFileObject> {
+    val files = super.list(location, packageName, kinds, recurse)
+    if (location != StandardLocation.CLASS_PATH) {
+      return files
+    }
+    return files.map { UsageRecordingFileObject(it, usedJars) }
+  }
+
+  override fun inferBinaryName(
+    location: JavaFileManager.Location,
+    file: JavaFileObject,
+  ): String? = super.inferBinaryName(location, unwrap(file))
+
+  override fun isSameFile(
+    a: FileObject,
+    b: FileObject,
+  ): Boolean = super.isSameFile(unwrap(a), unwrap(b))
+
+  // the standard file manager only knows its own file objects
+  private fun <T : FileObject> unwrap(file: T): T =
+    @Suppress("UNCHECKED_CAST")
+    if (file is UsageRecordingFileObject) file.delegate as T else file
+}
+
+private class UsageRecordingFileObject(
+  fileObject: JavaFileObject,
+  private val usedJars: MutableSet<Path>,
+) : ForwardingJavaFileObject<JavaFileObject>(fileObject) {
+  val delegate: JavaFileObject
+    get() = fileObject
+
+  override fun openInputStream(): InputStream {
+    val uri = toUri()
+    // jar entries are jar:file:///path/to.jar!/package/Class.class
+    if (uri.scheme == "jar") {
+      usedJars.add(Paths.get(URI(uri.rawSchemeSpecificPart.substringBefore("!/"))))
+    }
+    return super.openInputStream()
+  }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.builder.utils
+
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.io.path.ExperimentalPathApi
+import kotlin.io.path.deleteRecursively
+import kotlin.io.path.walk
+
+/**
+ * A size bounded, least recently used directory cache owned by a single worker process.
+ *
+ * Every entry is a directory named after its key. Entries are populated in a staging directory
+ * and atomically moved into place, so a reader either sees a complete entry or none at all.
+ * The cache lives only as long as the worker: the root is cleared when the cache is first used
+ * and deleted on shutdown, Bazel remains the source of truth for anything persistent.
+ */
+@OptIn(ExperimentalPathApi::class)
+class DiskCache(
+  private val root: Path,
+  private val maxBytes: Long,
+) {
+  private val entries = LinkedHashMap<String, Long>(16, 0.75f, true)
+  private var totalBytes = 0L
+  private var initialized = false
+  private val stagingCounter = AtomicLong()
+
+  /**
+   * Returns the entry directory for [key] or null if it is not cached. The returned directory
+   * must be treated as read-only, and as it may be evicted concurrently, callers treat an
+   * [IOException] while reading it as a cache miss.
+   */
+  fun get(key: String): Path? = synchronized(this) {
+    if (entries[key] == null) null else root.resolve(key)
+  }
+
+  /**
+   * Populates the entry for [key] by calling [populate] with an empty staging directory. The entry
+   * is discarded if [populate] returns false or fails. Returns the entry directory if stored.
+   */
+  fun put(
+    key: String,
+    populate: (dir: Path) -> Boolean,
+  ): Path? {
+    val staging = synchronized(this) {
+      ensureRoot()
+      root.resolve("staging").resolve(stagingCounter.incrementAndGet().toString())
+    }
+    Files.createDirectories(staging)
+    try {
+      if (!populate(staging)) {
+        return null
+      }
+      val size = sizeOf(staging)
+      if (size > maxBytes) {
+        return null
+      }
+      synchronized(this) {
+        val target = root.resolve(key)
+        if (entries.containsKey(key)) {
+          return target
+        }
+        Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE)
+        entries[key] = size
+        totalBytes += size
+        evict()
+        return if (entries.containsKey(key)) target else null
+      }
+    } catch (e: IOException) {
+      return null
+    } finally {
+      staging.deleteRecursively()
+    }
+  }
+
+  /** Drops the entry for [key] if present. */
+  fun remove(key: String) {
+    synchronized(this) {
+      val size = entries.remove(key) ?: return
+      totalBytes -= size
+      root.resolve(key).deleteRecursively()
+    }
+  }
+
+  private fun evict() {
+    val iterator = entries.entries.iterator()
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      val (key, size) = iterator.next()
+      iterator.remove()
+      totalBytes -= size
+      root.resolve(key).deleteRecursively()
+    }
+  }
+
+  private fun ensureRoot() {
+    if (initialized) {
+      return
+    }
+    root.deleteRecursively()
+    Files.createDirectories(root)
+    Runtime.getRuntime().addShutdownHook(Thread { root.deleteRecursively() })
+    initialized = true
+  }
+
+  private fun sizeOf(dir: Path): Long =
+    dir.walk().sumOf { Files.size(it) }
+
+  companion object {
+    /**
+     * Creates a cache rooted in the system temp directory, unique to the current process so
+     * multiple workers on the same machine never share entries.
+     */
+    @JvmStatic
+    fun inTempDirectory(
+      name: String,
+      maxBytes: Long,
+    ): DiskCache =
+      DiskCache(
+        root = Path.of(System.getProperty("java.io.tmpdir"))
+          .resolve("rules_kotlin-$name-${ProcessHandle.current().pid()}"),
+        maxBytes = maxBytes,
+      )
+  }
+}
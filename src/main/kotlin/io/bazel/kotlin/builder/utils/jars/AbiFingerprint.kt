@@ -0,0 +1,316 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.builder.utils.jars
+
+import java.nio.ByteBuffer
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.zip.ZipFile
+
+/**
+ * Fingerprints the part of a jar that is visible to a compiler using it as a dependency.
+ *
+ * For Java classes only non-private members, their descriptors, generic signatures, annotations,
+ * thrown exceptions and constant values are taken into account, so changing a method body or a
+ * private member keeps the fingerprint stable. Kotlin classes are fingerprinted as a whole:
+ * inline function bodies are copied into call sites and telling them apart from regular functions
+ * requires decoding the Kotlin metadata. Resources are fingerprinted by name and CRC.
+ */
+object AbiFingerprint {
+  private const val ACC_PRIVATE = 0x0002
+  private const val KOTLIN_METADATA = "Lkotlin/Metadata;"
+
+  /** Returns the SHA-256 fingerprint of the jar at [path]. */
+  @JvmStatic
+  fun of(path: Path): ByteArray {
+    val digest = MessageDigest.getInstance("SHA-256")
+    ZipFile(path.toFile()).use { zip ->
+      val entries = zip.entries().asSequence()
+        .filter { !it.isDirectory }
+        .sortedBy { it.name }
+        .toList()
+      for (entry in entries) {
+        updateString(digest, entry.name)
+        if (entry.name.endsWith(".class") && !entry.name.endsWith("module-info.class")) {
+          updateWithClass(digest, zip.getInputStream(entry).use { it.readBytes() })
+        } else {
+          updateLong(digest, entry.crc)
+          updateLong(digest, entry.size)
+        }
+      }
+    }
+    return digest.digest()
+  }
+
+  /** Updates [digest] with the ABI of the class file [bytes]. */
+  internal fun updateWithClass(
+    digest: MessageDigest,
+    bytes: ByteArray,
+  ) {
+    val reader = try {
+      ClassReader(bytes)
+    } catch (e: RuntimeException) {
+      // not something we understand, be conservative
+      digest.update(bytes)
+      return
+    }
+    if (reader.isKotlin) {
+      digest.update(bytes)
+      return
+    }
+    try {
+      reader.accept(digest)
+    } catch (e: RuntimeException) {
+      digest.update(bytes)
+    }
+  }
+
+  private fun updateString(
+    digest: MessageDigest,
+    value: String,
+  ) {
+    digest.update(value.toByteArray())
+    digest.update(0)
+  }
+
+  private fun updateLong(
+    digest: MessageDigest,
+    value: Long,
+  ) {
+    for (shift in 56 downTo 0 step 8) {
+      digest.update((value ushr shift).toByte())
+    }
+  }
+
+  private class ClassReader(
+    private val bytes: ByteArray,
+  ) {
+    private val buffer = ByteBuffer.wrap(bytes)
+    private val version: Int
+    private val offsets: IntArray
+    private val strings: Array<String?>
+    private val membersStart: Int
+
+    init {
+      check(buffer.getInt() == 0xCAFEBABE.toInt()) { "not a class file" }
+      version = buffer.getInt()
+      val poolSize = u2()
+      offsets = IntArray(poolSize)
+      strings = arrayOfNulls(poolSize)
+      var index = 1
+      while (index < poolSize) {
+        offsets[index] = buffer.position()
+        when (val tag = buffer.get().toInt()) {
+          1 -> {
+            val length = u2()
+            strings[index] = String(bytes, buffer.position(), length, Charsets.UTF_8)
+            skip(length)
+          }
+          3, 4, 9, 10, 11, 12, 17, 18 -> skip(4)
+          5, 6 -> {
+            skip(8)
+            index++
+          }
+          7, 8, 16, 19, 20 -> skip(2)
+          15 -> skip(3)
+          else -> error("unknown constant pool tag $tag")
+        }
+        index++
+      }
+      membersStart = buffer.position()
+    }
+
+    val isKotlin: Boolean
+      get() = strings.any { it == KOTLIN_METADATA }
+
+    fun accept(digest: MessageDigest) {
+      buffer.position(membersStart)
+      digest.update(version.toByte())
+      updateInt(digest, u2())
+      updateString(digest, className(u2()))
+      updateString(digest, className(u2()))
+      repeat(u2()) { updateString(digest, className(u2())) }
+      repeat(2) {
+        repeat(u2()) {
+          val access = u2()
+          val name = utf8(u2())
+          val descriptor = utf8(u2())
+          if (access and ACC_PRIVATE == 0) {
+            updateInt(digest, access)
+            updateString(digest, name)
+            updateString(digest, descriptor)
+            attributes(digest)
+          } else {
+            skipAttributes()
+          }
+        }
+      }
+      attributes(digest)
+    }
+
+    private fun attributes(digest: MessageDigest) {
+      repeat(u2()) {
+        val name = utf8(u2())
+        val length = buffer.getInt()
+        val end = buffer.position() + length
+        when (name) {
+          "Signature" -> {
+            updateString(digest, name)
+            updateString(digest, utf8(u2()))
+          }
+          "ConstantValue" -> {
+            updateString(digest, name)
+            constant(digest, u2())
+          }
+          "Exceptions", "PermittedSubclasses" -> {
+            updateString(digest, name)
+            repeat(u2()) { updateString(digest, className(u2())) }
+          }
+          "InnerClasses" -> {
+            updateString(digest, name)
+            repeat(u2()) {
+              updateString(digest, className(u2()))
+              updateString(digest, className(u2()))
+              updateString(digest, utf8(u2()))
+              updateInt(digest, u2())
+            }
+          }
+          "RuntimeVisibleAnnotations", "RuntimeInvisibleAnnotations" -> {
+            updateString(digest, name)
+            repeat(u2()) { annotation(digest) }
+          }
+          "RuntimeVisibleParameterAnnotations", "RuntimeInvisibleParameterAnnotations" -> {
+            updateString(digest, name)
+            repeat(buffer.get().toInt() and 0xFF) {
+              digest.update(0)
+              repeat(u2()) { annotation(digest) }
+            }
+          }
+          "RuntimeVisibleTypeAnnotations", "RuntimeInvisibleTypeAnnotations" -> {
+            updateString(digest, name)
+            repeat(u2()) { typeAnnotation(digest) }
+          }
+          "AnnotationDefault" -> {
+            updateString(digest, name)
+            elementValue(digest)
+          }
+          "Record" -> {
+            updateString(digest, name)
+            repeat(u2()) {
+              updateString(digest, utf8(u2()))
+              updateString(digest, utf8(u2()))
+              attributes(digest)
+            }
+          }
+          "Deprecated", "Synthetic" -> updateString(digest, name)
+          // Code, debug information, nest members and the like are not visible to a compiler
+          else -> {}
+        }
+        buffer.position(end)
+      }
+    }
+
+    private fun skipAttributes() {
+      repeat(u2()) {
+        skip(2)
+        skip(buffer.getInt())
+      }
+    }
+
+    private fun annotation(digest: MessageDigest) {
+      updateString(digest, utf8(u2()))
+      repeat(u2()) {
+        updateString(digest, utf8(u2()))
+        elementValue(digest)
+      }
+    }
+
+    private fun typeAnnotation(digest: MessageDigest) {
+      val targetType = buffer.get().toInt() and 0xFF
+      digest.update(targetType.toByte())
+      val targetInfoSize = when (targetType) {
+        0x00, 0x01, 0x16 -> 1
+        0x10, 0x17, 0x42, 0x43, 0x44, 0x45, 0x46, 0x11, 0x12 -> 2
+        0x13, 0x14, 0x15 -> 0
+        0x47, 0x48, 0x49, 0x4A, 0x4B -> 3
+        0x40, 0x41 -> {
+          val length = u2()
+          skip(length * 6)
+          0
+        }
+        else -> error("unknown type annotation target $targetType")
+      }
+      repeat(targetInfoSize) { digest.update(buffer.get()) }
+      val pathLength = buffer.get().toInt() and 0xFF
+      repeat(pathLength * 2) { digest.update(buffer.get()) }
+      annotation(digest)
+    }
+
+    private fun elementValue(digest: MessageDigest) {
+      val tag = buffer.get().toInt().toChar()
+      digest.update(tag.code.toByte())
+      when (tag) {
+        'B', 'C', 'D', 'F', 'I', 'J', 'S', 'Z', 's' -> constant(digest, u2())
+        'e' -> {
+          updateString(digest, utf8(u2()))
+          updateString(digest, utf8(u2()))
+        }
+        'c' -> updateString(digest, utf8(u2()))
+        '@' -> annotation(digest)
+        '[' -> repeat(u2()) { elementValue(digest) }
+        else -> error("unknown element value tag $tag")
+      }
+    }
+
+    /** Writes the value of a constant pool entry, independent of its position in the pool. */
+    private fun constant(
+      digest: MessageDigest,
+      index: Int,
+    ) {
+      val offset = offsets[index]
+      val tag = bytes[offset].toInt()
+      digest.update(tag.toByte())
+      when (tag) {
+        1 -> updateString(digest, strings[index]!!)
+        3, 4 -> digest.update(bytes, offset + 1, 4)
+        5, 6 -> digest.update(bytes, offset + 1, 8)
+        8 -> updateString(digest, utf8(readU2(offset + 1)))
+        else -> error("unexpected constant tag $tag")
+      }
+    }
+
+    private fun className(index: Int): String =
+      if (index == 0) "" else utf8(readU2(offsets[index] + 1))
+
+    private fun utf8(index: Int): String = if (index == 0) "" else strings[index]!!
+
+    private fun readU2(offset: Int): Int = buffer.getShort(offset).toInt() and 0xFFFF
+
+    private fun u2(): Int = buffer.getShort().toInt() and 0xFFFF
+
+    private fun skip(count: Int) {
+      buffer.position(buffer.position() + count)
+    }
+
+    private fun updateInt(
+      digest: MessageDigest,
+      value: Int,
+    ) {
+      digest.update((value ushr 8).toByte())
+      digest.update(value.toByte())
+    }
+  }
+}
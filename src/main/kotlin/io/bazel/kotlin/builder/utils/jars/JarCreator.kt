@@ -15,87 +15,264 @@
  */
 package io.bazel.kotlin.builder.utils.jars
 
-import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
 import java.nio.file.Files
 import java.nio.file.NoSuchFileException
 import java.nio.file.Path
 import java.nio.file.attribute.BasicFileAttributes
 import java.util.*
 import java.util.jar.Attributes
-import java.util.jar.JarEntry
-import java.util.jar.JarOutputStream
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ForkJoinPool
 import java.util.jar.Manifest
 import java.util.zip.CRC32
-import java.util.zip.ZipEntry
 
 /**
  * A class for creating Jar files. Allows normalization of Jar entries by setting their timestamp to
  * the DOS epoch. All Jar entries are sorted alphabetically.
+ *
+ * Entries are STORED unless [compress] is set, in which case file entries added by [addDirectory]
+ * and [addEntries] are DEFLATED in parallel, each with its own compressor, keeping the output
+ * deterministic.
+ *
+ * When a [previous] version of the jar is given, file entries whose name, size, CRC-32 and
+ * compression match an entry of it are copied from it as raw bytes, so unchanged entries are not
+ * compressed again. The output is the same as without it.
  */
 @Suppress("unused")
 class JarCreator(
   path: Path,
   private val targetLabel: String,
   private val injectingRuleKind: String,
+  private val compress: Boolean = false,
+  previous: Path? = null,
 ) : AutoCloseable {
-  // map from Jar entry names to files
-  private val jarEntries = HashMap<String, Path>()
+  // names of the Jar entries written so far
+  private val jarEntries = HashSet<String>()
+  // manifest found in the added content, merged into the one written on close
+  private var existingManifest: InputStream? = null
   private var mainClass: String? = null
+  // service files of added jars, concatenated in the order the jars were added
+  private val services = TreeMap<String, ByteArrayOutputStream>()
 
-  private val output = JarOutputStream(BufferedOutputStream(Files.newOutputStream(path)))
+  private val previousJar: ZipReader? = previous?.let {
+    try {
+      ZipReader(it)
+    } catch (_: IOException) {
+      // not worth failing the build for, everything is written from scratch
+      null
+    }
+  }
+  private val previousEntries: Map<String, ZipReader.Entry> =
+    previousJar?.entries?.associateBy { it.name } ?: emptyMap()
+
+  private val output = ZipWriter(path)
 
   /**
    * Adds the contents of a directory to the Jar file. All files below this directory will be added
    * to the Jar file using the name relative to the directory as the name for the Jar entry.
    *
+   * Directories are listed and files are read and checksummed on the fork-join pool, ahead of the
+   * entries being written in order on the calling thread. At most [MAX_IN_FLIGHT_BYTES] of file
+   * content is held in memory at a time, the output is the same as when adding sequentially.
+   *
    * @param startDir the directory to add to the jar
    */
   fun addDirectory(startDir: Path) {
     val localPrefixLength = startDir.toString().length + 1
-    val dirCandidates = ArrayDeque<Path>()
-    dirCandidates.add(startDir)
-    val tempList = ArrayList<Path>()
-    while (true) {
-      val dir = dirCandidates.pollFirst() ?: break
-      tempList.clear()
-      val dirStream = try {
-        Files.newDirectoryStream(dir)
-      } catch (_: NoSuchFileException) {
-        continue
-      }
+    val pending = ArrayDeque<PendingEntry>()
+    var inFlightBytes = 0L
 
-      dirStream.use {
-        tempList.addAll(it)
-      }
+    fun writeNext() {
+      inFlightBytes -= writePending(pending.removeFirst())
+    }
 
-      tempList.sort()
-      for (file in tempList) {
-        val attributes = Files.readAttributes(file, BasicFileAttributes::class.java)
+    val dirCandidates = ArrayDeque<CompletableFuture<List<Child>>>()
+    dirCandidates.add(listAsync(startDir))
+    while (true) {
+      val children = join(dirCandidates.pollFirst() ?: break)
+      for (child in children) {
+        val file = child.path
         var key = file.toString().substring(localPrefixLength).replace(File.separatorChar, '/')
-        if (attributes.isDirectory) {
-          dirCandidates.add(file)
+        if (child.isDirectory) {
+          dirCandidates.add(listAsync(file))
           key += "/"
 
-          if (jarEntries.put(key, file) == null) {
-            writeDirEntry(output = output, name = key)
+          if (jarEntries.add(key)) {
+            pending.add(PendingEntry(key = key))
+          }
+        } else if (jarEntries.add(key)) {
+          if (key == JarHelper.MANIFEST_NAME) {
+            existingManifest = Files.newInputStream(file)
+          } else if (!compress && child.size > ZipWriter.MAX_BUFFERED_SIZE) {
+            // large files are mapped rather than read, only the checksum is computed ahead
+            val crc = CompletableFuture.supplyAsync({ ZipWriter.crcOf(file, child.size) }, POOL)
+            pending.add(PendingEntry(key = key, file = file, size = child.size, crc = crc))
+          } else {
+            while (pending.isNotEmpty() && inFlightBytes + child.size > MAX_IN_FLIGHT_BYTES) {
+              writeNext()
+            }
+            inFlightBytes += child.size
+            val content = CompletableFuture.supplyAsync({
+              contentOf(key, Files.readAllBytes(file))
+            }, POOL)
+            pending.add(PendingEntry(key = key, size = child.size, content = content))
+          }
+        }
+      }
+    }
+    while (pending.isNotEmpty()) {
+      writeNext()
+    }
+  }
+
+  /**
+   * Adds in-memory file contents to the Jar file. The entries are written exactly as if [files] had
+   * been written to a directory passed to [addDirectory], including the order and the directory
+   * entries.
+   *
+   * @param files file contents by Jar entry name
+   */
+  fun addEntries(files: Map<String, ByteArray>) {
+    val contents = HashMap<String, CompletableFuture<FileContent>>()
+    for ((name, data) in files) {
+      contents[name] = CompletableFuture.supplyAsync({ contentOf(name, data) }, POOL)
+    }
+
+    for (key in directoryOrder(files.keys)) {
+      if (!jarEntries.add(key)) {
+        continue
+      }
+      if (key.endsWith("/")) {
+        output.writeDirectory(key)
+      } else if (key == JarHelper.MANIFEST_NAME) {
+        existingManifest = ByteArrayInputStream(files.getValue(key))
+      } else {
+        writeContent(key, join(contents.getValue(key)))
+      }
+    }
+  }
+
+  /**
+   * Adds the entries of another Jar file, in their order in that file, without inflating them.
+   * Missing parent directory entries are added, service files are concatenated and the manifest is
+   * replaced by the one written on close, the way singlejar merges jars.
+   *
+   * @param jar the Jar file to copy entries from
+   */
+  fun addJar(jar: Path) {
+    ZipReader(jar).use { input ->
+      for (entry in input.entries) {
+        val key = entry.name
+        if (key == JarHelper.MANIFEST_NAME || key == BUILD_DATA_NAME) {
+          continue
+        }
+        addParentDirectories(key)
+        if (entry.isDirectory) {
+          if (jarEntries.add(key)) {
+            output.writeDirectory(key)
           }
-        } else
-          if (jarEntries.put(key, file) == null && key != JarHelper.MANIFEST_NAME) {
-            writeEntry(output = output, name = key, path = file, size = attributes.size())
+        } else if (
+          key.startsWith(JarHelper.SERVICES_DIR) && (key in services || jarEntries.add(key))
+        ) {
+          val content = services.getOrPut(key) { ByteArrayOutputStream() }
+          if (content.size() > 0 && content.toByteArray().last() != '\n'.code.toByte()) {
+            content.write('\n'.code)
           }
+          content.write(input.read(entry))
+        } else if (jarEntries.add(key)) {
+          output.writeRawEntry(input, entry)
+        }
       }
     }
   }
 
+  private fun contentOf(
+    name: String,
+    bytes: ByteArray,
+  ): FileContent {
+    val crc = CRC32()
+    crc.update(bytes)
+    val previous = previousEntry(name, crc.value, bytes.size.toLong())
+    val compressed = if (compress && previous == null) ZipWriter.deflate(bytes) else null
+    return FileContent(bytes, crc.value, compressed, previous)
+  }
+
+  /** Returns the entry of the previous jar that can be copied for the given content, if any. */
+  private fun previousEntry(
+    name: String,
+    crc: Long,
+    size: Long,
+  ): ZipReader.Entry? =
+    previousEntries[name]?.takeIf {
+      it.crc == crc && it.size == size && (it.method == ZipReader.DEFLATED) == compress
+    }
+
+  /** Writes [entry], waiting for its content, and returns the size of content it held. */
+  private fun writePending(entry: PendingEntry): Long {
+    val content = entry.content
+    val crc = entry.crc
+    when {
+      content != null -> {
+        writeContent(entry.key, join(content))
+        return entry.size
+      }
+      crc != null -> {
+        output.writeEntry(
+          name = entry.key,
+          file = entry.file!!,
+          size = entry.size,
+          crc = join(crc),
+        )
+      }
+      else -> output.writeDirectory(entry.key)
+    }
+    return 0
+  }
+
+  private fun writeContent(
+    name: String,
+    content: FileContent,
+  ) {
+    val compressed = content.compressed
+    val previous = content.previous
+    if (previous != null) {
+      output.writeRawEntry(previousJar!!, previous)
+    } else if (compressed == null) {
+      output.writeEntry(name = name, data = ByteBuffer.wrap(content.bytes), crc = content.crc)
+    } else {
+      output.writeDeflatedEntry(
+        name = name,
+        compressed = compressed,
+        crc = content.crc,
+        size = content.bytes.size.toLong(),
+      )
+    }
+  }
+
+  private fun addParentDirectories(name: String) {
+    var end = name.indexOf('/')
+    while (end != -1 && end < name.length - 1) {
+      val directory = name.substring(0, end + 1)
+      if (jarEntries.add(directory)) {
+        output.writeDirectory(directory)
+      }
+      end = name.indexOf('/', end + 1)
+    }
+  }
+
   @Throws(IOException::class)
-  private fun manifestContentImpl(existingFile: Path?): ByteArray {
-    val manifest = if (existingFile == null) {
+  private fun manifestContentImpl(existing: InputStream?): ByteArray {
+    val manifest = if (existing == null) {
       Manifest()
     } else {
-      Files.newInputStream(existingFile).use { Manifest(it) }
+      existing.use { Manifest(it) }
     }
 
     var m = manifest
@@ -115,22 +292,115 @@ class JarCreator(
     return out.toByteArray()
   }
 
+  /** A file or directory found by [listAsync]. */
+  private class Child(
+    val path: Path,
+    val isDirectory: Boolean,
+    val size: Long,
+  )
+
+  /** An entry waiting to be written, the content of files is being read ahead. */
+  private class PendingEntry(
+    val key: String,
+    val file: Path? = null,
+    val size: Long = 0,
+    val content: CompletableFuture<FileContent>? = null,
+    val crc: CompletableFuture<Long>? = null,
+  )
+
+  private class FileContent(
+    val bytes: ByteArray,
+    val crc: Long,
+    // deflated bytes, null when stored
+    val compressed: ByteArray?,
+    // the same entry in the previous jar
+    val previous: ZipReader.Entry?,
+  )
+
   override fun close() {
     try {
+      for ((name, content) in services) {
+        output.writeEntry(name = name, data = content.toByteArray())
+      }
       // create the manifest entry in the Jar file
-      val content = manifestContentImpl(jarEntries.remove(JarHelper.MANIFEST_NAME))
-      val entry = JarEntry(JarHelper.MANIFEST_NAME)
-      entry.time = JarHelper.DEFAULT_TIMESTAMP
-      entry.size = content.size.toLong()
-      entry.method = ZipEntry.STORED
-      val crc = CRC32()
-      crc.update(content)
-      entry.crc = crc.value
-      output.putNextEntry(entry)
-      output.write(content)
-      output.closeEntry()
+      val manifest = manifestContentImpl(existingManifest)
+      output.writeEntry(name = JarHelper.MANIFEST_NAME, data = manifest)
     } finally {
+      previousJar?.close()
       output.close()
     }
   }
+
+  companion object {
+    private const val MAX_IN_FLIGHT_BYTES = 64L * 1024 * 1024
+    private const val BUILD_DATA_NAME = "build-data.properties"
+
+    private val POOL = ForkJoinPool.commonPool()
+
+    /**
+     * Returns [names] and their parent directories, directories ending with a slash, in the order
+     * [addDirectory] writes them: breadth first, each directory sorted by name.
+     */
+    private fun directoryOrder(names: Collection<String>): List<String> {
+      // children of every directory, the root being the empty string
+      val children = HashMap<String, TreeMap<String, Boolean>>()
+      for (name in names) {
+        var child = name
+        var isDirectory = false
+        while (true) {
+          val parentEnd = child.lastIndexOf('/')
+          val parent = if (parentEnd == -1) "" else child.substring(0, parentEnd)
+          val siblings = children.getOrPut(parent) { TreeMap() }
+          val isNew = siblings.put(child.substring(parentEnd + 1), isDirectory) == null
+          if (!isNew || parent.isEmpty()) {
+            break
+          }
+          child = parent
+          isDirectory = true
+        }
+      }
+
+      val ordered = ArrayList<String>(names.size)
+      val dirCandidates = ArrayDeque<String>()
+      dirCandidates.add("")
+      while (true) {
+        val dir = dirCandidates.pollFirst() ?: break
+        val entries = children[dir] ?: continue
+        val prefix = if (dir.isEmpty()) "" else "$dir/"
+        for ((name, isDirectory) in entries) {
+          if (isDirectory) {
+            dirCandidates.add(prefix + name)
+            ordered.add("$prefix$name/")
+          } else {
+            ordered.add(prefix + name)
+          }
+        }
+      }
+      return ordered
+    }
+
+    /** Lists the children of [dir] sorted by name, a missing directory has none. */
+    private fun listAsync(dir: Path): CompletableFuture<List<Child>> =
+      CompletableFuture.supplyAsync({
+        val files = ArrayList<Path>()
+        try {
+          Files.newDirectoryStream(dir).use { files.addAll(it) }
+        } catch (_: NoSuchFileException) {
+          return@supplyAsync emptyList<Child>()
+        }
+        files.sort()
+        files.map {
+          val attributes = Files.readAttributes(it, BasicFileAttributes::class.java)
+          Child(it, attributes.isDirectory, attributes.size())
+        }
+      }, POOL)
+
+    /** Waits for [future], rethrowing the failure of the task itself. */
+    internal fun <T> join(future: CompletableFuture<T>): T =
+      try {
+        future.join()
+      } catch (e: CompletionException) {
+        throw e.cause ?: e
+      }
+  }
 }
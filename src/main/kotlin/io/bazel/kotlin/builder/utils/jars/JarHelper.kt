@@ -20,9 +20,6 @@ package io.bazel.kotlin.builder.utils.jars
 
 import io.bazel.kotlin.builder.utils.jars.JarHelper.DEFAULT_TIMESTAMP
 import io.bazel.kotlin.builder.utils.jars.JarHelper.MINIMUM_TIMESTAMP_INCREMENT
-import java.io.IOException
-import java.nio.file.Files
-import java.nio.file.Path
 import java.util.*
 import java.util.jar.JarEntry
 import java.util.jar.JarFile
@@ -86,57 +83,3 @@ internal fun writeEntry(
   }
   output.closeEntry()
 }
-
-/**
- * Copies file or directory entries from the file system into the jar. Directory entries will be
- * detected and their names automatically '/' suffixed.
- */
-@Throws(IOException::class)
-internal fun writeEntry(
-  output: JarOutputStream,
-  name: String,
-  path: Path,
-  size: Long,
-) {
-  // Create a new entry
-  val outEntry = JarEntry(name)
-  outEntry.time = if (name.endsWith(".class")) {
-    DEFAULT_TIMESTAMP + MINIMUM_TIMESTAMP_INCREMENT
-  } else {
-    DEFAULT_TIMESTAMP
-  }
-  if (size <= 0L) {
-    outEntry.size = 0
-    outEntry.method = JarEntry.STORED
-    outEntry.crc = 0
-    output.putNextEntry(outEntry)
-  } else {
-    outEntry.size = size
-    outEntry.method = JarEntry.STORED
-    // ZipFile requires us to calculate the CRC-32 for any STORED entry.
-    // It would be nicer to do this via DigestInputStream, but
-    // the architecture of ZipOutputStream requires us to know the CRC-32
-    // before we write the data to the stream.
-    val bytes = Files.readAllBytes(path)
-    val crc = CRC32()
-    crc.update(bytes)
-    outEntry.crc = crc.value
-    output.putNextEntry(outEntry)
-    output.write(bytes)
-  }
-  output.closeEntry()
-}
-
-@Throws(IOException::class)
-internal fun writeDirEntry(
-  output: JarOutputStream,
-  name: String,
-) {
-  val outEntry = JarEntry(name)
-  outEntry.time = DEFAULT_TIMESTAMP
-  outEntry.size = 0
-  outEntry.method = JarEntry.STORED
-  outEntry.crc = 0
-  output.putNextEntry(outEntry)
-  output.closeEntry()
-}
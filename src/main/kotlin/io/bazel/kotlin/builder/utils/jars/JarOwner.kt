@@ -1,8 +1,14 @@
 package io.bazel.kotlin.builder.utils.jars
 
+import java.io.ByteArrayInputStream
+import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.ConcurrentHashMap
 import java.util.jar.Attributes
 import java.util.jar.JarFile
+import java.util.jar.Manifest
 
 data class JarOwner(
   @JvmField val jar: Path,
@@ -17,16 +23,54 @@ data class JarOwner(
     @JvmField
     val INJECTING_RULE_KIND = Attributes.Name("Injecting-Rule-Kind")
 
+    private const val MAX_CACHED_OWNERS = 100_000
+
+    /**
+     * Owners of the jars read so far, the worker reads the same classpath jars over and over.
+     * Bazel replaces outputs rather than rewriting them, so the file identity, size and
+     * modification time stand in for a digest of the content.
+     */
+    private val owners = ConcurrentHashMap<OwnerKey, Owner>()
+
     fun readJarOwnerFromManifest(jarPath: Path): JarOwner {
-      JarFile(jarPath.toFile()).use { jarFile ->
-        val manifest = jarFile.manifest ?: return JarOwner(jarPath)
-        val attributes = manifest.mainAttributes
-        val label =
-          attributes[TARGET_LABEL] as String?
-            ?: return JarOwner(jarPath)
-        val injectingRuleKind = attributes[INJECTING_RULE_KIND] as String?
-        return JarOwner(jarPath, label, injectingRuleKind)
+      val attributes = Files.readAttributes(jarPath, BasicFileAttributes::class.java)
+      val key = OwnerKey(
+        file = attributes.fileKey() ?: jarPath.toAbsolutePath().normalize(),
+        size = attributes.size(),
+        modified = attributes.lastModifiedTime(),
+      )
+      var owner = owners[key]
+      if (owner == null) {
+        owner = readOwner(jarPath)
+        if (owners.size >= MAX_CACHED_OWNERS) {
+          owners.clear()
+        }
+        owners[key] = owner
       }
+      return JarOwner(jarPath, owner.label, owner.aspect)
+    }
+
+    /** Reads the manifest entry alone, found through the central directory. */
+    private fun readOwner(jarPath: Path): Owner {
+      val manifest = ZipReader(jarPath).use { jar ->
+        val entry = jar.entries.firstOrNull { it.name == JarFile.MANIFEST_NAME }
+          ?: return Owner(null, null)
+        Manifest(ByteArrayInputStream(jar.read(entry)))
+      }
+      val attributes = manifest.mainAttributes
+      val label = attributes.getValue(TARGET_LABEL) ?: return Owner(null, null)
+      return Owner(label, attributes.getValue(INJECTING_RULE_KIND))
     }
   }
+
+  private data class OwnerKey(
+    val file: Any,
+    val size: Long,
+    val modified: FileTime,
+  )
+
+  private class Owner(
+    val label: String?,
+    val aspect: String?,
+  )
 }
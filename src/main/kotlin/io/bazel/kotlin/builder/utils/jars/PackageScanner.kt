@@ -0,0 +1,305 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.builder.utils.jars
+
+/**
+ * Extracts the package name of a Java or Kotlin source file from its UTF-8 bytes.
+ *
+ * Only the header is scanned: whitespace, comments, a shebang line and annotations, including
+ * `@file:` annotations and annotations with arguments, are skipped up to the `package` directive.
+ * Nothing is allocated but the returned name.
+ */
+object PackageScanner {
+  /**
+   * Returns the package declared by [source], or null if the file has no package directive before
+   * its first declaration or import.
+   *
+   * @param nestedComments whether block comments nest, as they do in Kotlin
+   */
+  @JvmStatic
+  @JvmOverloads
+  fun scan(
+    source: ByteArray,
+    nestedComments: Boolean = false,
+  ): String? = Scanner(source, nestedComments).packageName()
+
+  private class Scanner(
+    private val source: ByteArray,
+    private val nestedComments: Boolean,
+  ) {
+    private var position = 0
+
+    fun packageName(): String? {
+      skipByteOrderMark()
+      if (startsWith(SHEBANG)) {
+        skipLine()
+      }
+      while (true) {
+        skipTrivia()
+        if (position >= source.size) {
+          return null
+        }
+        if (source[position] != AT) {
+          break
+        }
+        position++
+        if (!skipAnnotation()) {
+          return null
+        }
+      }
+      if (!startsWith(PACKAGE) || isIdentifierPart(PACKAGE.size)) {
+        return null
+      }
+      position += PACKAGE.size
+      skipTrivia()
+      return qualifiedName()
+    }
+
+    /** Reads a dot separated name, dropping Kotlin backticks. */
+    private fun qualifiedName(): String? {
+      val name = StringBuilder()
+      while (true) {
+        val start = position
+        if (at('`')) {
+          val end = indexOf('`'.code.toByte(), position + 1)
+          if (end == -1) {
+            return null
+          }
+          name.append(String(source, position + 1, end - position - 1, Charsets.UTF_8))
+          position = end + 1
+        } else {
+          while (position < source.size && isIdentifierPart(0)) {
+            position++
+          }
+          if (position == start) {
+            return null
+          }
+          name.append(String(source, start, position - start, Charsets.UTF_8))
+        }
+        val afterName = position
+        skipTrivia()
+        if (!at('.')) {
+          position = afterName
+          return name.toString()
+        }
+        position++
+        skipTrivia()
+        name.append('.')
+      }
+    }
+
+    /** Skips an annotation after its `@`, returns false if it is malformed. */
+    private fun skipAnnotation(): Boolean {
+      skipTrivia()
+      if (at('[')) {
+        return skipBalanced('[', ']')
+      }
+      qualifiedName() ?: return false
+      skipTrivia()
+      if (at(':')) {
+        // use-site target, like @file:JvmName("Name") or @file:[A B]
+        position++
+        skipTrivia()
+        if (at('[')) {
+          return skipBalanced('[', ']')
+        }
+        qualifiedName() ?: return false
+        skipTrivia()
+      }
+      return !at('(') || skipBalanced('(', ')')
+    }
+
+    /** Skips a bracketed region, including nested ones, strings and comments within it. */
+    private fun skipBalanced(
+      open: Char,
+      close: Char,
+    ): Boolean {
+      var depth = 0
+      while (position < source.size) {
+        skipTrivia()
+        if (position >= source.size) {
+          break
+        }
+        when (source[position].toInt().toChar()) {
+          open -> depth++
+          close -> {
+            depth--
+            if (depth == 0) {
+              position++
+              return true
+            }
+          }
+          '"' -> {
+            skipString()
+            continue
+          }
+          '\'' -> {
+            skipQuoted('\''.code.toByte())
+            continue
+          }
+        }
+        position++
+      }
+      return false
+    }
+
+    private fun skipString() {
+      if (startsWith(RAW_STRING)) {
+        val end = indexOf(RAW_STRING, position + RAW_STRING.size)
+        position = if (end == -1) source.size else end + RAW_STRING.size
+        // a raw string may end with more quotes than the delimiter
+        while (at('"')) {
+          position++
+        }
+      } else {
+        skipQuoted('"'.code.toByte())
+      }
+    }
+
+    private fun skipQuoted(quote: Byte) {
+      position++
+      while (position < source.size) {
+        val byte = source[position++]
+        if (byte == BACKSLASH) {
+          position++
+        } else if (byte == quote || byte == NEWLINE) {
+          return
+        }
+      }
+    }
+
+    /** Skips whitespace and comments. */
+    private fun skipTrivia() {
+      while (position < source.size) {
+        val byte = source[position]
+        when {
+          byte == SPACE || byte == TAB || byte == NEWLINE || byte == RETURN -> position++
+          byte == FORM_FEED -> position++
+          startsWith(LINE_COMMENT) -> skipLine()
+          startsWith(BLOCK_COMMENT_START) -> skipBlockComment()
+          else -> return
+        }
+      }
+    }
+
+    private fun skipBlockComment() {
+      var depth = 0
+      while (position < source.size) {
+        if (startsWith(BLOCK_COMMENT_START)) {
+          if (depth == 0 || nestedComments) {
+            depth++
+          }
+          position += BLOCK_COMMENT_START.size
+        } else if (startsWith(BLOCK_COMMENT_END)) {
+          position += BLOCK_COMMENT_END.size
+          if (--depth == 0) {
+            return
+          }
+        } else {
+          position++
+        }
+      }
+    }
+
+    private fun skipLine() {
+      val end = indexOf(NEWLINE, position)
+      position = if (end == -1) source.size else end + 1
+    }
+
+    private fun skipByteOrderMark() {
+      if (startsWith(BYTE_ORDER_MARK)) {
+        position += BYTE_ORDER_MARK.size
+      }
+    }
+
+    /** Whether the byte at [offset] from the current position can be part of an identifier. */
+    private fun isIdentifierPart(offset: Int): Boolean {
+      val index = position + offset
+      if (index >= source.size) {
+        return false
+      }
+      val byte = source[index].toInt()
+      // bytes of multi-byte UTF-8 sequences are negative
+      return byte < 0 ||
+        byte in 'a'.code..'z'.code ||
+        byte in 'A'.code..'Z'.code ||
+        byte in '0'.code..'9'.code ||
+        byte == '_'.code ||
+        byte == '$'.code
+    }
+
+    private fun at(char: Char): Boolean =
+      position < source.size && source[position] == char.code.toByte()
+
+    private fun startsWith(prefix: ByteArray): Boolean {
+      if (position + prefix.size > source.size) {
+        return false
+      }
+      for (i in prefix.indices) {
+        if (source[position + i] != prefix[i]) {
+          return false
+        }
+      }
+      return true
+    }
+
+    private fun indexOf(
+      byte: Byte,
+      from: Int,
+    ): Int {
+      for (i in from until source.size) {
+        if (source[i] == byte) {
+          return i
+        }
+      }
+      return -1
+    }
+
+    private fun indexOf(
+      bytes: ByteArray,
+      from: Int,
+    ): Int {
+      val saved = position
+      try {
+        for (i in from until source.size) {
+          position = i
+          if (startsWith(bytes)) {
+            return i
+          }
+        }
+        return -1
+      } finally {
+        position = saved
+      }
+    }
+  }
+
+  private const val AT = '@'.code.toByte()
+  private const val SPACE = ' '.code.toByte()
+  private const val TAB = '\t'.code.toByte()
+  private const val NEWLINE = '\n'.code.toByte()
+  private const val RETURN = '\r'.code.toByte()
+  private const val FORM_FEED = 0x0C.toByte()
+  private const val BACKSLASH = '\\'.code.toByte()
+
+  private val PACKAGE = "package".toByteArray()
+  private val SHEBANG = "#!".toByteArray()
+  private val LINE_COMMENT = "//".toByteArray()
+  private val BLOCK_COMMENT_START = "/*".toByteArray()
+  private val BLOCK_COMMENT_END = "*/".toByteArray()
+  private val RAW_STRING = "\"\"\"".toByteArray()
+  private val BYTE_ORDER_MARK = byteArrayOf(0xEF.toByte(), 0xBB.toByte(), 0xBF.toByte())
+}
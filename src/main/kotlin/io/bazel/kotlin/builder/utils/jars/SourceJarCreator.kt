@@ -18,97 +18,64 @@ package io.bazel.kotlin.builder.utils.jars
 import java.nio.file.Files
 import java.nio.file.Path
 import java.util.*
-import java.util.jar.JarFile
-import java.util.jar.JarOutputStream
-import java.util.regex.Pattern
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ForkJoinPool
 import java.util.stream.Stream
 
 /**
  * Source jar packager for JavaLike files. The placement is discovered from the package entry.
+ *
+ * Packing has two phases. [addSources] only records where each entry comes from, and the
+ * packages of source files are scanned in parallel. [execute] then streams the contents from the
+ * source files and source jars into the jar, in sorted order. The sources are never all held in
+ * memory at once.
  */
 class SourceJarCreator(private val jarFile: Path) {
   companion object {
-    private const val BL = """\p{Blank}*"""
-    private const val COM_BL = """$BL(?:/\*[^\n]*\*/$BL)*"""
-    private val PKG_PATTERN: Pattern =
-      Pattern.compile("""^${COM_BL}package$COM_BL([a-zA-Z0-9._]+)$COM_BL(?:;?.*)$""")
-
     @JvmStatic
-    fun extractPackage(line: String): String? =
-      PKG_PATTERN.matcher(line).takeIf { it.matches() }?.group(1)
+    fun extractPackage(line: String): String? = PackageScanner.scan(line.toByteArray())
 
     private fun isJavaSourceLike(name: String): Boolean =
       name.endsWith(".kt") || name.endsWith(".java")
+
+    /** Reads [sourceFile] to find its package, the content is dropped once it is scanned. */
+    private fun packageOfAsync(sourceFile: Path): CompletableFuture<String?> =
+      CompletableFuture.supplyAsync({
+        PackageScanner.scan(
+          Files.readAllBytes(sourceFile),
+          nestedComments = sourceFile.fileName.toString().endsWith(".kt"),
+        )
+      }, ForkJoinPool.commonPool())
   }
 
-  sealed class Entry {
+  /** Where the content of a jar entry comes from. */
+  private sealed class Entry {
     class File(
       @JvmField val path: Path,
-      @JvmField val content: ByteArray,
     ) : Entry() {
       override fun toString(): String = "File $path"
     }
 
+    class Archived(
+      @JvmField val jar: ZipReader,
+      @JvmField val entry: ZipReader.Entry,
+    ) : Entry() {
+      override fun toString(): String = "Entry ${entry.name} of ${jar.path}"
+    }
+
     object Directory : Entry() {
       override fun toString(): String = "Directory"
     }
   }
 
-  private class JarFilenameHelper {
-    /**
-     * A map from the directories in the underlying filesystem to jar directory names.
-     */
-    private val directoryToPackageMap = mutableMapOf<Path, String>()
-
-    /**
-     * Entries for which packages paths could not be located during processing.
-     */
-    private val deferredEntries = mutableMapOf<Path, ByteArray>()
-
-    /**
-     * Locate the directory name for the file as it should appear in the jar.
-     *
-     * If the directory could not be located add it to the deferred list and return null.
-     *
-     * Files like `package-info.java` could end up getting deferred if they have an annotation embedded on the same
-     * line or files that have entries such as `/* weird comment */package lala`
-     */
-    fun getFilenameOrDefer(
-      sourceFile: Path,
-      body: ByteArray,
-    ): String? =
-      directoryToPackageMap[sourceFile.parent] ?: locatePackagePathOrDefer(sourceFile, body)?.let {
-        "$it/${sourceFile.fileName}"
-      }
-
-    /**
-     * Visit any deferred entries.
-     *
-     * @param block the visitor, the second param is the package name and may still be null.
-     */
-    fun visitDeferredEntries(block: (Path, String?, ByteArray) -> Unit) {
-      deferredEntries.forEach { sourceFile, bytes ->
-        block(sourceFile, directoryToPackageMap[sourceFile.parent], bytes)
-      }
-    }
-
-    private fun locatePackagePathOrDefer(
-      sourceFile: Path,
-      body: ByteArray,
-    ): String? =
-      body
-        .inputStream()
-        .bufferedReader()
-        .useLines {
-          it.mapNotNull(::extractPackage).firstOrNull()?.replace('.', '/')
-        }.also {
-          if (it == null) {
-            deferredEntries[sourceFile] = body
-          }
-        }
-  }
+  /** A source file with the package it declares, being scanned. */
+  private class SourceFile(
+    val path: Path,
+    val packageName: CompletableFuture<String?>,
+  )
 
-  private val filenameHelper = JarFilenameHelper()
+  private val sourceFiles = ArrayList<SourceFile>()
+  private val sourceJars = ArrayList<ZipReader>()
   private val entries = TreeMap<String, Entry>()
 
   /**
@@ -118,77 +85,68 @@ class SourceJarCreator(private val jarFile: Path) {
     sources.forEach { path ->
       val fileName = path.fileName.toString()
       when {
-        isJavaSourceLike(fileName) -> addJavaLikeSourceFile(path)
+        isJavaSourceLike(fileName) -> sourceFiles.add(SourceFile(path, packageOfAsync(path)))
         fileName.endsWith(".srcjar") -> addSourceJar(path)
       }
     }
   }
 
   /**
-   * Add a single source jar
+   * Add the entries of a single source jar, their content is copied by [execute].
    */
   private fun addSourceJar(path: Path) {
-    JarFile(path.toFile()).use { jar ->
-      for (entry in jar.entries()) {
-        if (!entry.isDirectory) {
-          if (isJavaSourceLike(entry.name)) {
-            jar.getInputStream(entry).readBytes().also {
-              addEntry(entry.name, path, it)
-            }
-          }
-        }
+    val jar = ZipReader(path)
+    sourceJars.add(jar)
+    for (entry in jar.entries) {
+      if (!entry.isDirectory && isJavaSourceLike(entry.name)) {
+        addEntry(entry.name, Entry.Archived(jar, entry))
       }
     }
   }
 
-  /**
-   * Add a single source file. This method uses the [JarFilenameHelper] so it should be used when jar filename
-   * correction is desired. It should only be used for Java-Like source files.
-   */
-  private fun addJavaLikeSourceFile(sourceFile: Path) {
-    val bytes = Files.readAllBytes(sourceFile)
-    filenameHelper.getFilenameOrDefer(sourceFile, bytes)?.also {
-      addEntry(name = it, path = sourceFile, bytes = bytes)
-    }
-  }
-
   fun execute() {
-    filenameHelper.visitDeferredEntries { path, jarFilename, bytes ->
-      if (jarFilename == null) {
-        addEntry(name = path.fileName.toString(), path = path, bytes = bytes)
-      } else {
-        System.err.println("adding deferred source file $path -> $jarFilename")
-        addEntry(jarFilename, path, bytes)
+    try {
+      // files without a package, or with one that could not be read, go to the root of the jar
+      val deferred = ArrayList<Path>()
+      for (sourceFile in sourceFiles) {
+        val packageName = JarCreator.join(sourceFile.packageName)
+        if (packageName == null) {
+          deferred.add(sourceFile.path)
+        } else {
+          val name = "${packageName.replace('.', '/')}/${sourceFile.path.fileName}"
+          addEntry(name, Entry.File(sourceFile.path))
+        }
       }
-    }
-    Files.newOutputStream(jarFile).use {
-      JarOutputStream(it).use { out ->
+      for (path in deferred) {
+        addEntry(path.fileName.toString(), Entry.File(path))
+      }
+
+      ZipWriter(jarFile).use { out ->
         for ((key, value) in entries) {
           try {
             when (value) {
-              is Entry.File -> writeEntry(
-                output = out,
-                name = key,
-                data = value.content
-              )
-              is Entry.Directory -> writeEntry(
-                output = out,
-                name = key,
-                data = EMPTY_BYTEARRAY,
-              )
+              is Entry.File -> out.writeEntry(key, value.path, Files.size(value.path))
+              is Entry.Archived ->
+                if (value.entry.method == ZipReader.STORED) {
+                  out.writeRawEntry(value.jar, value.entry)
+                } else {
+                  out.writeEntry(key, value.jar.read(value.entry))
+                }
+              is Entry.Directory -> out.writeDirectory(key)
             }
           } catch (throwable: Throwable) {
             throw RuntimeException("could not copy JarEntry $key $value", throwable)
           }
         }
       }
+    } finally {
+      sourceJars.forEach(ZipReader::close)
     }
   }
 
   private fun addEntry(
     name: String,
-    path: Path,
-    bytes: ByteArray,
+    entry: Entry,
   ) {
     name.split('/').also {
       if (it.size >= 2) {
@@ -201,10 +159,9 @@ class SourceJarCreator(private val jarFile: Path) {
       }
     }
 
-    val result = entries.putIfAbsent(name, Entry.File(path, bytes))
-    require(result as? Entry.Directory != null || result == null) {
-      "source entry jarName: $name from: $path " +
-        "collides with entry from: ${(result as Entry.File).path}"
+    val result = entries.putIfAbsent(name, entry)
+    require(result == null || result is Entry.Directory) {
+      "source entry jarName: $name from: $entry collides with entry from: $result"
     }
   }
 }
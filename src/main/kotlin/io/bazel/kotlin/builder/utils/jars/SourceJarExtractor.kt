@@ -15,31 +15,50 @@
  */
 package io.bazel.kotlin.builder.utils.jars
 
+import java.io.IOException
+import java.nio.file.Files
 import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ForkJoinPool
 import java.util.function.Predicate
 
+/**
+ * Extracts the sources of source jars into [destDir], where the compiler reads them.
+ *
+ * The extracted tree is kept between builds. An index of the CRC-32 and size of every extracted
+ * entry, as recorded in the central directory of its jar, is kept next to it. Entries that did not
+ * change since the previous extraction are neither inflated nor written again, and files of
+ * entries that are gone are deleted.
+ *
+ * Changed entries are extracted in parallel. With a [TreeCache], each jar is extracted once per
+ * content into the cache, and its files are hard linked into [destDir] from there.
+ */
 class SourceJarExtractor(
-  destDir: Path,
+  private val destDir: Path,
   val fileMatcher: Predicate<String> = Predicate { true },
-) : JarExtractor(destDir) {
+  private val treeCache: TreeCache? = null,
+) {
   val jarFiles = mutableListOf<Path>()
   val sourcesList = mutableListOf<String>()
 
-  override fun preWrite(
-    isDirectory: Boolean,
-    target: Path,
-  ): Boolean {
-    if (isDirectory) {
-      return true
-    }
-
-    if (fileMatcher.test(target.toString())) {
-      sourcesList.add(target.toString())
-      return true
-    }
-    return false
+  /** Keeps the trees extracted from source jars, shared by the requests of a worker. */
+  fun interface TreeCache {
+    /**
+     * Returns a directory holding the tree of [jar], calling [extract] with an empty directory to
+     * write it into if it is not cached yet. Returns null if the tree cannot be cached.
+     */
+    fun treeOf(
+      jar: Path,
+      extract: (dir: Path) -> Unit,
+    ): Path?
   }
 
+  /** A jar entry to extract, an entry of a later jar replaces one of the same name. */
+  private class Source(
+    val jar: ZipReader,
+    val entry: ZipReader.Entry,
+  )
+
   fun execute() {
     destDir.also {
       try {
@@ -48,11 +67,161 @@ class SourceJarExtractor(
         throw RuntimeException("could not create unpack directory at $it", ex)
       }
     }
-    jarFiles.forEach {
+
+    val index = destDir.resolve(INDEX_NAME)
+    val previous = readIndex(index)
+    // without an index, everything is extracted again if this extraction does not complete
+    Files.deleteIfExists(index)
+
+    val readers = ArrayList<ZipReader>()
+    try {
+      val sources = LinkedHashMap<String, Source>()
+      jarFiles.forEach {
+        try {
+          val jar = ZipReader(it).also(readers::add)
+          for (entry in jar.entries) {
+            if (!entry.isDirectory && matches(entry)) {
+              sources[entry.name] = Source(jar, entry)
+            }
+          }
+        } catch (ex: Throwable) {
+          throw RuntimeException("error reading source jar $it", ex)
+        }
+      }
+
+      val changed = sources.filter { (name, source) ->
+        val extracted = previous[name]
+        extracted == null ||
+          extracted.crc != source.entry.crc ||
+          extracted.size != source.entry.size ||
+          !hasSize(destDir.resolve(name), source.entry.size)
+      }
+      val trees = treesOf(changed.values.mapTo(LinkedHashSet()) { it.jar })
+      changed
+        .map { (name, source) ->
+          CompletableFuture.runAsync({
+            try {
+              extract(name, source, trees[source.jar])
+            } catch (ex: Throwable) {
+              throw RuntimeException("error extracting $name of source jar ${source.jar.path}", ex)
+            }
+          }, POOL)
+        }.forEach { JarCreator.join(it) }
+      for (name in sources.keys) {
+        sourcesList.add(destDir.resolve(name).toString())
+      }
+
+      for (name in previous.keys) {
+        if (name !in sources) {
+          Files.deleteIfExists(destDir.resolve(name))
+        }
+      }
+      writeIndex(index, sources)
+    } finally {
+      readers.forEach(ZipReader::close)
+    }
+  }
+
+  private fun matches(entry: ZipReader.Entry): Boolean =
+    fileMatcher.test(destDir.resolve(entry.name).toString())
+
+  /** Looks up, or extracts, the cached trees of [jars] in parallel. */
+  private fun treesOf(jars: Collection<ZipReader>): Map<ZipReader, CompletableFuture<Path?>> {
+    val cache = treeCache ?: return emptyMap()
+    return jars.associateWith { jar ->
+      CompletableFuture
+        .supplyAsync({
+          cache.treeOf(jar.path) { dir ->
+            for (entry in jar.entries) {
+              if (!entry.isDirectory && matches(entry)) {
+                val target = dir.resolve(entry.name)
+                Files.createDirectories(target.parent)
+                Files.write(target, jar.read(entry))
+              }
+            }
+          }
+        }, POOL)
+        // the entries are extracted from the jar itself instead
+        .exceptionally { null }
+    }
+  }
+
+  private fun extract(
+    name: String,
+    source: Source,
+    tree: CompletableFuture<Path?>?,
+  ) {
+    val target = destDir.resolve(name)
+    Files.createDirectories(target.parent)
+    // the previous file may be a link into the cache, which must not be written through
+    Files.deleteIfExists(target)
+    val cached = tree?.let { JarCreator.join(it) }?.resolve(name)
+    if (cached == null || !linkOrCopy(cached, target)) {
+      Files.write(target, source.jar.read(source.entry))
+    }
+  }
+
+  /** Links [target] to [cached], or copies it where it cannot be linked. */
+  private fun linkOrCopy(
+    cached: Path,
+    target: Path,
+  ): Boolean =
+    try {
+      Files.createLink(target, cached)
+      true
+    } catch (_: Exception) {
+      // links fail across file systems
       try {
-        extract(it)
-      } catch (ex: Throwable) {
-        throw RuntimeException("error extracting source jar $it", ex)
+        Files.copy(cached, target)
+        true
+      } catch (_: IOException) {
+        // the tree was evicted meanwhile
+        Files.deleteIfExists(target)
+        false
+      }
+    }
+
+  /** What was extracted for an entry name. */
+  private class Extracted(
+    val crc: Long,
+    val size: Long,
+  )
+
+  private companion object {
+    const val INDEX_NAME = ".extracted"
+
+    val POOL: ForkJoinPool = ForkJoinPool.commonPool()
+
+    fun hasSize(
+      file: Path,
+      size: Long,
+    ): Boolean = Files.isRegularFile(file) && Files.size(file) == size
+
+    /** Reads lines of `crc size name`, a missing index has no entries. */
+    fun readIndex(index: Path): Map<String, Extracted> {
+      if (!Files.isRegularFile(index)) {
+        return emptyMap()
+      }
+      val result = HashMap<String, Extracted>()
+      Files.newBufferedReader(index).useLines { lines ->
+        for (line in lines) {
+          val parts = line.split(' ', limit = 3)
+          if (parts.size == 3) {
+            result[parts[2]] = Extracted(parts[0].toLong(), parts[1].toLong())
+          }
+        }
+      }
+      return result
+    }
+
+    fun writeIndex(
+      index: Path,
+      sources: Map<String, Source>,
+    ) {
+      Files.newBufferedWriter(index).use { writer ->
+        for ((name, source) in sources) {
+          writer.append("${source.entry.crc} ${source.entry.size} $name\n")
+        }
       }
     }
   }
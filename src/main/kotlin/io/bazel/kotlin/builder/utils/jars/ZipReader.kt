@@ -0,0 +1,212 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.builder.utils.jars
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.Inflater
+import java.util.zip.ZipException
+
+/**
+ * Reads the central directory of a zip file and gives access to the raw, possibly compressed, data
+ * of its entries, so they can be copied to another zip without being inflated.
+ */
+internal class ZipReader(
+  val path: Path,
+) : AutoCloseable {
+  /** An entry of the central directory. */
+  class Entry(
+    @JvmField val name: String,
+    @JvmField val method: Int,
+    @JvmField val crc: Long,
+    @JvmField val compressedSize: Long,
+    @JvmField val size: Long,
+    @JvmField val localHeaderOffset: Long,
+  ) {
+    val isDirectory: Boolean
+      get() = name.endsWith("/")
+  }
+
+  val channel: FileChannel = FileChannel.open(path, StandardOpenOption.READ)
+
+  /** Entries in the order of the central directory. */
+  val entries: List<Entry> = readCentralDirectory()
+
+  /** Returns the position of the data of [entry] in [channel]. */
+  fun dataOffset(entry: Entry): Long {
+    val header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE)
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw ZipException("$path: invalid local header for ${entry.name}")
+    }
+    return entry.localHeaderOffset + LOCAL_HEADER_SIZE + u2(header, 26) + u2(header, 28)
+  }
+
+  /** Reads and, if needed, inflates the content of [entry]. */
+  fun read(entry: Entry): ByteArray {
+    val data = read(dataOffset(entry), Math.toIntExact(entry.compressedSize))
+    return when (entry.method) {
+      STORED -> data.array()
+      DEFLATED -> {
+        val inflater = Inflater(true)
+        try {
+          inflater.setInput(data)
+          val content = ByteArray(Math.toIntExact(entry.size))
+          var inflated = 0
+          while (inflated < content.size) {
+            val count = inflater.inflate(content, inflated, content.size - inflated)
+            if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+              throw ZipException("$path: truncated entry ${entry.name}")
+            }
+            inflated += count
+          }
+          content
+        } finally {
+          inflater.end()
+        }
+      }
+      else -> throw ZipException("$path: unsupported compression of ${entry.name}")
+    }
+  }
+
+  private fun readCentralDirectory(): List<Entry> {
+    val size = channel.size()
+    val tailSize = minOf(size, (END_SIZE + MAX_COMMENT_SIZE).toLong()).toInt()
+    val tail = read(size - tailSize, tailSize)
+    var end = tailSize - END_SIZE
+    while (end >= 0 && tail.getInt(end) != END_SIGNATURE) {
+      end--
+    }
+    if (end < 0) {
+      throw ZipException("$path: end of central directory not found")
+    }
+
+    var count = u2(tail, end + 10).toLong()
+    var centralSize = u4(tail, end + 12)
+    var centralOffset = u4(tail, end + 16)
+    val locator = end - ZIP64_LOCATOR_SIZE
+    if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+      val zip64End = read(tail.getLong(locator + 8), ZIP64_END_SIZE)
+      if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+        throw ZipException("$path: invalid zip64 end of central directory")
+      }
+      count = zip64End.getLong(32)
+      centralSize = zip64End.getLong(40)
+      centralOffset = zip64End.getLong(48)
+    }
+
+    val central = read(centralOffset, Math.toIntExact(centralSize))
+    val entries = ArrayList<Entry>(Math.toIntExact(count))
+    var position = 0
+    for (index in 0 until count) {
+      if (central.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+        throw ZipException("$path: invalid central directory header")
+      }
+      val nameLength = u2(central, position + 28)
+      val extraLength = u2(central, position + 30)
+      val commentLength = u2(central, position + 32)
+      val name = String(central.array(), position + CENTRAL_HEADER_SIZE, nameLength, Charsets.UTF_8)
+      var size = u4(central, position + 24)
+      var compressedSize = u4(central, position + 20)
+      var localHeaderOffset = u4(central, position + 42)
+
+      // values that do not fit are in the zip64 extra field, in this order
+      var extra = position + CENTRAL_HEADER_SIZE + nameLength
+      val extraEnd = extra + extraLength
+      while (extra + 4 <= extraEnd) {
+        val id = u2(central, extra)
+        val length = u2(central, extra + 2)
+        if (id == ZIP64_EXTRA_ID) {
+          var field = extra + 4
+          if (size == ZIP64_MAGIC_VALUE) {
+            size = central.getLong(field)
+            field += 8
+          }
+          if (compressedSize == ZIP64_MAGIC_VALUE) {
+            compressedSize = central.getLong(field)
+            field += 8
+          }
+          if (localHeaderOffset == ZIP64_MAGIC_VALUE) {
+            localHeaderOffset = central.getLong(field)
+          }
+        }
+        extra += 4 + length
+      }
+
+      entries.add(
+        Entry(
+          name = name,
+          method = u2(central, position + 10),
+          crc = u4(central, position + 16),
+          compressedSize = compressedSize,
+          size = size,
+          localHeaderOffset = localHeaderOffset,
+        ),
+      )
+      position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength
+    }
+    return entries
+  }
+
+  private fun read(
+    position: Long,
+    length: Int,
+  ): ByteBuffer {
+    val buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN)
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw ZipException("$path: unexpected end of file")
+      }
+    }
+    buffer.clear()
+    return buffer
+  }
+
+  override fun close() {
+    channel.close()
+  }
+
+  companion object {
+    const val STORED = 0
+    const val DEFLATED = 8
+
+    private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+    private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+    private const val END_SIGNATURE = 0x06054b50
+    private const val ZIP64_END_SIGNATURE = 0x06064b50
+    private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+    private const val LOCAL_HEADER_SIZE = 30
+    private const val CENTRAL_HEADER_SIZE = 46
+    private const val END_SIZE = 22
+    private const val ZIP64_END_SIZE = 56
+    private const val ZIP64_LOCATOR_SIZE = 20
+    private const val MAX_COMMENT_SIZE = 0xFFFF
+    private const val ZIP64_EXTRA_ID = 1
+    private const val ZIP64_MAGIC_VALUE = 0xFFFFFFFFL
+
+    private fun u2(
+      buffer: ByteBuffer,
+      index: Int,
+    ): Int = buffer.getShort(index).toInt() and 0xFFFF
+
+    private fun u4(
+      buffer: ByteBuffer,
+      index: Int,
+    ): Long = buffer.getInt(index).toLong() and 0xFFFFFFFFL
+  }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.builder.utils.jars
+
+import io.bazel.kotlin.builder.utils.jars.JarHelper.DEFAULT_TIMESTAMP
+import io.bazel.kotlin.builder.utils.jars.JarHelper.MINIMUM_TIMESTAMP_INCREMENT
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.time.Instant
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.ZipException
+
+/**
+ * Writes a jar of STORED or DEFLATED entries, and entries copied raw from other jars, to a
+ * [FileChannel].
+ *
+ * For STORED entries the output is byte for byte what [java.util.jar.JarOutputStream] produces:
+ * UTF-8 names, timestamps normalized like [writeEntry] does and the jar magic extra field on the
+ * first entry. Unlike the stream, the local header is emitted here, so file contents are read
+ * straight into the output buffer, or transferred from channel to channel when they are large,
+ * instead of being copied through byte arrays.
+ *
+ * Entries of 4 GiB or more, and entries starting beyond 4 GiB, are not supported.
+ */
+internal class ZipWriter(
+  path: Path,
+) : AutoCloseable {
+  private val channel =
+    FileChannel.open(
+      path,
+      StandardOpenOption.WRITE,
+      StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING,
+    )
+  private val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+
+  // file offset of the first byte in buffer
+  private var flushed = 0L
+  private var centralDirectory = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+  private var entryCount = 0L
+  private val crc = CRC32()
+
+  /** Writes a directory entry, [name] ends with a slash. */
+  fun writeDirectory(name: String) {
+    writeStoredHeaders(name.toByteArray(Charsets.UTF_8), DOS_TIME, crc = 0, size = 0)
+  }
+
+  /** Writes a file entry with the given content. */
+  fun writeEntry(
+    name: String,
+    data: ByteArray,
+  ) {
+    crc.reset()
+    crc.update(data)
+    writeEntry(name, ByteBuffer.wrap(data), crc.value)
+  }
+
+  /**
+   * Writes a file entry with the [remaining][ByteBuffer.remaining] bytes of [data], whose CRC-32 is
+   * known.
+   */
+  fun writeEntry(
+    name: String,
+    data: ByteBuffer,
+    crc: Long,
+  ) {
+    val size = data.remaining().toLong()
+    writeStoredHeaders(name.toByteArray(Charsets.UTF_8), timeOf(name), crc, size)
+    writeData(data)
+  }
+
+  /**
+   * Writes a DEFLATED file entry of [size] bytes, [compressed] is its content as returned by
+   * [deflate].
+   */
+  fun writeDeflatedEntry(
+    name: String,
+    compressed: ByteArray,
+    crc: Long,
+    size: Long,
+  ) {
+    val nameBytes = name.toByteArray(Charsets.UTF_8)
+    val compressedSize = compressed.size.toLong()
+    val time = timeOf(name)
+    val offset = writeLocalHeader(nameBytes, time, crc, size, METHOD_DEFLATED, compressedSize)
+    addCentralEntry(nameBytes, time, crc, size, offset, METHOD_DEFLATED, compressedSize)
+    writeData(ByteBuffer.wrap(compressed))
+  }
+
+  private fun writeData(data: ByteBuffer) {
+    if (data.remaining() <= buffer.remaining()) {
+      buffer.put(data)
+    } else {
+      flush()
+      while (data.hasRemaining()) {
+        flushed += channel.write(data)
+      }
+    }
+  }
+
+  /**
+   * Writes a file entry with the content of [file], which is [size] bytes long. Small files are
+   * read into the output buffer once, with the CRC-32 patched into the local header afterwards.
+   * Large ones are mapped to compute the CRC-32 and then transferred to the output channel without
+   * passing through the heap.
+   */
+  fun writeEntry(
+    name: String,
+    file: Path,
+    size: Long,
+  ) {
+    val nameBytes = name.toByteArray(Charsets.UTF_8)
+    val time = timeOf(name)
+    FileChannel.open(file, StandardOpenOption.READ).use { input ->
+      if (size > MAX_BUFFERED_SIZE) {
+        crc.reset()
+        crc.update(input.map(FileChannel.MapMode.READ_ONLY, 0, size))
+        transfer(nameBytes, time, input, size, crc.value)
+        return
+      }
+
+      if (LOCAL_HEADER_SIZE + nameBytes.size + JAR_MAGIC.size + size > buffer.remaining()) {
+        flush()
+      }
+      val offset = writeLocalHeader(nameBytes, time, crc = 0, size = size)
+      val dataStart = buffer.position()
+      buffer.limit(dataStart + size.toInt())
+      while (buffer.hasRemaining()) {
+        if (input.read(buffer) < 0) {
+          throw IOException("$file is shorter than $size bytes")
+        }
+      }
+      buffer.limit(buffer.capacity())
+      crc.reset()
+      crc.update(
+        buffer.duplicate().apply {
+          limit(dataStart + size.toInt())
+          position(dataStart)
+        },
+      )
+      buffer.putInt((offset - flushed).toInt() + CRC_OFFSET, crc.value.toInt())
+      addCentralEntry(nameBytes, time, crc.value, size, offset)
+    }
+  }
+
+  /** Writes a file entry with the content of [file], whose CRC-32 is known, see [crcOf]. */
+  fun writeEntry(
+    name: String,
+    file: Path,
+    size: Long,
+    crc: Long,
+  ) {
+    FileChannel.open(file, StandardOpenOption.READ).use { input ->
+      transfer(name.toByteArray(Charsets.UTF_8), timeOf(name), input, size, crc)
+    }
+  }
+
+  private fun transfer(
+    name: ByteArray,
+    time: Int,
+    input: FileChannel,
+    size: Long,
+    crc: Long,
+  ) {
+    writeStoredHeaders(name, time, crc, size)
+    flush()
+    var transferred = 0L
+    while (transferred < size) {
+      transferred += input.transferTo(transferred, size - transferred, channel)
+    }
+    flushed += size
+  }
+
+  /**
+   * Copies [entry] of [source] without inflating it. Its name, compression method, sizes and CRC-32
+   * are kept, the timestamp is normalized.
+   */
+  fun writeRawEntry(
+    source: ZipReader,
+    entry: ZipReader.Entry,
+  ) {
+    val name = entry.name.toByteArray(Charsets.UTF_8)
+    val method = when (entry.method) {
+      ZipReader.STORED -> METHOD_STORED
+      ZipReader.DEFLATED -> METHOD_DEFLATED
+      else -> throw ZipException("${source.path}: unsupported compression of ${entry.name}")
+    }
+    val time = timeOf(entry.name)
+    val compressedSize = entry.compressedSize
+    val offset = writeLocalHeader(name, time, entry.crc, entry.size, method, compressedSize)
+    addCentralEntry(name, time, entry.crc, entry.size, offset, method, compressedSize)
+    val dataOffset = source.dataOffset(entry)
+    if (compressedSize <= buffer.remaining()) {
+      // small entries are read into the buffer, rather than flushing it for every entry
+      val end = buffer.position() + compressedSize.toInt()
+      buffer.limit(end)
+      while (buffer.hasRemaining()) {
+        val position = dataOffset + compressedSize - (end - buffer.position())
+        if (source.channel.read(buffer, position) < 0) {
+          throw ZipException("${source.path}: unexpected end of file")
+        }
+      }
+      buffer.limit(buffer.capacity())
+      return
+    }
+    flush()
+    var transferred = 0L
+    while (transferred < compressedSize) {
+      transferred += source.channel.transferTo(
+        dataOffset + transferred,
+        compressedSize - transferred,
+        channel,
+      )
+    }
+    flushed += compressedSize
+  }
+
+  private fun writeStoredHeaders(
+    name: ByteArray,
+    time: Int,
+    crc: Long,
+    size: Long,
+  ) {
+    val offset = writeLocalHeader(name, time, crc, size)
+    addCentralEntry(name, time, crc, size, offset)
+  }
+
+  /** Writes a local header to the buffer and returns its offset in the file. */
+  private fun writeLocalHeader(
+    name: ByteArray,
+    time: Int,
+    crc: Long,
+    size: Long,
+    method: Short = METHOD_STORED,
+    compressedSize: Long = size,
+  ): Long {
+    if (size >= ZIP64_MAGIC_VALUE || compressedSize >= ZIP64_MAGIC_VALUE) {
+      throw ZipException("${String(name, Charsets.UTF_8)} is too large")
+    }
+    val extra = extraOfNextEntry()
+    if (LOCAL_HEADER_SIZE + name.size + extra.size > buffer.remaining()) {
+      flush()
+    }
+    val offset = flushed + buffer.position()
+    if (offset >= ZIP64_MAGIC_VALUE) {
+      throw ZipException("jar is too large")
+    }
+    buffer.putInt(LOCAL_HEADER_SIGNATURE)
+    buffer.putShort(versionOf(method))
+    buffer.putShort(FLAG_UTF8)
+    buffer.putShort(method)
+    buffer.putInt(time)
+    buffer.putInt(crc.toInt())
+    buffer.putInt(compressedSize.toInt())
+    buffer.putInt(size.toInt())
+    buffer.putShort(name.size.toShort())
+    buffer.putShort(extra.size.toShort())
+    buffer.put(name)
+    buffer.put(extra)
+    return offset
+  }
+
+  private fun addCentralEntry(
+    name: ByteArray,
+    time: Int,
+    crc: Long,
+    size: Long,
+    offset: Long,
+    method: Short = METHOD_STORED,
+    compressedSize: Long = size,
+  ) {
+    val extra = extraOfNextEntry()
+    val required = CENTRAL_HEADER_SIZE + name.size + extra.size
+    if (centralDirectory.remaining() < required) {
+      val grown = ByteBuffer
+        .allocate(maxOf(centralDirectory.capacity() * 2, centralDirectory.position() + required))
+        .order(ByteOrder.LITTLE_ENDIAN)
+      centralDirectory.flip()
+      grown.put(centralDirectory)
+      centralDirectory = grown
+    }
+    with(centralDirectory) {
+      putInt(CENTRAL_HEADER_SIGNATURE)
+      putShort(versionOf(method))
+      putShort(versionOf(method))
+      putShort(FLAG_UTF8)
+      putShort(method)
+      putInt(time)
+      putInt(crc.toInt())
+      putInt(compressedSize.toInt())
+      putInt(size.toInt())
+      putShort(name.size.toShort())
+      putShort(extra.size.toShort())
+      // comment length, disk number, internal and external attributes
+      putShort(0)
+      putShort(0)
+      putShort(0)
+      putInt(0)
+      putInt(offset.toInt())
+      put(name)
+      put(extra)
+    }
+    entryCount++
+  }
+
+  // the jar magic is added to the first entry, which is counted once its central record is written
+  private fun extraOfNextEntry(): ByteArray = if (entryCount == 0L) JAR_MAGIC else EMPTY_BYTEARRAY
+
+  private fun flush() {
+    buffer.flip()
+    while (buffer.hasRemaining()) {
+      flushed += channel.write(buffer)
+    }
+    buffer.clear()
+  }
+
+  override fun close() {
+    channel.use {
+      flush()
+      val centralStart = flushed
+      val centralSize = centralDirectory.position().toLong()
+      centralDirectory.flip()
+      while (centralDirectory.hasRemaining()) {
+        flushed += channel.write(centralDirectory)
+      }
+
+      val zip64 = entryCount >= ZIP64_MAGIC_COUNT ||
+        centralSize >= ZIP64_MAGIC_VALUE ||
+        centralStart >= ZIP64_MAGIC_VALUE
+      if (zip64) {
+        val zip64End = flushed
+        buffer.putInt(ZIP64_END_SIGNATURE)
+        buffer.putLong(ZIP64_END_SIZE - 12L)
+        buffer.putShort(VERSION_ZIP64)
+        buffer.putShort(VERSION_ZIP64)
+        buffer.putInt(0)
+        buffer.putInt(0)
+        buffer.putLong(entryCount)
+        buffer.putLong(entryCount)
+        buffer.putLong(centralSize)
+        buffer.putLong(centralStart)
+        buffer.putInt(ZIP64_LOCATOR_SIGNATURE)
+        buffer.putInt(0)
+        buffer.putLong(zip64End)
+        buffer.putInt(1)
+      }
+      val count = if (zip64 && entryCount >= ZIP64_MAGIC_COUNT) ZIP64_MAGIC_COUNT else entryCount
+      buffer.putInt(END_SIGNATURE)
+      buffer.putShort(0)
+      buffer.putShort(0)
+      buffer.putShort(count.toShort())
+      buffer.putShort(count.toShort())
+      buffer.putInt(minOf(centralSize, ZIP64_MAGIC_VALUE).toInt())
+      buffer.putInt(minOf(centralStart, ZIP64_MAGIC_VALUE).toInt())
+      buffer.putShort(0)
+      flush()
+    }
+  }
+
+  companion object {
+    private const val BUFFER_SIZE = 256 * 1024
+
+    /** Files up to this size are read into memory, larger ones are mapped and transferred. */
+    const val MAX_BUFFERED_SIZE = 64 * 1024L
+
+    private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+    private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+    private const val END_SIGNATURE = 0x06054b50
+    private const val ZIP64_END_SIGNATURE = 0x06064b50
+    private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+    private const val LOCAL_HEADER_SIZE = 30
+    private const val CENTRAL_HEADER_SIZE = 46
+    private const val ZIP64_END_SIZE = 56
+    private const val CRC_OFFSET = 14
+    private const val VERSION_STORED: Short = 10
+    private const val VERSION_DEFLATED: Short = 20
+    private const val VERSION_ZIP64: Short = 45
+    private const val FLAG_UTF8: Short = 0x800
+    private const val METHOD_STORED: Short = 0
+    private const val METHOD_DEFLATED: Short = 8
+    private const val ZIP64_MAGIC_COUNT = 0xFFFFL
+    private const val ZIP64_MAGIC_VALUE = 0xFFFFFFFFL
+
+    // the extra field JarOutputStream adds to the first entry, 0xCAFE with no data
+    private val JAR_MAGIC = byteArrayOf(0xFE.toByte(), 0xCA.toByte(), 0, 0)
+
+    // every entry is compressed on its own with the same settings, so the output does not depend on
+    // scheduling
+    private val DEFLATER = ThreadLocal.withInitial { Deflater(Deflater.DEFAULT_COMPRESSION, true) }
+
+    private val DOS_TIME = dosTime(DEFAULT_TIMESTAMP)
+    private val CLASS_DOS_TIME = dosTime(DEFAULT_TIMESTAMP + MINIMUM_TIMESTAMP_INCREMENT)
+
+    /**
+     * Compresses [data] for [writeDeflatedEntry] with a compressor of the calling thread, so
+     * entries can be compressed in parallel. Returns null when compressing would not make the entry
+     * smaller.
+     */
+    fun deflate(data: ByteArray): ByteArray? {
+      val deflater = DEFLATER.get()
+      deflater.reset()
+      deflater.setInput(data)
+      deflater.finish()
+      val compressed = ByteArray(data.size)
+      var length = 0
+      while (!deflater.finished() && length < compressed.size) {
+        length += deflater.deflate(compressed, length, compressed.size - length)
+      }
+      return if (deflater.finished() && length < data.size) compressed.copyOf(length) else null
+    }
+
+    /** Computes the CRC-32 of the first [size] bytes of [file] over a mapping of the file. */
+    fun crcOf(
+      file: Path,
+      size: Long,
+    ): Long =
+      FileChannel.open(file, StandardOpenOption.READ).use { input ->
+        val crc = CRC32()
+        crc.update(input.map(FileChannel.MapMode.READ_ONLY, 0, size))
+        crc.value
+      }
+
+    private fun versionOf(method: Short): Short =
+      if (method == METHOD_DEFLATED) VERSION_DEFLATED else VERSION_STORED
+
+    private fun timeOf(name: String): Int =
+      if (name.endsWith(".class")) CLASS_DOS_TIME else DOS_TIME
+
+    /**
+     * Converts [millis] to the MS-DOS date and time in the default time zone, as
+     * [java.util.zip.ZipEntry] does.
+     */
+    private fun dosTime(millis: Long): Int {
+      val time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault())
+      return ((time.year - 1980) shl 25) or (time.monthValue shl 21) or (time.dayOfMonth shl 16) or
+        (time.hour shl 11) or (time.minute shl 5) or (time.second shr 1)
+    }
+  }
+}
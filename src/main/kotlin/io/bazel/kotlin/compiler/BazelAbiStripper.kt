@@ -0,0 +1,141 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.compiler
+
+import org.jetbrains.kotlin.metadata.ProtoBuf
+import org.jetbrains.kotlin.metadata.deserialization.Flags
+import org.jetbrains.kotlin.metadata.deserialization.NameResolver
+import org.jetbrains.kotlin.metadata.deserialization.TypeTable
+import org.jetbrains.kotlin.metadata.jvm.JvmProtoBuf
+import org.jetbrains.kotlin.metadata.jvm.deserialization.JvmProtoBufUtil
+import org.jetbrains.org.objectweb.asm.ClassReader
+import org.jetbrains.org.objectweb.asm.ClassWriter
+import org.jetbrains.org.objectweb.asm.tree.ClassNode
+import org.jetbrains.org.objectweb.asm.tree.InsnList
+import org.jetbrains.org.objectweb.asm.tree.MethodNode
+
+/**
+ * Turns compiled classes into header classes, which are only compiled against.
+ *
+ * Method bodies are dropped, except those of Kotlin inline functions and property accessors, which
+ * are copied into the call sites by the compiler. Classes that may be copied along with them, the
+ * lambdas and anonymous objects of inline functions, are kept as they are.
+ */
+@Suppress("unused")
+class BazelAbiStripper {
+  companion object {
+    private const val KOTLIN_METADATA = "Lkotlin/Metadata;"
+
+    // kinds of the Kotlin metadata, see kotlin.Metadata.k
+    private const val CLASS_KIND = 1
+    private const val FILE_FACADE_KIND = 2
+    private const val MULTIFILE_CLASS_PART_KIND = 5
+
+    private const val DEFAULT_SUFFIX = "\$default"
+    private const val FOR_INLINE_SUFFIX = "\$\$forInline"
+
+    /** Returns the header class of the class file [bytes]. */
+    @JvmStatic
+    fun strip(bytes: ByteArray): ByteArray {
+      val node = ClassNode()
+      ClassReader(bytes).accept(node, 0)
+      val inlineMethods = inlineMethodsOf(node) ?: return bytes
+      for (method in node.methods) {
+        // default arguments of inline functions are filled in by an inlined `$default` bridge, and
+        // inline suspend functions are inlined from their untransformed `$$forInline` copy
+        val name = method.name.removeSuffix(DEFAULT_SUFFIX).removeSuffix(FOR_INLINE_SUFFIX)
+        if (name !in inlineMethods) {
+          stripBody(method)
+        }
+      }
+      val writer = ClassWriter(0)
+      node.accept(writer)
+      return writer.toByteArray()
+    }
+
+    /**
+     * Returns the JVM names of the inline functions and accessors of [node], or null when the class
+     * is kept as it is.
+     */
+    private fun inlineMethodsOf(node: ClassNode): Set<String>? {
+      // local and anonymous classes have no outer class, inline functions copy them
+      if (node.innerClasses.any { it.name == node.name && it.outerName == null }) {
+        return null
+      }
+      val metadata = node.visibleAnnotations?.find { it.desc == KOTLIN_METADATA }
+        ?: return emptySet()
+      val values = metadata.values.chunked(2).associate { (name, value) -> name as String to value }
+      val kind = values["k"] as Int? ?: CLASS_KIND
+      @Suppress("UNCHECKED_CAST")
+      val data = (values["d1"] as List<String>? ?: return null).toTypedArray()
+      @Suppress("UNCHECKED_CAST")
+      val strings = (values["d2"] as List<String>? ?: return null).toTypedArray()
+      return when (kind) {
+        CLASS_KIND -> {
+          val (resolver, proto) = JvmProtoBufUtil.readClassDataFrom(data, strings)
+          val typeTable = TypeTable(proto.typeTable)
+          inlineMethodsOf(resolver, typeTable, proto.functionList, proto.propertyList)
+        }
+        FILE_FACADE_KIND, MULTIFILE_CLASS_PART_KIND -> {
+          val (resolver, proto) = JvmProtoBufUtil.readPackageDataFrom(data, strings)
+          val typeTable = TypeTable(proto.typeTable)
+          inlineMethodsOf(resolver, typeTable, proto.functionList, proto.propertyList)
+        }
+        // synthetic classes and multifile facades, which have copies of the inline functions
+        else -> null
+      }
+    }
+
+    private fun inlineMethodsOf(
+      resolver: NameResolver,
+      typeTable: TypeTable,
+      functions: List<ProtoBuf.Function>,
+      properties: List<ProtoBuf.Property>,
+    ): Set<String> {
+      val names = HashSet<String>()
+      for (function in functions) {
+        if (Flags.IS_INLINE.get(function.flags)) {
+          val signature = JvmProtoBufUtil.getJvmMethodSignature(function, resolver, typeTable)
+          names.add(signature?.name ?: resolver.getString(function.name))
+        }
+      }
+      for (property in properties) {
+        if (!property.hasExtension(JvmProtoBuf.propertySignature)) {
+          continue
+        }
+        val signature = property.getExtension(JvmProtoBuf.propertySignature)
+        if (Flags.IS_INLINE_ACCESSOR.get(property.getterFlags) && signature.getter.hasName()) {
+          names.add(resolver.getString(signature.getter.name))
+        }
+        if (Flags.IS_INLINE_ACCESSOR.get(property.setterFlags) && signature.setter.hasName()) {
+          names.add(resolver.getString(signature.setter.name))
+        }
+      }
+      return names
+    }
+
+    /** Drops the code of [method], leaving its signature, annotations and parameters. */
+    private fun stripBody(method: MethodNode) {
+      method.instructions = InsnList()
+      method.tryCatchBlocks = ArrayList()
+      method.localVariables = null
+      method.visibleLocalVariableAnnotations = null
+      method.invisibleLocalVariableAnnotations = null
+      method.maxStack = 0
+      method.maxLocals = 0
+    }
+  }
+}
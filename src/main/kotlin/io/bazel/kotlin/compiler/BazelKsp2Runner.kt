@@ -0,0 +1,127 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.bazel.kotlin.compiler
+
+import com.google.devtools.ksp.impl.KotlinSymbolProcessing
+import com.google.devtools.ksp.processing.KSPJvmConfig
+import com.google.devtools.ksp.processing.KSPLogger
+import com.google.devtools.ksp.processing.SymbolProcessorProvider
+import com.google.devtools.ksp.symbol.FileLocation
+import com.google.devtools.ksp.symbol.KSNode
+import java.io.File
+import java.io.PrintStream
+import java.net.URLClassLoader
+import java.util.ServiceLoader
+
+/**
+ * Runs KSP2, the standalone symbol processor built on the K2 analysis API.
+ *
+ * Arguments are `name=value` pairs, list values are separated by the path separator.
+ */
+@Suppress("unused")
+class BazelKsp2Runner {
+  companion object {
+    @JvmStatic
+    fun exec(
+      errStream: PrintStream,
+      args: Array<String>,
+    ): Int {
+      val options = args.associate { it.substringBefore('=') to it.substringAfter('=') }
+
+      fun files(name: String): List<File> =
+        options[name].orEmpty().split(File.pathSeparator).filter { it.isNotEmpty() }.map(::File)
+
+      fun file(name: String): File = File(options.getValue(name))
+
+      val config = KSPJvmConfig.Builder().apply {
+        moduleName = options.getValue("moduleName")
+        sourceRoots = files("sourceRoots")
+        javaSourceRoots = files("javaSourceRoots")
+        commonSourceRoots = emptyList()
+        libraries = files("libraries")
+        processorOptions = emptyMap()
+        projectBaseDir = file("projectBaseDir")
+        outputBaseDir = file("outputBaseDir")
+        cachesDir = file("cachesDir")
+        classOutputDir = file("classOutputDir")
+        kotlinOutputDir = file("kotlinOutputDir")
+        javaOutputDir = file("javaOutputDir")
+        resourceOutputDir = file("resourceOutputDir")
+        jdkHome = File(System.getProperty("java.home"))
+        jvmTarget = options.getValue("jvmTarget")
+        jvmDefaultMode = options.getValue("jvmDefaultMode")
+        languageVersion = options.getValue("languageVersion")
+        apiVersion = options.getValue("apiVersion")
+        incremental = options["incremental"].toBoolean()
+        incrementalLog = false
+        modifiedSources = files("modifiedSources").toMutableList()
+        removedSources = files("removedSources").toMutableList()
+        changedClasses = mutableListOf()
+        allWarningsAsErrors = false
+        mapAnnotationArgumentsInJava = false
+      }.build()
+
+      URLClassLoader(
+        files("processorPath").map { it.toURI().toURL() }.toTypedArray(),
+        BazelKsp2Runner::class.java.classLoader,
+      ).use { processorLoader ->
+        val providers =
+          ServiceLoader.load(SymbolProcessorProvider::class.java, processorLoader).toList()
+        val logger = PrintingLogger(errStream)
+        val exitCode = KotlinSymbolProcessing(config, providers, logger).execute()
+        return if (exitCode == KotlinSymbolProcessing.ExitCode.OK) 0 else 1
+      }
+    }
+  }
+
+  private class PrintingLogger(
+    private val out: PrintStream,
+  ) : KSPLogger {
+    override fun logging(
+      message: String,
+      symbol: KSNode?,
+    ) = Unit
+
+    override fun info(
+      message: String,
+      symbol: KSNode?,
+    ) = Unit
+
+    override fun warn(
+      message: String,
+      symbol: KSNode?,
+    ) = print("warning", message, symbol)
+
+    override fun error(
+      message: String,
+      symbol: KSNode?,
+    ) = print("error", message, symbol)
+
+    override fun exception(e: Throwable) {
+      e.printStackTrace(out)
+    }
+
+    private fun print(
+      severity: String,
+      message: String,
+      symbol: KSNode?,
+    ) {
+      val location =
+        (symbol?.location as? FileLocation)?.let { "${it.filePath}:${it.lineNumber}: " } ?: ""
+      out.println("$location$severity: [ksp] $message")
+    }
+  }
+}
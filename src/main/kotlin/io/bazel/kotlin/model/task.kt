@@ -42,6 +42,12 @@ data class JvmCompilationTask(
   @JvmField val instrumentCoverage: Boolean,
 
   @JvmField val friendPaths: List<Path>,
+  @JvmField val useCompileResultCache: Boolean = false,
+  @JvmField val kspIncremental: Boolean = false,
+  @JvmField val useKsp2: Boolean = false,
+  @JvmField val compressJar: Boolean = false,
+  @JvmField val compileJava: Boolean = false,
+  @JvmField val headerCompilation: Boolean = false,
 )
 
 data class Directories(
@@ -63,6 +69,8 @@ data class Outputs(
   @JvmField val generatedJavaSrcJar: String? = null,
   @JvmField val generatedClassJar: String? = null,
   @JvmField val generatedKspSrcJar: Path?,
+  @JvmField val unusedInputsList: Path? = null,
+  @JvmField val sourceJdeps: Path? = null,
 )
 
 data class Inputs(
@@ -82,5 +90,6 @@ data class Inputs(
   @JvmField val compilerPluginClasspath: List<Path>,
   @JvmField val javacFlags: List<String> = emptyList(),
   @JvmField val depsArtifacts: List<String>,
+  @JvmField val sourceJars: List<String> = emptyList(),
 )
 
@@ -9,59 +9,108 @@ import java.nio.file.Path
 sealed class BaseJdepsGenExtension(
   protected val configuration: CompilerConfiguration,
 ) {
+  /**
+   * Writes the jdeps file and checks strict deps.
+   *
+   * @param explicitClasses classes used by the sources, keyed by the location of their jar
+   * @param implicitClasses classes only needed by the compiler, keyed by the location of their jar
+   * @param explicitSources source files using classes, keyed by the location of their jar
+   * @param implicitSources source files only needing classes for the compiler, keyed likewise
+   */
   protected fun onAnalysisCompleted(
-    explicitClassesCanonicalPaths: Set<String>,
-    implicitClassesCanonicalPaths: Set<String>,
+    explicitClasses: Map<String, List<String>>,
+    implicitClasses: Map<String, List<String>>,
+    explicitSources: Map<String, List<String>> = emptyMap(),
+    implicitSources: Map<String, List<String>> = emptyMap(),
   ) {
-    val directDeps = configuration.getList(JdepsGenConfigurationKeys.DIRECT_DEPENDENCIES)
+    val directDeps =
+      LinkedHashSet(configuration.getList(JdepsGenConfigurationKeys.DIRECT_DEPENDENCIES))
     val targetLabel = configuration.getNotNull(JdepsGenConfigurationKeys.TARGET_LABEL)
-    val explicitDeps = createDepsMap(explicitClassesCanonicalPaths)
+    val workingDir = configuration.get(JdepsGenConfigurationKeys.WORKING_DIR)
+    val jarPaths = JarPaths(workingDir, directDeps)
+    val explicitDeps = createDepsMap(explicitClasses, jarPaths)
 
     doWriteJdeps(
       directDeps = directDeps,
       targetLabel = targetLabel,
       explicitDeps = explicitDeps,
-      implicitClassesCanonicalPaths = implicitClassesCanonicalPaths,
+      implicitDeps = createDepsMap(implicitClasses, jarPaths),
       configuration = configuration,
     )
 
+    configuration.get(JdepsGenConfigurationKeys.OUTPUT_SOURCE_JDEPS)?.let {
+      doWriteSourceJdeps(
+        output = it,
+        targetLabel = targetLabel,
+        explicitSources = createDepsMap(explicitSources, jarPaths),
+        implicitSources = createDepsMap(implicitSources, jarPaths),
+        jarPaths = jarPaths,
+      )
+    }
+
     doStrictDeps(
       compilerConfiguration = configuration,
       targetLabel = targetLabel,
       directDeps = directDeps,
       explicitDeps = explicitDeps,
+      workingDir = workingDir,
     )
   }
 }
 
 /**
- * Returns a map of jars to classes loaded from those jars.
+ * Maps the absolute jar locations reported by the compiler back to the paths the jars were given
+ * as: direct dependencies keep their own spelling, other jars under the working directory become
+ * relative to it.
  */
-private fun createDepsMap(classes: Set<String>): Map<String, List<String>> {
-  val jarsToClasses = HashMap<String, MutableList<String>>()
-  for (aClass in classes) {
-    val parts = aClass.split("!/")
-    val jarPath = parts[0]
-    if (jarPath.endsWith(".jar")) {
-      jarsToClasses.computeIfAbsent(jarPath) { ArrayList() }.add(parts[1])
+private class JarPaths(
+  workingDir: String?,
+  directDeps: Collection<String>,
+) {
+  private val root = workingDir?.let { Path.of(it) }
+  private val directDepsByLocation =
+    directDeps.associateBy { (root?.resolve(it) ?: Path.of(it)).normalize().toString() }
+
+  fun of(location: String): String = directDepsByLocation[location] ?: relative(location)
+
+  /** Returns [path] relative to the working directory if it is under it, else unchanged. */
+  fun relative(path: String): String {
+    val absolute = Path.of(path)
+    return if (root != null && absolute.startsWith(root)) {
+      root.relativize(absolute).toString()
+    } else {
+      path
     }
   }
+}
+
+/**
+ * Returns a map of jars to classes loaded from those jars, keyed by the jar paths of [jarPaths].
+ */
+private fun createDepsMap(
+  classesByLocation: Map<String, List<String>>,
+  jarPaths: JarPaths,
+): Map<String, List<String>> {
+  val jarsToClasses = HashMap<String, MutableList<String>>()
+  for ((location, classes) in classesByLocation) {
+    jarsToClasses.computeIfAbsent(jarPaths.of(location)) { ArrayList() }.addAll(classes)
+  }
   return jarsToClasses
 }
 
 private fun doWriteJdeps(
-  directDeps: MutableList<String>,
+  directDeps: Set<String>,
   targetLabel: String,
   explicitDeps: Map<String, List<String>>,
-  implicitClassesCanonicalPaths: Set<String>,
+  implicitDeps: Map<String, List<String>>,
   configuration: CompilerConfiguration,
 ) {
-  val implicitDeps = createDepsMap(implicitClassesCanonicalPaths)
-
   val deps = mutableListOf<Deps.Dependency>()
 
-  val unusedDeps = directDeps.subtract(explicitDeps.keys)
-  for (jarPath in unusedDeps) {
+  for (jarPath in directDeps) {
+    if (jarPath in explicitDeps) {
+      continue
+    }
     val dependency = Deps.Dependency.newBuilder()
     dependency.kind = Deps.Dependency.Kind.UNUSED
     dependency.path = jarPath
@@ -75,7 +124,10 @@ private fun doWriteJdeps(
     deps.add(dependency.build())
   }
 
-  for (path in implicitDeps.keys.subtract(explicitDeps.keys)) {
+  for (path in implicitDeps.keys) {
+    if (path in explicitDeps) {
+      continue
+    }
     val dependency = Deps.Dependency.newBuilder()
     dependency.kind = Deps.Dependency.Kind.IMPLICIT
     dependency.path = path
@@ -93,16 +145,62 @@ private fun doWriteJdeps(
   Files.write(Path.of(jdepsOutput), rootBuilder.build().toByteArray())
 }
 
+/**
+ * Writes a jdeps file attributing the used dependencies to source files: each dependency lists
+ * the source files needing it, explicitly or not, as its locations without line numbers. The kind
+ * of a dependency is the one of the main jdeps file. Unused dependencies are left out.
+ */
+private fun doWriteSourceJdeps(
+  output: String,
+  targetLabel: String,
+  explicitSources: Map<String, List<String>>,
+  implicitSources: Map<String, List<String>>,
+  jarPaths: JarPaths,
+) {
+  fun dependency(
+    jarPath: String,
+    kind: Deps.Dependency.Kind,
+    sources: List<String>,
+  ): Deps.Dependency {
+    val dependency = Deps.Dependency.newBuilder()
+    dependency.kind = kind
+    dependency.path = jarPath
+    for (source in sources.asSequence().map(jarPaths::relative).distinct().sorted()) {
+      dependency.addLocation(Deps.SourceLocation.newBuilder().setPath(source))
+    }
+    return dependency.build()
+  }
+
+  val deps = mutableListOf<Deps.Dependency>()
+  for ((jarPath, sources) in explicitSources) {
+    val allSources = sources + implicitSources[jarPath].orEmpty()
+    deps.add(dependency(jarPath, Deps.Dependency.Kind.EXPLICIT, allSources))
+  }
+  for ((jarPath, sources) in implicitSources) {
+    if (jarPath !in explicitSources) {
+      deps.add(dependency(jarPath, Deps.Dependency.Kind.IMPLICIT, sources))
+    }
+  }
+  deps.sortBy { it.path }
+
+  val root = Deps.Dependencies.newBuilder()
+  root.success = true
+  root.ruleLabel = targetLabel
+  root.addAllDependency(deps)
+  Files.write(Path.of(output), root.build().toByteArray())
+}
+
 private fun doStrictDeps(
   compilerConfiguration: CompilerConfiguration,
   targetLabel: String,
-  directDeps: MutableList<String>,
+  directDeps: Set<String>,
   explicitDeps: Map<String, List<String>>,
+  workingDir: String?,
 ) {
   when (compilerConfiguration.getNotNull(JdepsGenConfigurationKeys.STRICT_KOTLIN_DEPS)) {
-    "warn" -> checkStrictDeps(explicitDeps, directDeps, targetLabel)
+    "warn" -> checkStrictDeps(explicitDeps, directDeps, targetLabel, workingDir)
     "error" -> {
-      require(!checkStrictDeps(explicitDeps, directDeps, targetLabel)) {
+      require(!checkStrictDeps(explicitDeps, directDeps, targetLabel, workingDir)) {
         "Strict Deps Violations - please fix"
       }
     }
@@ -114,13 +212,17 @@ private fun doStrictDeps(
  */
 private fun checkStrictDeps(
   result: Map<String, List<String>>,
-  directDeps: List<String>,
+  directDeps: Set<String>,
   targetLabel: String,
+  workingDir: String?,
 ): Boolean {
   val missingStrictDeps = result.keys
     .asSequence()
-    .filter { !directDeps.contains(it) }
-    .map { JarOwner.readJarOwnerFromManifest(Path.of(it)) }
+    .filter { it !in directDeps }
+    .map {
+      val jar = workingDir?.let { dir -> Path.of(dir).resolve(it) } ?: Path.of(it)
+      JarOwner.readJarOwnerFromManifest(jar)
+    }
     .toList()
 
   if (missingStrictDeps.isEmpty()) {
@@ -26,6 +26,20 @@ class JdepsGenCommandLineProcessor : CommandLineProcessor {
       )
     val STRICT_KOTLIN_DEPS_OPTION: CliOption =
       CliOption("strict_kotlin_deps", "<String>", "Report strict deps violations", required = true)
+    val WORKING_DIR_OPTION: CliOption =
+      CliOption(
+        "working_dir",
+        "<path>",
+        "Directory the dependency paths are relative to",
+        required = false,
+      )
+    val OUTPUT_SOURCE_JDEPS_FILE_OPTION: CliOption =
+      CliOption(
+        "output_sources",
+        "<path>",
+        "Output path for the jdeps listing the source files using each dependency",
+        required = false,
+      )
   }
 
   override val pluginId: String
@@ -36,6 +50,8 @@ class JdepsGenCommandLineProcessor : CommandLineProcessor {
         TARGET_LABEL_OPTION,
         DIRECT_DEPENDENCIES_OPTION,
         STRICT_KOTLIN_DEPS_OPTION,
+        WORKING_DIR_OPTION,
+        OUTPUT_SOURCE_JDEPS_FILE_OPTION,
       )
 
   override fun processOption(
@@ -56,6 +72,9 @@ class JdepsGenCommandLineProcessor : CommandLineProcessor {
           JdepsGenConfigurationKeys.STRICT_KOTLIN_DEPS,
           value,
         )
+      WORKING_DIR_OPTION -> configuration.put(JdepsGenConfigurationKeys.WORKING_DIR, value)
+      OUTPUT_SOURCE_JDEPS_FILE_OPTION ->
+        configuration.put(JdepsGenConfigurationKeys.OUTPUT_SOURCE_JDEPS, value)
       else -> throw CliOptionProcessingException("Unknown option: ${option.optionName}")
     }
   }
@@ -15,7 +15,9 @@ class JdepsGenComponentRegistrar : CompilerPluginRegistrar() {
     get() = true
 
   override fun ExtensionStorage.registerExtensions(configuration: CompilerConfiguration) {
-    val classUsageRecorder = ClassUsageRecorder()
+    val classUsageRecorder = ClassUsageRecorder(
+      recordSources = configuration.get(JdepsGenConfigurationKeys.OUTPUT_SOURCE_JDEPS) != null,
+    )
     val genExtension = JdepsGenExtension2(classUsageRecorder, configuration)
     FirExtensionRegistrarAdapter.registerExtension(JdepsFirExtensions(classUsageRecorder))
     ClassFileFactoryFinalizerExtension.registerExtension(genExtension)
@@ -28,8 +30,10 @@ private class JdepsGenExtension2(
 ) : BaseJdepsGenExtension(configuration), ClassFileFactoryFinalizerExtension {
   override fun finalizeClassFactory(factory: ClassFileFactory) {
     onAnalysisCompleted(
-      explicitClassesCanonicalPaths = classUsageRecorder.explicitClassesCanonicalPaths,
-      implicitClassesCanonicalPaths = classUsageRecorder.implicitClassesCanonicalPaths,
+      explicitClasses = classUsageRecorder.explicitDeps(),
+      implicitClasses = classUsageRecorder.implicitDeps(),
+      explicitSources = classUsageRecorder.explicitSources(),
+      implicitSources = classUsageRecorder.implicitSources(),
     )
   }
 }
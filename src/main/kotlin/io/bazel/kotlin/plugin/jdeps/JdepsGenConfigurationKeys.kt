@@ -32,4 +32,19 @@ object JdepsGenConfigurationKeys {
     CompilerConfigurationKey.create(
       JdepsGenCommandLineProcessor.DIRECT_DEPENDENCIES_OPTION.description,
     )
+
+  /**
+   * Directory the direct dependencies are relative to. Jars outside of it are not reported.
+   */
+  val WORKING_DIR: CompilerConfigurationKey<String> =
+    CompilerConfigurationKey.create(JdepsGenCommandLineProcessor.WORKING_DIR_OPTION.description)
+
+  /**
+   * Output path of the jdeps proto file listing, for each used dependency, the source files using
+   * it. Not written if unset.
+   */
+  val OUTPUT_SOURCE_JDEPS: CompilerConfigurationKey<String> =
+    CompilerConfigurationKey.create(
+      JdepsGenCommandLineProcessor.OUTPUT_SOURCE_JDEPS_FILE_OPTION.description,
+    )
 }
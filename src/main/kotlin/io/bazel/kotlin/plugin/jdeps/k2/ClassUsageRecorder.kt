@@ -1,6 +1,8 @@
 package io.bazel.kotlin.plugin.jdeps.k2
 
+import org.jetbrains.kotlin.fir.FirSession
 import org.jetbrains.kotlin.fir.analysis.checkers.context.CheckerContext
+import org.jetbrains.kotlin.fir.declarations.FirFile
 import org.jetbrains.kotlin.fir.declarations.utils.sourceElement
 import org.jetbrains.kotlin.fir.resolve.providers.symbolProvider
 import org.jetbrains.kotlin.fir.symbols.impl.FirClassLikeSymbol
@@ -11,31 +13,82 @@ import org.jetbrains.kotlin.fir.types.classId
 import org.jetbrains.kotlin.fir.types.coneType
 import org.jetbrains.kotlin.fir.types.forEachType
 import org.jetbrains.kotlin.name.ClassId
+import org.jetbrains.kotlin.serialization.deserialization.descriptors.DeserializedContainerSource
+import java.util.BitSet
+import java.util.IdentityHashMap
 
-//private const val JAR_FILE_SEPARATOR = "!/"
+private const val JAR_FILE_SEPARATOR = "!/"
 private const val ANONYMOUS = "<anonymous>"
 
+/** Location of classes that are not loaded from a jar. */
+private const val NOT_IN_JAR = -1L
+
+/** Location of a class that was not looked up yet. */
+private const val UNKNOWN_LOCATION = Long.MIN_VALUE
+
+/**
+ * Records the classes used by the sources being compiled, grouped by the jar they come from.
+ *
+ * Checkers call it for most expressions and type references, so it avoids allocating for
+ * repeated usages: jar paths and class names are interned to int ids, the classes used from a jar
+ * are kept as bit sets of those ids, and the location of a class is parsed only once.
+ *
+ * Recording a class also records its supertypes and, optionally, the bounds of its type
+ * parameters. That closure only depends on the class and the flags, so it is computed once per
+ * session and replayed for every later usage.
+ *
+ * With [recordSources], the jars used by each source file are recorded as well, as bit sets of
+ * jar ids per file.
+ */
 internal class ClassUsageRecorder(
-//  private val rootPath: String,
+  private val recordSources: Boolean = false,
 ) {
-  @JvmField val explicitClassesCanonicalPaths: MutableSet<String> = HashSet()
-  @JvmField val implicitClassesCanonicalPaths: MutableSet<String> = HashSet()
+  private val jarIds = HashMap<String, Int>()
+  private val jarPaths = ArrayList<String>()
+  private val classIds = HashMap<String, Int>()
+  private val classNames = ArrayList<String>()
+  private val explicitClasses = ArrayList<BitSet>()
+  private val implicitClasses = ArrayList<BitSet>()
+
+  /** Jar and class id of a class location, packed in a long, or [NOT_IN_JAR]. */
+  private val locations = HashMap<String, Long>()
+
+  /** What is known about each class, per session. */
+  private val sessions = HashMap<FirSession, HashMap<ClassId, ClassInfo>>()
+  private var lastSession: FirSession? = null
+  private var lastClasses = HashMap<ClassId, ClassInfo>()
 
-//  private val javaHome: String by lazy { System.getenv()["JAVA_HOME"] ?: "<not set>" }
+  /**
+   * Classes already recorded in [visitedFile], with a bit per [isExplicit] and
+   * [collectTypeArguments] combination, so a file replays each closure once.
+   */
+  private val visited = HashMap<ClassId, Int>()
+  private var visitedFile: FirFile? = null
+
+  /** Paths of the source files and the jars each of them uses, if [recordSources] is set. */
+  private val sourcePaths = ArrayList<String>()
+  private val explicitJarsBySource = ArrayList<BitSet>()
+  private val implicitJarsBySource = ArrayList<BitSet>()
+  private val sourceIds = IdentityHashMap<FirFile, Int>()
+  private var lastSourceFile: FirFile? = null
+  private var lastSourceId = -1
+
+  /** Scratch state of the closure being computed. */
+  private val closureVisited = HashMap<ClassId, Int>()
+  private val closureExplicit = LinkedHashSet<Long>()
+  private val closureImplicit = LinkedHashSet<Long>()
 
   internal fun recordTypeRef(
     typeRef: FirTypeRef,
     context: CheckerContext,
     isExplicit: Boolean = true,
     collectTypeArguments: Boolean = true,
-    visited: MutableSet<Pair<ClassId, Boolean>> = HashSet(),
   ) {
     recordConeType(
       coneKotlinType = typeRef.coneType,
       context = context,
       isExplicit = isExplicit,
       collectTypeArguments = collectTypeArguments,
-      visited = visited,
     )
   }
 
@@ -44,106 +97,336 @@ internal class ClassUsageRecorder(
     context: CheckerContext,
     isExplicit: Boolean = true,
     collectTypeArguments: Boolean = true,
-    visited: MutableSet<Pair<ClassId, Boolean>> = HashSet(),
+  ) {
+    forEachClass(coneKotlinType, context.session, collectTypeArguments) { info ->
+      record(info, context, isExplicit, collectTypeArguments)
+    }
+  }
+
+  internal fun recordClass(
+    firClass: FirClassLikeSymbol<*>,
+    context: CheckerContext,
+    isExplicit: Boolean = true,
+    collectTypeArguments: Boolean = true,
+  ) {
+    record(infoOf(firClass, context.session), context, isExplicit, collectTypeArguments)
+  }
+
+  /** Records the class file of a deserialized callable, like a top level function. */
+  internal fun recordContainer(
+    source: DeserializedContainerSource,
+    context: CheckerContext,
+  ) {
+    val classId = source.classId()
+    val location = if (classId == null) {
+      source.binaryClass()?.let(::locationOf) ?: NOT_IN_JAR
+    } else {
+      val info = infoOf(classId, context.session)
+      if (info.location == UNKNOWN_LOCATION) {
+        info.location = source.binaryClass()?.let(::locationOf) ?: NOT_IN_JAR
+      }
+      info.location
+    }
+    add(location, context, isExplicit = true)
+  }
+
+  internal fun addClass(
+    path: String,
+    context: CheckerContext,
+    isExplicit: Boolean,
+  ) {
+    add(locationOf(path), context, isExplicit)
+  }
+
+  /** Returns the classes used explicitly, keyed by the location of their jar. */
+  internal fun explicitDeps(): Map<String, List<String>> = depsOf(explicitClasses)
+
+  /** Returns the classes only needed by the compiler, keyed by the location of their jar. */
+  internal fun implicitDeps(): Map<String, List<String>> = depsOf(implicitClasses)
+
+  /**
+   * Returns the source files using classes explicitly, keyed by the location of their jar. Empty
+   * unless [recordSources] is set.
+   */
+  internal fun explicitSources(): Map<String, List<String>> = sourcesOf(explicitJarsBySource)
+
+  /**
+   * Returns the source files only needing classes for the compiler, keyed by the location of their
+   * jar. Empty unless [recordSources] is set.
+   */
+  internal fun implicitSources(): Map<String, List<String>> = sourcesOf(implicitJarsBySource)
+
+  private fun record(
+    info: ClassInfo,
+    context: CheckerContext,
+    isExplicit: Boolean,
+    collectTypeArguments: Boolean,
+  ) {
+    if (!markVisited(info.classId, context, isExplicit, collectTypeArguments)) {
+      return
+    }
+    val closure = closureOf(info, context.session, isExplicit, collectTypeArguments)
+    for (location in closure.explicit) {
+      add(location, context, isExplicit = true)
+    }
+    for (location in closure.implicit) {
+      add(location, context, isExplicit = false)
+    }
+  }
+
+  private fun closureOf(
+    info: ClassInfo,
+    session: FirSession,
+    isExplicit: Boolean,
+    collectTypeArguments: Boolean,
+  ): Closure {
+    val index = flagIndex(isExplicit, collectTypeArguments)
+    info.closures[index]?.let { return it }
+    try {
+      walk(info, session, isExplicit, collectTypeArguments)
+      val closure = Closure(closureExplicit.toLongArray(), closureImplicit.toLongArray())
+      info.closures[index] = closure
+      return closure
+    } finally {
+      closureVisited.clear()
+      closureExplicit.clear()
+      closureImplicit.clear()
+    }
+  }
+
+  private fun walk(
+    info: ClassInfo,
+    session: FirSession,
+    isExplicit: Boolean,
+    collectTypeArguments: Boolean,
+  ) {
+    val bit = 1 shl flagIndex(isExplicit, collectTypeArguments)
+    val flags = closureVisited[info.classId] ?: 0
+    if (flags and bit != 0) {
+      return
+    }
+    closureVisited[info.classId] = flags or bit
+
+    // a complete closure of the class stands in for walking it again
+    val known = info.closures[flagIndex(isExplicit, collectTypeArguments)]
+    if (known != null) {
+      closureExplicit.addAll(known.explicit.asList())
+      closureImplicit.addAll(known.implicit.asList())
+      return
+    }
+
+    val firClass = info.symbol(session) ?: return
+    if (info.location == UNKNOWN_LOCATION) {
+      info.location = firClass.sourceElement?.binaryClass()?.let(::locationOf) ?: NOT_IN_JAR
+    }
+    if (info.location != NOT_IN_JAR) {
+      (if (isExplicit) closureExplicit else closureImplicit).add(info.location)
+    }
+
+    if (firClass is FirClassSymbol<*>) {
+      for (typeRef in firClass.resolvedSuperTypeRefs) {
+        forEachClass(typeRef.coneType, session, collectTypeArguments) {
+          walk(it, session, isExplicit = false, collectTypeArguments = collectTypeArguments)
+        }
+      }
+      if (collectTypeArguments) {
+        for (typeParameter in firClass.typeParameterSymbols) {
+          for (bound in typeParameter.resolvedBounds) {
+            forEachClass(bound.coneType, session, collectTypeArguments = true) {
+              walk(it, session, isExplicit = isExplicit, collectTypeArguments = true)
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Calls [action] for the classes of [type]: all classes in it, including type arguments, if
+   * [collectTypeArguments] is set, only its own class otherwise.
+   */
+  private inline fun forEachClass(
+    type: ConeKotlinType,
+    session: FirSession,
+    collectTypeArguments: Boolean,
+    crossinline action: (ClassInfo) -> Unit,
   ) {
     if (collectTypeArguments) {
-      coneKotlinType.forEachType(
+      type.forEachType(
         action = { coneType ->
           val classId = coneType.classId ?: return@forEachType
-          if (ANONYMOUS in classId.toString()) return@forEachType
-          context.session.symbolProvider
-            .getClassLikeSymbolByClassId(classId)
-            ?.let { recordClass(
-              firClass = it,
-              context = context,
-              isExplicit = isExplicit,
-              collectTypeArguments = collectTypeArguments,
-              visited = visited
-            ) }
+          val info = infoOf(classId, session)
+          if (!info.isAnonymous && info.symbol(session) != null) {
+            action(info)
+          }
         },
       )
     } else {
-      coneKotlinType.classId?.let { classId ->
-        if (!classId.isLocal) {
-          context.session.symbolProvider
-            .getClassLikeSymbolByClassId(classId)
-            ?.let {
-              recordClass(
-                firClass = it,
-                context = context,
-                isExplicit = isExplicit,
-                collectTypeArguments = false,
-                visited = visited,
-              )
-            }
+      val classId = type.classId ?: return
+      if (!classId.isLocal) {
+        val info = infoOf(classId, session)
+        if (info.symbol(session) != null) {
+          action(info)
         }
       }
     }
   }
 
-  internal fun recordClass(
+  private fun infoOf(
+    classId: ClassId,
+    session: FirSession,
+  ): ClassInfo = classesOf(session).getOrPut(classId) { ClassInfo(classId) }
+
+  private fun infoOf(
     firClass: FirClassLikeSymbol<*>,
+    session: FirSession,
+  ): ClassInfo {
+    val info = infoOf(firClass.classId, session)
+    if (!info.isResolved) {
+      info.resolved(firClass)
+    }
+    return info
+  }
+
+  private fun classesOf(session: FirSession): HashMap<ClassId, ClassInfo> {
+    if (session !== lastSession) {
+      lastClasses = sessions.getOrPut(session) { HashMap() }
+      lastSession = session
+    }
+    return lastClasses
+  }
+
+  private fun add(
+    location: Long,
     context: CheckerContext,
-    isExplicit: Boolean = true,
-    collectTypeArguments: Boolean = true,
-    visited: MutableSet<Pair<ClassId, Boolean>> = HashSet(),
+    isExplicit: Boolean,
   ) {
-    val classIdAndIsExplicit = firClass.classId to isExplicit
-    if (!visited.add(classIdAndIsExplicit)) {
+    if (location == NOT_IN_JAR) {
       return
     }
+    val jarId = (location ushr 32).toInt()
+    val classes = if (isExplicit) explicitClasses[jarId] else implicitClasses[jarId]
+    classes.set(location.toInt())
+    if (recordSources) {
+      val sourceId = sourceIdOf(context)
+      if (sourceId != -1) {
+        (if (isExplicit) explicitJarsBySource else implicitJarsBySource)[sourceId].set(jarId)
+      }
+    }
+  }
 
-    firClass.sourceElement?.binaryClass()?.let { addClass(path = it, isExplicit = isExplicit) }
+  /** Returns the id of the file being checked, or -1 if the usage is not in a file. */
+  private fun sourceIdOf(context: CheckerContext): Int {
+    val file = context.containingFile ?: return -1
+    if (file !== lastSourceFile) {
+      lastSourceId = sourceIds.getOrPut(file) {
+        sourcePaths.add(file.sourceFile?.path ?: file.name)
+        explicitJarsBySource.add(BitSet())
+        implicitJarsBySource.add(BitSet())
+        sourcePaths.size - 1
+      }
+      lastSourceFile = file
+    }
+    return lastSourceId
+  }
 
-    if (firClass is FirClassSymbol<*>) {
-      for (typeRef in firClass.resolvedSuperTypeRefs) {
-        recordTypeRef(
-          typeRef = typeRef,
-          context = context,
-          isExplicit = false,
-          collectTypeArguments = collectTypeArguments,
-          visited = visited,
-        )
+  private fun sourcesOf(jarsBySource: List<BitSet>): Map<String, List<String>> {
+    val sources = HashMap<String, MutableList<String>>()
+    for ((sourceId, jars) in jarsBySource.withIndex()) {
+      jars.stream().forEach {
+        sources.getOrPut(jarPaths[it]) { ArrayList() }.add(sourcePaths[sourceId])
       }
-      if (collectTypeArguments) {
-        firClass.typeParameterSymbols
-          .asSequence()
-          .flatMap { it.resolvedBounds }
-          .forEach {
-            recordTypeRef(
-              typeRef = it,
-              context = context,
-              isExplicit = isExplicit,
-              collectTypeArguments = true,
-              visited = visited,
-            )
-          }
+    }
+    return sources
+  }
+
+  private fun depsOf(classesByJar: List<BitSet>): Map<String, List<String>> {
+    val deps = HashMap<String, List<String>>()
+    for ((jarId, classes) in classesByJar.withIndex()) {
+      if (!classes.isEmpty) {
+        val names = ArrayList<String>(classes.cardinality())
+        classes.stream().forEach { names.add(classNames[it]) }
+        deps[jarPaths[jarId]] = names
       }
     }
+    return deps
   }
 
-  internal fun addClass(
-    path: String,
+  /** Returns false if the class was already recorded with the same flags in the current file. */
+  private fun markVisited(
+    classId: ClassId,
+    context: CheckerContext,
+    isExplicit: Boolean,
+    collectTypeArguments: Boolean,
+  ): Boolean {
+    val file = context.containingFile
+    if (file !== visitedFile) {
+      visited.clear()
+      visitedFile = file
+    }
+    val bit = 1 shl flagIndex(isExplicit, collectTypeArguments)
+    val flags = visited[classId] ?: 0
+    if (flags and bit != 0) {
+      return false
+    }
+    visited[classId] = flags or bit
+    return true
+  }
+
+  private fun locationOf(path: String): Long = locations.getOrPut(path) { parseLocation(path) }
+
+  private fun parseLocation(path: String): Long {
+    val separator = path.indexOf(JAR_FILE_SEPARATOR)
+    if (separator == -1 || !path.regionMatches(separator - 4, ".jar", 0, 4)) {
+      return NOT_IN_JAR
+    }
+    val jarId = jarIds.getOrPut(path.substring(0, separator)) {
+      jarPaths.add(path.substring(0, separator))
+      explicitClasses.add(BitSet())
+      implicitClasses.add(BitSet())
+      jarPaths.size - 1
+    }
+    val className = path.substring(separator + JAR_FILE_SEPARATOR.length)
+    val classId = classIds.getOrPut(className) {
+      classNames.add(className)
+      classNames.size - 1
+    }
+    return (jarId.toLong() shl 32) or classId.toLong()
+  }
+
+  private fun flagIndex(
     isExplicit: Boolean,
+    collectTypeArguments: Boolean,
+  ): Int = (if (isExplicit) 1 else 0) or (if (collectTypeArguments) 2 else 0)
+
+  /** Locations recorded by a class, its supertypes and type parameter bounds. */
+  private class Closure(
+    @JvmField val explicit: LongArray,
+    @JvmField val implicit: LongArray,
+  )
+
+  /** Lookups of a class, done at most once per session. */
+  private class ClassInfo(
+    @JvmField val classId: ClassId,
   ) {
-    if (isExplicit) {
-      explicitClassesCanonicalPaths.add(path)
-    } else {
-      implicitClassesCanonicalPaths.add(path)
-    }
-
-//    if (path.contains(JAR_FILE_SEPARATOR) && !path.contains(javaHome)) {
-//      val (jarPath, classPath) = path.split(JAR_FILE_SEPARATOR)
-//      // Convert jar files in current directory to relative paths. Remaining absolute are outside
-//      // of project and should be ignored
-//      val relativizedJarPath = Paths.get(jarPath.replace(rootPath, ""))
-//      if (!relativizedJarPath.isAbsolute) {
-//        val occurrences =
-//          results.computeIfAbsent(relativizedJarPath.toString()) { sortedSetOf<String>() }
-//        if (!isJvmClass(classPath)) {
-//          occurrences.add(classPath)
-//        }
-//      }
-//    }
+    @JvmField val isAnonymous: Boolean = ANONYMOUS in classId.toString()
+    @JvmField var location: Long = UNKNOWN_LOCATION
+    @JvmField val closures: Array<Closure?> = arrayOfNulls(4)
+    var isResolved: Boolean = false
+      private set
+    private var symbol: FirClassLikeSymbol<*>? = null
+
+    fun resolved(symbol: FirClassLikeSymbol<*>) {
+      this.symbol = symbol
+      isResolved = true
+    }
+
+    fun symbol(session: FirSession): FirClassLikeSymbol<*>? {
+      if (!isResolved) {
+        symbol = session.symbolProvider.getClassLikeSymbolByClassId(classId)
+        isResolved = true
+      }
+      return symbol
+    }
   }
 }
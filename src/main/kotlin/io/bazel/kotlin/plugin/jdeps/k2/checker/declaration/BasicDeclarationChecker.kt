@@ -7,7 +7,6 @@ import org.jetbrains.kotlin.fir.analysis.checkers.context.CheckerContext
 import org.jetbrains.kotlin.fir.analysis.checkers.declaration.FirBasicDeclarationChecker
 import org.jetbrains.kotlin.fir.declarations.FirDeclaration
 import org.jetbrains.kotlin.fir.declarations.toAnnotationClassLikeSymbol
-import org.jetbrains.kotlin.name.ClassId
 
 internal class BasicDeclarationChecker(
   private val classUsageRecorder: ClassUsageRecorder,
@@ -17,16 +16,9 @@ internal class BasicDeclarationChecker(
     context: CheckerContext,
     reporter: DiagnosticReporter,
   ) {
-    var visited: HashSet<Pair<ClassId, Boolean>>? = null
     for (annotation in declaration.annotations) {
       val symbol = annotation.toAnnotationClassLikeSymbol(context.session) ?: continue
-      if (visited == null) {
-        visited = HashSet()
-      }
-      else {
-        visited.clear()
-      }
-      classUsageRecorder.recordClass(firClass = symbol, context = context, visited = visited)
+      classUsageRecorder.recordClass(firClass = symbol, context = context)
     }
   }
 }
@@ -8,7 +8,6 @@ import org.jetbrains.kotlin.fir.analysis.checkers.declaration.FirCallableDeclara
 import org.jetbrains.kotlin.fir.declarations.FirAnonymousFunction
 import org.jetbrains.kotlin.fir.declarations.FirCallableDeclaration
 import org.jetbrains.kotlin.fir.declarations.utils.isExtension
-import org.jetbrains.kotlin.name.ClassId
 
 internal class CallableChecker(
   private val classUsageRecorder: ClassUsageRecorder,
@@ -22,22 +21,18 @@ internal class CallableChecker(
     context: CheckerContext,
     reporter: DiagnosticReporter,
   ) {
-    val visited = HashSet<Pair<ClassId, Boolean>>()
     // return type
     classUsageRecorder.recordTypeRef(
       typeRef = declaration.returnTypeRef,
       context = context,
-      visited = visited,
     )
 
     // type params
     for (typeParam in declaration.typeParameters) {
       for (typeParamBound in typeParam.symbol.resolvedBounds) {
-        visited.clear()
         classUsageRecorder.recordTypeRef(
           typeRef = typeParamBound,
           context = context,
-          visited = visited,
         )
       }
     }
@@ -45,12 +40,10 @@ internal class CallableChecker(
     // receiver param for extensions
     if (declaration !is FirAnonymousFunction) {
       declaration.receiverParameter?.typeRef?.let {
-        visited.clear()
         classUsageRecorder.recordTypeRef(
           typeRef = it,
           context = context,
           isExplicit = declaration.isExtension,
-          visited = visited,
         )
       }
     }
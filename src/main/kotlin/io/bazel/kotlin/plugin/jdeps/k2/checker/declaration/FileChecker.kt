@@ -29,24 +29,25 @@ internal class FileChecker(
     context: CheckerContext,
     reporter: DiagnosticReporter,
   ) {
-    val visited = HashSet<Pair<ClassId, Boolean>>()
     for (import in declaration.imports.filterIsInstance<FirResolvedImport>()) {
       // check for classlike import (class, interface, object, enum, annotation, etc)
       if (import.resolvesToClass(context)) {
         import.classId()?.resolveToClass(context)?.let {
-          visited.clear()
-          classUsageRecorder.recordClass(firClass = it, context = context, visited = visited)
+          classUsageRecorder.recordClass(firClass = it, context = context)
         }
       } else {
         // check for function import
         val callableBinaryClass = import.resolveToFun(context)?.containerSource?.binaryClass()
         if (callableBinaryClass != null) {
-          classUsageRecorder.addClass(path = callableBinaryClass, isExplicit = true)
+          classUsageRecorder.addClass(
+            path = callableBinaryClass,
+            context = context,
+            isExplicit = true,
+          )
         } else {
           // for other symbols, track the parent class
           import.resolvedParentClassId?.resolveToClass(context)?.let {
-            visited.clear()
-            classUsageRecorder.recordClass(firClass = it, context = context, visited = visited)
+            classUsageRecorder.recordClass(firClass = it, context = context)
           }
         }
       }
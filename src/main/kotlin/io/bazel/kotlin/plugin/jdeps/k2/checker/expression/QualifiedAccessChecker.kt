@@ -1,7 +1,6 @@
 package io.bazel.kotlin.plugin.jdeps.k2.checker.expression
 
 import io.bazel.kotlin.plugin.jdeps.k2.ClassUsageRecorder
-import io.bazel.kotlin.plugin.jdeps.k2.binaryClass
 import org.jetbrains.kotlin.diagnostics.DiagnosticReporter
 import org.jetbrains.kotlin.fir.analysis.checkers.MppCheckerKind
 import org.jetbrains.kotlin.fir.analysis.checkers.context.CheckerContext
@@ -26,8 +25,8 @@ internal class QualifiedAccessChecker(
   ) {
     // track function's owning class
     val resolvedCallableSymbol = expression.toResolvedCallableSymbol()
-    resolvedCallableSymbol?.containerSource?.binaryClass()?.let {
-      classUsageRecorder.addClass(path = it, isExplicit = true)
+    resolvedCallableSymbol?.containerSource?.let {
+      classUsageRecorder.recordContainer(source = it, context = context)
     }
 
     // track return type
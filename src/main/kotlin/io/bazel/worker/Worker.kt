@@ -62,6 +62,9 @@ internal class PersistentWorker : Worker {
               workingDir = workingDir,
               workerContext = workerContext,
               name = "request ${request.requestId}",
+              inputDigests = request.inputsList.associate {
+                it.path to toHex(it.digest.toByteArray())
+              },
               task = { taskContext -> executeTask(taskContext, request.argumentsList) },
             )
             printWriter.print(result.log.out.toString())
@@ -82,6 +85,18 @@ internal class PersistentWorker : Worker {
   }
 }
 
+private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+
+private fun toHex(bytes: ByteArray): String {
+  val chars = CharArray(bytes.size * 2)
+  for ((index, byte) in bytes.withIndex()) {
+    val value = byte.toInt() and 0xff
+    chars[index * 2] = HEX_DIGITS[value ushr 4]
+    chars[index * 2 + 1] = HEX_DIGITS[value and 0x0f]
+  }
+  return String(chars)
+}
+
 class InvocationWorker(
   private val args: List<String>,
 ) : Worker {
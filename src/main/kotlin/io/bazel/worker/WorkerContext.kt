@@ -65,12 +65,18 @@ inline fun doTask(
   workingDir: Path,
   workerContext: WorkerContext,
   name: String,
+  inputDigests: Map<String, String> = emptyMap(),
   task: (sub: TaskContext) -> Int,
 ): TaskResult {
   workerContext.scopeLogging.info { "start task $name" }
   val subLogging = workerContext.scopeLogging.narrowTo(name)
   val status = try {
-    TaskResult(task(TaskContext(workingDir = workingDir, logging = subLogging)), subLogging.contents())
+    val taskContext = TaskContext(
+      workingDir = workingDir,
+      logging = subLogging,
+      inputDigests = inputDigests,
+    )
+    TaskResult(task(taskContext), subLogging.contents())
   } catch (e: Throwable) {
     when (e.causes.lastOrNull()) {
       is InterruptedException, is InterruptedIOException -> subLogging.error(e) { "ERROR: Interrupted" }
@@ -151,4 +157,9 @@ internal val Throwable.causes
 class TaskContext @PublishedApi internal constructor(
   @JvmField val workingDir: Path,
   @JvmField val logging: ScopeLogging,
+  /**
+   * Hex encoded digests of the request inputs as reported by Bazel, keyed by the input path.
+   * Empty for invocations that do not go through the persistent worker protocol.
+   */
+  @JvmField val inputDigests: Map<String, String> = emptyMap(),
 )
@@ -2,6 +2,8 @@ _JARS_INSIDE_REPO = [
     "symbol-processing",
     "symbol-processing-api",
     "symbol-processing-cmdline",
+    "symbol-processing-aa-embeddable",
+    "symbol-processing-common-deps",
 ]
 
 def _ksp_compiler_plugin_repository_impl(repository_ctx):
@@ -81,6 +81,7 @@ abstract class KotlinAbstractTestBuilder<T> {
       Path.of(Deps.Dep.fromLabel("//kotlin/compiler:kotlin-compiler").singleCompileJar()),
       Path.of(Deps.Dep.fromLabel("//src/main/kotlin/io/bazel/kotlin/compiler:compiler.jar").singleCompileJar()),
       Path.of(Deps.Dep.fromLabel("//src/main/kotlin:skip-code-gen").singleCompileJar()),
+      Path.of(Deps.Dep.fromLabel("//src/main/kotlin:jdeps-gen").singleCompileJar()),
       Path.of(Deps.Dep.fromLabel("//kotlin/compiler:symbol-processing-api").singleCompileJar()),
       Path.of(Deps.Dep.fromLabel("//kotlin/compiler:symbol-processing-cmdline").singleCompileJar()),
       Path.of(Deps.Dep.fromLabel("@kotlinx_serialization_core_jvm//jar").singleCompileJar()),
@@ -120,6 +121,9 @@ abstract class KotlinAbstractTestBuilder<T> {
       .setModuleName("some_bogus_module")
       .setPlatform(Platform.JVM)
       .setRuleKind(RuleKind.LIBRARY)
+      .setPassthroughFlags(List.of())
+      .setStrictKotlinDeps("off")
+      .setReducedClasspathMode("NONE")
       .setToolchainInfo(toolchainBuilder);
     try {
       this.instanceRoot = Files.createTempDirectory(BAZEL_TEST_DIR, label);
@@ -19,6 +19,7 @@ package io.bazel.kotlin.builder;
 import io.bazel.kotlin.builder.Deps.AnnotationProcessor;
 import io.bazel.kotlin.builder.Deps.Dep;
 import io.bazel.kotlin.builder.KotlinJvmTestBuilder.JvmCompilationTaskBuilder.DirectoriesBuilder;
+import io.bazel.kotlin.builder.KotlinJvmTestBuilder.JvmCompilationTaskBuilder.OutputsBuilder;
 import io.bazel.kotlin.builder.tasks.jvm.KotlinJvmTaskExecutor;
 import io.bazel.kotlin.builder.toolchain.CompilationTaskContext;
 import io.bazel.kotlin.builder.toolchain.KotlinToolchain;
@@ -70,10 +71,15 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
     return component;
   }
 
+  public static KotlinJvmTaskExecutor jvmTaskExecutor() {
+    return component().jvmTaskExecutor();
+  }
+
   @Override
   void setupForNext(CompilationTaskInfoBuilder taskInfo) {
     taskBuilder = new JvmCompilationTaskBuilder();
     taskBuilder.setInfo(taskInfo);
+    taskBuilder.setOutputs(new OutputsBuilder());
 
     DirectoryType.createAll(instanceRoot(), ALL_DIRECTORY_TYPES);
 
@@ -129,12 +135,14 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
 
         return Dep.builder()
           .label(taskBuilder.info.label)
-          .compileJars(List.of(
-            (outputs.abiJar == null ? outputs.jar : outputs.abiJar).toString()
-          ))
-          .jdeps(outputs.jdeps.toString())
+          .compileJars(
+            Stream.of(outputs.abiJar == null ? outputs.jar : outputs.abiJar)
+              .filter(p -> p != null)
+              .map(Path::toString)
+              .collect(Collectors.toList()))
+          .jdeps(outputs.jdeps == null ? null : outputs.jdeps.toString())
           .runtimeDeps(taskBuilder.inputs.classpath.stream().map(Path::toString).collect(Collectors.toList()))
-          .sourceJar(taskBuilder.outputs.srcjar.toString())
+          .sourceJar(outputs.srcjar == null ? null : outputs.srcjar.toString())
           .build();
       });
   }
@@ -250,7 +258,8 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
         compilerPlugins,
         compilerPluginClasspath,
         javacFlags,
-        depsArtifacts
+        depsArtifacts,
+        sourceJars
       );
     }
   }
@@ -277,6 +286,12 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
     }
 
     public TaskBuilder compileJava() {
+      taskBuilder.setCompileJava(true);
+      return this;
+    }
+
+    public TaskBuilder javacOptions(String... options) {
+      taskBuilder.inputs.setJavacFlags(List.of(options));
       return this;
     }
 
@@ -287,11 +302,31 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
       return this;
     }
 
+    public TaskBuilder trace() {
+      taskBuilder.info.debug.add("trace");
+      return this;
+    }
+
     public TaskBuilder coverage() {
       taskBuilder.setInstrumentCoverage(true);
       return this;
     }
 
+    public TaskBuilder headerCompilation() {
+      taskBuilder.setHeaderCompilation(true);
+      return this;
+    }
+
+    public TaskBuilder useKsp2() {
+      taskBuilder.setUseKsp2(true);
+      return this;
+    }
+
+    public TaskBuilder passthroughFlags(String... flags) {
+      taskBuilder.info.setPassthroughFlags(List.of(flags));
+      return this;
+    }
+
     public void addAnnotationProcessors(AnnotationProcessor... annotationProcessors) {
       if (!taskBuilder.inputs.processors.isEmpty()) {
         throw new IllegalStateException("processors already set");
@@ -340,6 +375,23 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
       return this;
     }
 
+    public TaskBuilder outputUnusedInputsList(Path unusedInputsList) {
+      taskBuilder.outputs.setUnusedInputsList(unusedInputsList);
+      return this;
+    }
+
+    public TaskBuilder reducedClasspath(Dep... dependencies) {
+      taskBuilder.info.setReducedClasspathMode("KOTLINBUILDER_REDUCED");
+      Stream.of(dependencies).forEach(it -> taskBuilder.inputs.depsArtifacts.add(it.jdeps()));
+      return this;
+    }
+
+    public TaskBuilder outputSourceJdeps() {
+      taskBuilder.outputs
+        .setSourceJdeps(instanceRoot().resolve("jdeps_file.source.jdeps").toAbsolutePath());
+      return this;
+    }
+
     public TaskBuilder kotlinStrictDeps(String level) {
       taskBuilder.info.setStrictKotlinDeps(level);
       return this;
@@ -357,6 +409,12 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
       return this;
     }
 
+    public TaskBuilder outputKspSrcJar() {
+      taskBuilder.outputs
+        .setGeneratedKspSrcJar(instanceRoot().resolve("ksp-gensrc.jar").toAbsolutePath());
+      return this;
+    }
+
     public TaskBuilder incrementalData() {
       taskBuilder.outputs
         .setGeneratedClassJar(instanceRoot().resolve("incremental.jar").toAbsolutePath().toString());
@@ -376,6 +434,9 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
     private InputsBuilder inputs;
     private boolean compileKotlin;
     private boolean instrumentCoverage;
+    private boolean useKsp2;
+    private boolean compileJava;
+    private boolean headerCompilation;
 
     public JvmCompilationTaskBuilder setInfo(CompilationTaskInfoBuilder info) {
       this.info = info;
@@ -407,6 +468,21 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
       return this;
     }
 
+    public JvmCompilationTaskBuilder setUseKsp2(boolean useKsp2) {
+      this.useKsp2 = useKsp2;
+      return this;
+    }
+
+    public JvmCompilationTaskBuilder setCompileJava(boolean compileJava) {
+      this.compileJava = compileJava;
+      return this;
+    }
+
+    public JvmCompilationTaskBuilder setHeaderCompilation(boolean headerCompilation) {
+      this.headerCompilation = headerCompilation;
+      return this;
+    }
+
     public JvmCompilationTask build() {
       return new JvmCompilationTask(
         "1.8",
@@ -416,7 +492,14 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
         inputs.build(),
         compileKotlin,
         instrumentCoverage,
-        List.of()
+        List.of(),
+        false,
+        false,
+        useKsp2,
+        false,
+        false,
+        compileJava,
+        headerCompilation
       );
     }
 
@@ -498,6 +581,8 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
       private String generatedJavaSrcJar;
       private String generatedClassJar;
       private Path generatedKspSrcJar;
+      private Path unusedInputsList;
+      private Path sourceJdeps;
 
       public OutputsBuilder setJar(Path jar) {
         this.jar = jar;
@@ -534,6 +619,16 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
         return this;
       }
 
+      public OutputsBuilder setUnusedInputsList(Path unusedInputsList) {
+        this.unusedInputsList = unusedInputsList;
+        return this;
+      }
+
+      public OutputsBuilder setSourceJdeps(Path sourceJdeps) {
+        this.sourceJdeps = sourceJdeps;
+        return this;
+      }
+
       public Outputs build() {
         return new Outputs(
           jar,
@@ -542,7 +637,9 @@ public final class KotlinJvmTestBuilder extends KotlinAbstractTestBuilder<JvmCom
           abijar,
           generatedJavaSrcJar,
           generatedClassJar,
-          generatedKspSrcJar
+          generatedKspSrcJar,
+          unusedInputsList,
+          sourceJdeps
         );
       }
     }
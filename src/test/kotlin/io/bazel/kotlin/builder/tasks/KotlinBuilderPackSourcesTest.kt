@@ -0,0 +1,96 @@
+package io.bazel.kotlin.builder.tasks
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.kotlin.builder.KotlinJvmTestBuilder
+import io.bazel.testing.Temporary
+import io.bazel.worker.ContextLog
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+import java.util.zip.ZipFile
+
+class KotlinBuilderPackSourcesTest {
+  private val errors = ArrayList<String>()
+
+  @Test
+  fun `sources are packed by package`() {
+    val root = Temporary.directoryFor<KotlinBuilderPackSourcesTest> {
+      file("src/A.kt", "package a.b\n\nclass A")
+      file("src/B.java", "package c;\n\nclass B {}")
+      file("src/Root.kt", "class Root")
+    }
+    sourceJar(root.resolve("in.srcjar"), "d/D.kt", "package d\n\nclass D")
+
+    val exitCode = packSources(root, "src/A.kt", "src/B.java", "src/Root.kt", "in.srcjar")
+
+    assertThat(exitCode).isEqualTo(0)
+    assertThat(errors).isEmpty()
+    ZipFile(root.resolve("out.srcjar").toFile()).use { zip ->
+      assertThat(zip.entries().asSequence().map { it.name }.toList()).containsExactly(
+        "a/", "a/b/", "a/b/A.kt", "c/", "c/B.java", "d/", "d/D.kt", "Root.kt",
+      )
+      assertThat(zip.getInputStream(zip.getEntry("d/D.kt")).use { String(it.readBytes()) })
+        .isEqualTo("package d\n\nclass D")
+    }
+  }
+
+  @Test
+  fun `sources at the same path fail`() {
+    val root = Temporary.directoryFor<KotlinBuilderPackSourcesTest> {
+      file("src/A.kt", "package a\n\nclass A")
+    }
+    sourceJar(root.resolve("in.srcjar"), "a/A.kt", "package a\n\nclass Other")
+
+    val exitCode = packSources(root, "src/A.kt", "in.srcjar")
+
+    assertThat(exitCode).isEqualTo(1)
+    assertThat(errors).containsExactly("Failed to pack sources")
+  }
+
+  /** Runs the worker in its `--pack_sources` mode, writing `out.srcjar` below [workingDir]. */
+  private fun packSources(
+    workingDir: Path,
+    vararg sources: String,
+  ): Int =
+    buildKotlin(
+      workingDir = workingDir,
+      out = PrintStream(ByteArrayOutputStream()),
+      args = listOf("--target_label", "//a:a", "--kotlin_output_srcjar", "out.srcjar") +
+        "--pack_sources" + sources,
+      logging = logging,
+      jvmTaskExecutor = KotlinJvmTestBuilder.jvmTaskExecutor(),
+    )
+
+  private val logging = object : ContextLog.Logging {
+    override fun debug(msg: () -> String) = Unit
+
+    override fun info(msg: () -> String) = Unit
+
+    override fun error(
+      t: Throwable,
+      msg: () -> String,
+    ) {
+      errors.add(msg())
+    }
+
+    override fun error(msg: () -> String) {
+      errors.add(msg())
+    }
+  }
+
+  private fun sourceJar(
+    path: Path,
+    name: String,
+    content: String,
+  ) {
+    JarOutputStream(Files.newOutputStream(path)).use { out ->
+      out.putNextEntry(JarEntry(name))
+      out.write(content.toByteArray())
+      out.closeEntry()
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.model.CompilationTaskInfo
+import io.bazel.kotlin.model.Directories
+import io.bazel.kotlin.model.Inputs
+import io.bazel.kotlin.model.JvmCompilationTask
+import io.bazel.kotlin.model.KotlinToolchainInfo
+import io.bazel.kotlin.model.Outputs
+import io.bazel.kotlin.model.Platform
+import io.bazel.kotlin.model.RuleKind
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+import javax.tools.ToolProvider
+
+class CompileResultCacheTest {
+  private val workingDir = Files.createTempDirectory("compile-result-cache").toRealPath()
+  private val cache = CompileResultCache.create(Files.createTempDirectory("compile-results"))
+  private var compilations = 0
+  private var version = 0L
+
+  @Test
+  fun `unchanged inputs restore the outputs`() {
+    val task = task()
+
+    compile(task)
+    Files.delete(task.outputs.jar!!)
+    compile(task)
+
+    assertThat(compilations).isEqualTo(1)
+    assertThat(Files.readAllBytes(task.outputs.jar!!)).isEqualTo(OUTPUT)
+  }
+
+  @Test
+  fun `changed source misses`() {
+    val task = task()
+
+    compile(task)
+    source("class A { fun b() = 1 }")
+    compile(task)
+
+    assertThat(compilations).isEqualTo(2)
+  }
+
+  @Test
+  fun `method body change of a dependency hits`() {
+    val task = task()
+
+    compile(task)
+    dependency("public class Dep { public int value() { return 2; } }")
+    compile(task)
+
+    assertThat(compilations).isEqualTo(1)
+  }
+
+  @Test
+  fun `signature change of a dependency misses`() {
+    val task = task()
+
+    compile(task)
+    dependency("public class Dep { public long value() { return 1; } }")
+    compile(task)
+
+    assertThat(compilations).isEqualTo(2)
+  }
+
+  @Test
+  fun `leftover generated classes do not change the key`() {
+    val task = task()
+
+    compile(task)
+    Files.createDirectories(task.directories.generatedClasses)
+    Files.write(task.directories.generatedClasses.resolve("Leftover.class"), byteArrayOf(1))
+    compile(task)
+
+    assertThat(compilations).isEqualTo(1)
+  }
+
+  @Test
+  fun `changed source jar misses`() {
+    val sourceJar = workingDir.resolve("sources.srcjar")
+    jar(sourceJar, "a/A.kt", "class A".toByteArray())
+    val task = task().let {
+      it.copy(inputs = it.inputs.copy(sourceJars = listOf("sources.srcjar")))
+    }
+
+    compile(task)
+    jar(sourceJar, "a/A.kt", "class A { val b = 1 }".toByteArray())
+    compile(task)
+
+    assertThat(compilations).isEqualTo(2)
+  }
+
+  private fun compile(task: JvmCompilationTask) {
+    val context = CompilationTaskContext(
+      label = task.info.label,
+      debug = emptyList(),
+      out = PrintStream(ByteArrayOutputStream()),
+      executionRoot = workingDir.toString(),
+      workingDir = workingDir,
+    )
+    cache.getOrCompile(context, task) {
+      compilations++
+      Files.createDirectories(task.outputs.jar!!.parent)
+      Files.write(task.outputs.jar!!, OUTPUT)
+    }
+  }
+
+  private fun task(): JvmCompilationTask {
+    source("class A")
+    dependency("public class Dep { public int value() { return 1; } }")
+    val output = Files.createDirectories(workingDir.resolve("out"))
+    return JvmCompilationTask(
+      jvmTarget = "11",
+      info = CompilationTaskInfo(
+        label = "//a:a",
+        platform = Platform.JVM,
+        ruleKind = RuleKind.LIBRARY,
+        moduleName = "a",
+        passthroughFlags = emptyList(),
+        toolchainInfo = KotlinToolchainInfo(languageVersion = "2.1", apiVersion = "2.1"),
+        debug = emptyList(),
+        strictKotlinDeps = "off",
+        reducedClasspathMode = "NONE",
+      ),
+      directories = Directories(
+        classes = output.resolve("classes"),
+        generatedClasses = output.resolve("generated_classes"),
+        generatedSources = output.resolve("generated_sources"),
+        incrementalData = output.resolve("incremental"),
+        temp = output.resolve("temp"),
+        abiClasses = null,
+        generatedJavaSources = output.resolve("generated_java_sources"),
+        coverageMetadataClasses = null,
+      ),
+      outputs = Outputs(
+        jar = output.resolve("a.jar"),
+        jdeps = null,
+        srcjar = null,
+        abiJar = null,
+        generatedKspSrcJar = null,
+      ),
+      inputs = Inputs(
+        classpath = listOf(workingDir.resolve("dep.jar")),
+        directDependencies = listOf("dep.jar"),
+        kotlinSources = listOf("A.kt"),
+        javaSources = emptyList(),
+        processors = emptyList(),
+        processorPaths = emptyList(),
+        stubsPluginOptions = emptyList(),
+        stubsPluginClasspath = emptyList(),
+        compilerPluginOptions = emptyList(),
+        compilerPluginClasspath = emptyList(),
+        depsArtifacts = emptyList(),
+      ),
+      compileKotlin = true,
+      instrumentCoverage = false,
+      friendPaths = emptyList(),
+      useCompileResultCache = true,
+    )
+  }
+
+  private fun source(content: String) {
+    touch(Files.write(workingDir.resolve("A.kt"), content.toByteArray()))
+  }
+
+  /** Compiles the Java [source] of `Dep` into the `dep.jar` classpath entry. */
+  private fun dependency(source: String) {
+    val sources = Files.createDirectories(workingDir.resolve("dep-src"))
+    val classes = Files.createDirectories(workingDir.resolve("dep-classes"))
+    Files.write(sources.resolve("Dep.java"), source.toByteArray())
+    val result = ToolProvider.getSystemJavaCompiler()
+      .run(null, null, null, "-d", classes.toString(), sources.resolve("Dep.java").toString())
+    assertThat(result).isEqualTo(0)
+    val bytes = Files.readAllBytes(classes.resolve("Dep.class"))
+    jar(workingDir.resolve("dep.jar"), "Dep.class", bytes)
+  }
+
+  /**
+   * Inputs without a digest reported by Bazel are identified by their size and modification time,
+   * a rewrite within the same millisecond must not look unchanged.
+   */
+  private fun touch(path: Path) {
+    Files.setLastModifiedTime(path, FileTime.fromMillis(++version * 1000))
+  }
+
+  private fun jar(
+    path: Path,
+    name: String,
+    content: ByteArray,
+  ) {
+    JarOutputStream(Files.newOutputStream(path)).use { out ->
+      out.putNextEntry(JarEntry(name))
+      out.write(content)
+      out.closeEntry()
+    }
+    touch(path)
+  }
+
+  private companion object {
+    val OUTPUT = "compiled".toByteArray()
+  }
+}
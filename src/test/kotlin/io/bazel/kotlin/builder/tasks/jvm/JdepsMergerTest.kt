@@ -0,0 +1,164 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.common.truth.Truth.assertThat
+import com.google.devtools.build.lib.view.proto.Deps
+import org.junit.Test
+import java.nio.file.Files
+import java.nio.file.Path
+
+class JdepsMergerTest {
+  private val dir = Files.createTempDirectory("jdeps-merger")
+
+  @Test
+  fun `strongest kind wins`() {
+    val merged =
+      merge(
+        jdeps(
+          "//a:a",
+          dependency("a.jar", Deps.Dependency.Kind.UNUSED),
+          dependency("b.jar", Deps.Dependency.Kind.IMPLICIT),
+          dependency("c.jar", Deps.Dependency.Kind.INCOMPLETE),
+        ),
+        jdeps(
+          "//a:a",
+          dependency("a.jar", Deps.Dependency.Kind.EXPLICIT),
+          dependency("b.jar", Deps.Dependency.Kind.UNUSED),
+          dependency("c.jar", Deps.Dependency.Kind.IMPLICIT),
+          dependency("d.jar", Deps.Dependency.Kind.UNUSED),
+        ),
+      )
+
+    assertThat(merged.dependencyList.map { it.path to it.kind })
+      .containsExactly(
+        "a.jar" to Deps.Dependency.Kind.EXPLICIT,
+        "b.jar" to Deps.Dependency.Kind.IMPLICIT,
+        "c.jar" to Deps.Dependency.Kind.IMPLICIT,
+        "d.jar" to Deps.Dependency.Kind.UNUSED,
+      )
+      .inOrder()
+  }
+
+  @Test
+  fun `locations of a dependency are the union of the inputs`() {
+    val merged =
+      merge(
+        jdeps("//a:a", dependency("a.jar", Deps.Dependency.Kind.EXPLICIT, "A.kt", "B.kt")),
+        jdeps("//a:a", dependency("a.jar", Deps.Dependency.Kind.EXPLICIT, "B.kt", "C.java")),
+      )
+
+    assertThat(merged.dependencyList.single().locationList.map { it.path })
+      .containsExactly("A.kt", "B.kt", "C.java")
+      .inOrder()
+  }
+
+  @Test
+  fun `merged jdeps succeed when every input does`() {
+    val merged = merge(jdeps("//a:a"), jdeps("//a:a"))
+
+    assertThat(merged.success).isTrue()
+  }
+
+  @Test
+  fun `merged jdeps fail when an input failed`() {
+    val merged = merge(jdeps("//a:a"), jdeps("//a:a", success = false))
+
+    assertThat(merged.success).isFalse()
+  }
+
+  @Test
+  fun `rule label is copied from the first input`() {
+    val merger = JdepsMerger()
+    merger.add(jdeps("//a:first"))
+    merger.add(jdeps("//a:second"))
+
+    val output = dir.resolve("merged.jdeps")
+    merger.write(output)
+
+    assertThat(read(output).ruleLabel).isEqualTo("//a:first")
+  }
+
+  @Test
+  fun `contained packages are merged`() {
+    val merged =
+      merge(
+        jdeps("//a:a", packages = listOf("b", "a")),
+        jdeps("//a:a", packages = listOf("a", "c")),
+      )
+
+    assertThat(merged.containedPackageList).containsExactly("a", "b", "c").inOrder()
+  }
+
+  @Test
+  fun `kinds and used paths are reported`() {
+    val merger = JdepsMerger()
+    merger.add(
+      jdeps(
+        "//a:a",
+        dependency("a.jar", Deps.Dependency.Kind.EXPLICIT),
+        dependency("b.jar", Deps.Dependency.Kind.UNUSED),
+      ),
+    )
+
+    assertThat(merger.kindOf("a.jar")).isEqualTo(Deps.Dependency.Kind.EXPLICIT)
+    assertThat(merger.kindOf("c.jar")).isNull()
+    assertThat(merger.usedPaths().toList()).containsExactly("a.jar")
+  }
+
+  private fun merge(vararg inputs: Path): Deps.Dependencies {
+    val merger = JdepsMerger()
+    inputs.forEach(merger::add)
+    val output = dir.resolve("merged.jdeps")
+    merger.write(output, "//a:a")
+    return read(output)
+  }
+
+  private fun jdeps(
+    label: String,
+    vararg dependencies: Deps.Dependency,
+    success: Boolean = true,
+    packages: List<String> = emptyList(),
+  ): Path {
+    val path = Files.createTempFile(dir, "input", ".jdeps")
+    val jdeps =
+      Deps.Dependencies
+        .newBuilder()
+        .setRuleLabel(label)
+        .setSuccess(success)
+        .addAllDependency(dependencies.asList())
+        .addAllContainedPackage(packages)
+        .build()
+    Files.newOutputStream(path).use { jdeps.writeTo(it) }
+    return path
+  }
+
+  private fun dependency(
+    path: String,
+    kind: Deps.Dependency.Kind,
+    vararg locations: String,
+  ): Deps.Dependency =
+    Deps.Dependency
+      .newBuilder()
+      .setPath(path)
+      .setKind(kind)
+      .addAllLocation(locations.map { Deps.SourceLocation.newBuilder().setPath(it).build() })
+      .build()
+
+  private fun read(path: Path): Deps.Dependencies =
+    Files.newInputStream(path).use { Deps.Dependencies.parseFrom(it) }
+}
@@ -22,6 +22,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarFile;
+
+import static com.google.common.truth.Truth.assertThat;
+
 @RunWith(JUnit4.class)
 public class KotlinBuilderJvmAbiTest {
   private static final KotlinJvmTestBuilder ctx = new KotlinJvmTestBuilder();
@@ -60,4 +70,132 @@ public class KotlinBuilderJvmAbiTest {
           c.compileKotlin();
         });
   }
+
+  @Test
+  public void testHeaderCompilationDropsMethodBodies() throws IOException {
+    Deps.Dep header = ctx.runCompileTask(
+        c -> {
+          c.addSource("AClass.kt",
+              "package something",
+              "",
+              "class AClass(val value: Int) {",
+              "  fun plain() = value + 1",
+              "  inline fun inlined(block: () -> Int) = block() + value",
+              "}");
+          c.outputJar().outputJdeps().compileKotlin().headerCompilation();
+        });
+
+    assertThat(methodsWithCode(header, "something/AClass.class")).containsExactly("inlined");
+
+    // inline functions of the header jar are inlined into dependents
+    ctx.runCompileTask(
+        c -> {
+          c.addDirectDependencies(header);
+          c.addSource("Dependent.kt",
+              "package dep",
+              "import something.AClass",
+              "fun use(a: AClass) = a.plain() + a.inlined { 1 }");
+          c.outputJar().outputJdeps().compileKotlin();
+        });
+  }
+
+  @Test
+  public void testHeaderCompilationKeepsInlineSuspendFunctions() throws IOException {
+    Deps.Dep header = ctx.runCompileTask(
+        c -> {
+          c.addSource("AClass.kt",
+              "package something",
+              "",
+              "class AClass(val value: Int) {",
+              "  fun plain() = value + 1",
+              "  suspend inline fun suspended(block: () -> Int) = block() + value",
+              "}");
+          c.outputJar().outputJdeps().compileKotlin().headerCompilation();
+        });
+
+    // the inliner reads the untransformed `$$forInline` copy of an inline suspend function
+    assertThat(methodsWithCode(header, "something/AClass.class"))
+        .containsExactly("suspended", "suspended$$forInline");
+
+    ctx.runCompileTask(
+        c -> {
+          c.addDirectDependencies(header);
+          c.addSource("Dependent.kt",
+              "package dep",
+              "import something.AClass",
+              "suspend fun use(a: AClass) = a.plain() + a.suspended { 1 }");
+          c.outputJar().outputJdeps().compileKotlin();
+        });
+  }
+
+  @Test
+  public void testJavaMethodBodyChangeKeepsAbiJar() throws IOException {
+    byte[] first = Files.readAllBytes(Paths.get(mixedAbiJar("return 1;").singleCompileJar()));
+    byte[] second = Files.readAllBytes(Paths.get(mixedAbiJar("return 2;").singleCompileJar()));
+
+    assertThat(second).isEqualTo(first);
+  }
+
+  /** Compiles a mixed target with an ABI jar, whose Java method has the given {@code body}. */
+  private static Deps.Dep mixedAbiJar(String body) throws IOException {
+    Deps.Dep dep = ctx.runCompileTask(
+        c -> {
+          c.addSource("AClass.kt", "package something", "", "class AClass");
+          c.addSource("JavaClass.java",
+              "package something;",
+              "",
+              "public class JavaClass {",
+              "  public int value() { " + body + " }",
+              "}");
+          c.outputJar().outputAbiJar().compileKotlin().compileJava();
+        });
+    assertThat(methodsWithCode(dep, "something/JavaClass.class")).isEmpty();
+    return dep;
+  }
+
+  /** Returns the names of the methods of the class [entry] of the jar of [dep] that have code. */
+  private static List<String> methodsWithCode(Deps.Dep dep, String entry) throws IOException {
+    try (JarFile jar = new JarFile(dep.singleCompileJar());
+         DataInputStream input = new DataInputStream(jar.getInputStream(jar.getEntry(entry)))) {
+      // magic, minor and major version
+      input.skipBytes(8);
+      int constantCount = input.readUnsignedShort();
+      String[] utf8 = new String[constantCount];
+      for (int i = 1; i < constantCount; i++) {
+        int tag = input.readUnsignedByte();
+        switch (tag) {
+          case 1: utf8[i] = input.readUTF(); break;
+          case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+            input.skipBytes(4);
+            break;
+          // long and double take two entries
+          case 5: case 6: input.skipBytes(8); i++; break;
+          case 15: input.skipBytes(3); break;
+          default: input.skipBytes(2); break;
+        }
+      }
+      // access flags, this and super class
+      input.skipBytes(6);
+      input.skipBytes(2 * input.readUnsignedShort());
+      List<String> methods = new ArrayList<>();
+      // fields come first, then methods
+      for (int member = 0; member < 2; member++) {
+        int count = input.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+          input.skipBytes(2);
+          String name = utf8[input.readUnsignedShort()];
+          input.skipBytes(2);
+          int attributes = input.readUnsignedShort();
+          for (int a = 0; a < attributes; a++) {
+            String attribute = utf8[input.readUnsignedShort()];
+            input.skipBytes(input.readInt());
+            if (member == 1 && attribute.equals("Code")) {
+              methods.add(name);
+            }
+          }
+        }
+      }
+      return methods;
+    }
+  }
 }
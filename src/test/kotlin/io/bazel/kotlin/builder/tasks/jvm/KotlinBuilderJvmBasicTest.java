@@ -23,6 +23,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.math.BigInteger;
@@ -31,6 +32,7 @@ import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.function.Consumer;
+import java.util.jar.JarFile;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -74,6 +76,67 @@ public class KotlinBuilderJvmBasicTest {
         ctx.assertFilesExist(DirectoryType.CLASSES, "something/AClass.class");
     }
 
+    @Test
+    public void testCompilesJavaSourcesInWorker() throws IOException {
+        Deps.Dep dep = ctx.runCompileTask(
+                c -> {
+                    c.compileKotlin();
+                    c.compileJava();
+                    c.addSource("AClass.kt", "package something;" + "class AClass{}");
+                    c.addSource(
+                            "BClass.java",
+                            "package something;",
+                            "class BClass { AClass a = new AClass(); }");
+                    c.outputJar();
+                    c.outputJdeps();
+                });
+        try (JarFile jar = new JarFile(dep.singleCompileJar())) {
+            assertThat(jar.getEntry("something/AClass.class")).isNotNull();
+            assertThat(jar.getEntry("something/BClass.class")).isNotNull();
+        }
+    }
+
+    @Test
+    public void testJavaInWorkerTargetsTheJvmTargetWithAddExports() throws IOException {
+        Deps.Dep dep = ctx.runCompileTask(
+                c -> {
+                    c.compileKotlin();
+                    c.compileJava();
+                    c.javacOptions("--add-exports=java.base/sun.nio.ch=ALL-UNNAMED");
+                    c.addSource("AClass.kt", "package something;" + "class AClass{}");
+                    c.addSource(
+                            "BClass.java",
+                            "package something;",
+                            "class BClass { sun.nio.ch.DirectBuffer buffer; }");
+                    c.outputJar();
+                });
+        // the task targets 1.8, there are no modules to export packages from
+        assertThat(classFileMajorVersion(dep, "something/BClass.class")).isEqualTo(52);
+    }
+
+    @Test
+    public void testJavaInWorkerSplitsOnlyLanguageLevelOptions() throws IOException {
+        Deps.Dep dep = ctx.runCompileTask(
+                c -> {
+                    c.compileKotlin();
+                    c.compileJava();
+                    c.javacOptions("--release 11", "-Xlint:all");
+                    c.addSource("AClass.kt", "package something;" + "class AClass{}");
+                    c.addSource("BClass.java", "package something;", "class BClass {}");
+                    c.outputJar();
+                });
+        assertThat(classFileMajorVersion(dep, "something/BClass.class")).isEqualTo(55);
+    }
+
+    private static int classFileMajorVersion(Deps.Dep dep, String entry) throws IOException {
+        try (JarFile jar = new JarFile(dep.singleCompileJar());
+             DataInputStream input = new DataInputStream(jar.getInputStream(jar.getEntry(entry)))) {
+            // magic and minor version
+            input.skipBytes(6);
+            return input.readUnsignedShort();
+        }
+    }
+
     @Test
     public void testGeneratesJDeps() {
         ctx.runCompileTask(
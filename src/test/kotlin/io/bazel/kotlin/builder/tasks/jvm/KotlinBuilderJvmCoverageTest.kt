@@ -16,12 +16,14 @@
  */
 package io.bazel.kotlin.builder.tasks.jvm;
 
-import io.bazel.kotlin.builder.DirectoryType
+import io.bazel.kotlin.builder.Deps
 import io.bazel.kotlin.builder.KotlinJvmTestBuilder
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.junit.runners.JUnit4
+import com.google.common.truth.Truth.assertThat
 import java.util.function.Consumer
+import java.util.jar.JarFile
 
 @RunWith(JUnit4::class)
 class KotlinBuilderJvmCoverageTest {
@@ -29,7 +31,7 @@ class KotlinBuilderJvmCoverageTest {
 
   @Test
   fun `generates coverage metadata`() {
-    ctx.runCompileTask(Consumer { c: KotlinJvmTestBuilder.TaskBuilder ->
+    val dep = ctx.runCompileTask(Consumer { c: KotlinJvmTestBuilder.TaskBuilder ->
       c.addSource("KotlinClass.kt",
         """
             package something
@@ -42,8 +44,10 @@ class KotlinBuilderJvmCoverageTest {
       c.outputJdeps()
     })
 
-    ctx.assertFilesExist(DirectoryType.COVERAGE_METADATA, "something/KotlinClass.class.uninstrumented")
-    ctx.assertFilesExist(DirectoryType.COVERAGE_METADATA, "jar_file.jar-paths-for-coverage.txt")
+    assertThat(entriesOf(dep)).containsAtLeast(
+      "something/KotlinClass.class.uninstrumented",
+      "jar_file.jar-paths-for-coverage.txt",
+    )
   }
 
   @Test
@@ -67,8 +71,39 @@ class KotlinBuilderJvmCoverageTest {
       c.outputJdeps()
     })
 
-    ctx.assertFilesExist(DirectoryType.COVERAGE_METADATA, "something/KotlinClass.class.uninstrumented")
-    ctx.assertFilesExist(DirectoryType.COVERAGE_METADATA, "something/AnotherKotlinClass.class.uninstrumented")
-    ctx.assertFilesExist(DirectoryType.COVERAGE_METADATA, "jar_file.jar-paths-for-coverage.txt")
+    assertThat(entriesOf(deps)).containsAtLeast(
+      "something/KotlinClass.class.uninstrumented",
+      "something/AnotherKotlinClass.class.uninstrumented",
+      "jar_file.jar-paths-for-coverage.txt",
+    )
   }
+
+  @Test
+  fun `instruments classes in the output jar`() {
+    val dep = ctx.runCompileTask(Consumer { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("KotlinClass.kt",
+        """
+            package something
+
+            class KotlinClass {
+              fun covered() = 1
+            }
+          """)
+      c.outputJar()
+      c.compileKotlin()
+      c.coverage()
+      c.outputJdeps()
+    })
+
+    JarFile(dep.singleCompileJar()).use { jar ->
+      val instrumented = jar.getInputStream(jar.getEntry("something/KotlinClass.class")).readBytes()
+      assertThat(String(instrumented, Charsets.ISO_8859_1)).contains("\$jacocoInit")
+      assertThat(jar.getEntry("something/KotlinClass.class.uninstrumented")).isNotNull()
+      assertThat(jar.getEntry("jar_file.jar-paths-for-coverage.txt")).isNotNull()
+    }
+  }
+
+  /** The coverage metadata is only in the output jar, the JaCoCo runner reads it from there. */
+  private fun entriesOf(dep: Deps.Dep): List<String> =
+    JarFile(dep.singleCompileJar()).use { jar -> jar.stream().map { it.name }.toList() }
 }
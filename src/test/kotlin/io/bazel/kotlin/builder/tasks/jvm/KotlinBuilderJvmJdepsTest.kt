@@ -24,7 +24,9 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.junit.runners.Parameterized
 import java.io.BufferedInputStream
+import java.io.File
 import java.nio.file.Files
+import java.nio.file.Path
 import java.nio.file.Paths
 import java.util.function.Consumer
 
@@ -65,6 +67,7 @@ class KotlinBuilderJvmJdepsTest(private val enableK2Compiler: Boolean) {
     val jdeps = depsProto(deps)
     val expected = Deps.Dependencies.newBuilder()
       .setRuleLabel("//deps")
+      .setSuccess(true)
       .buildSorted()
     assertThat(jdeps).isEqualTo(expected)
   }
@@ -79,6 +82,7 @@ class KotlinBuilderJvmJdepsTest(private val enableK2Compiler: Boolean) {
     val jdeps = depsProto(deps)
     val expected = Deps.Dependencies.newBuilder()
       .setRuleLabel("//deps")
+      .setSuccess(true)
       .buildSorted()
     assertThat(jdeps).isEqualTo(expected)
   }
@@ -420,6 +424,281 @@ class KotlinBuilderJvmJdepsTest(private val enableK2Compiler: Boolean) {
     assertThat(jdeps).isEqualTo(expected)
   }
 
+  @Test
+  fun `unused dependency reported as unused input`() {
+    val usedTarget = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource(
+        "UsedClass.kt",
+        """
+          package something
+
+          class UsedClass{}
+        """,
+      )
+    }
+
+    val unusedTarget = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource(
+        "UnusedClass.kt",
+        """
+          package something
+
+          class UnusedClass{}
+        """,
+      )
+    }
+
+    val unusedInputs = Files.createTempDirectory("unused-inputs").resolve("unused_inputs.txt")
+    runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.setLabel("//:dependingTarget")
+      c.addSource(
+        "ReferencesUsedClass.kt",
+        """
+          package something
+
+          val used = UsedClass()
+        """,
+      )
+      c.addDirectDependencies(usedTarget, unusedTarget)
+      c.outputUnusedInputsList(unusedInputs)
+    }
+
+    // without the K2 frontend, usages are not known and nothing may be reported
+    val expected = if (enableK2Compiler) listOf(unusedTarget.singleCompileJar()) else emptyList()
+    assertThat(Files.readAllLines(unusedInputs)).isEqualTo(expected)
+  }
+
+  @Test
+  fun `source jdeps attribute dependencies to source files`() {
+    val first = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("First.kt", "package something\n\nclass First")
+    }
+    val second = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Second.kt", "package something\n\nclass Second")
+    }
+
+    val dependingTarget = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("UsesFirst.kt", "package something\n\nval first = First()")
+      c.addSource("UsesBoth.kt", "package something\n\nval both = listOf(First(), Second())")
+      c.addDirectDependencies(first, second)
+      c.outputSourceJdeps()
+    }
+
+    val sourceJdeps = Paths.get(dependingTarget.jdeps()!!).resolveSibling("jdeps_file.source.jdeps")
+    val dependencies = Files.newInputStream(sourceJdeps).use { Deps.Dependencies.parseFrom(it) }
+    val sourcesByJar = dependencies.dependencyList.associate { dependency ->
+      dependency.path to dependency.locationList.map { Paths.get(it.path).fileName.toString() }
+    }
+    // only the K2 frontend attributes usages to source files
+    if (enableK2Compiler) {
+      assertThat(sourcesByJar[first.singleCompileJar()])
+        .containsExactly("UsesBoth.kt", "UsesFirst.kt").inOrder()
+      assertThat(sourcesByJar[second.singleCompileJar()]).containsExactly("UsesBoth.kt")
+    } else {
+      assertThat(sourcesByJar).isEmpty()
+    }
+  }
+
+  @Test
+  fun `classes used repeatedly across files are recorded once per jar`() {
+    val first = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("First.kt", "package something\n\nclass First")
+      c.addSource("FirstToo.kt", "package something\n\nclass FirstToo")
+    }
+    val second = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Second.kt", "package something\n\nclass Second")
+    }
+
+    // the same classes, from the same jars, are used many times in several files
+    val dependingTarget = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.setLabel("//:dependingTarget")
+      for (name in listOf("A", "B", "C")) {
+        c.addSource(
+          "Uses$name.kt",
+          """
+            package something
+
+            fun first$name(first: First): First = First()
+            fun firstToo$name(firstToo: FirstToo): FirstToo = FirstToo()
+            fun second$name(second: Second, other: Second): Second = Second()
+          """,
+        )
+      }
+      c.addDirectDependencies(first, second)
+      c.outputSourceJdeps()
+    }
+
+    val jdeps = depsProto(dependingTarget)
+    val expected = Deps.Dependencies.newBuilder()
+      .setRuleLabel("//:dependingTarget")
+      .setSuccess(true)
+      .addExplicitDep(first.singleCompileJar())
+      .addExplicitDep(second.singleCompileJar())
+      .buildSorted()
+    assertThat(jdeps).isEqualTo(expected)
+
+    val sourceJdeps = Paths.get(dependingTarget.jdeps()!!).resolveSibling("jdeps_file.source.jdeps")
+    val dependencies = Files.newInputStream(sourceJdeps).use { Deps.Dependencies.parseFrom(it) }
+    val sourcesByJar = dependencies.dependencyList.associate { dependency ->
+      dependency.path to dependency.locationList.map { Paths.get(it.path).fileName.toString() }
+    }
+    // only the K2 frontend attributes usages to source files
+    if (enableK2Compiler) {
+      assertThat(sourcesByJar.keys)
+        .containsExactly(first.singleCompileJar(), second.singleCompileJar())
+      for (sources in sourcesByJar.values) {
+        assertThat(sources).containsExactly("UsesA.kt", "UsesB.kt", "UsesC.kt").inOrder()
+      }
+    }
+  }
+
+  @Test
+  fun `supertypes of a class used in several files are implicit deps`() {
+    val base = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Base.kt", "package something\n\nopen class Base")
+    }
+    val middle = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Middle.kt", "package something\n\nopen class Middle : Base()")
+      c.addDirectDependencies(base)
+    }
+    val leaf = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Leaf.kt", "package something\n\nopen class Leaf : Middle()")
+      c.addDirectDependencies(middle)
+      c.addTransitiveDependencies(base)
+    }
+
+    // the hierarchy of Leaf is replayed for every file, as a type, a call and a bound
+    val dependingTarget = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.setLabel("//:dependingTarget")
+      c.addSource("UsesType.kt", "package something\n\nfun type(leaf: Leaf): Leaf = leaf")
+      c.addSource("UsesCall.kt", "package something\n\nval call = Leaf()")
+      c.addSource("UsesBound.kt", "package something\n\nclass Holder<T : Leaf>(val value: T)")
+      c.addDirectDependencies(leaf)
+      c.addTransitiveDependencies(middle, base)
+    }
+
+    val jdeps = depsProto(dependingTarget)
+    val expected = Deps.Dependencies.newBuilder()
+      .setRuleLabel("//:dependingTarget")
+      .setSuccess(true)
+      .addExplicitDep(leaf.singleCompileJar())
+      .addImplicitDep(middle.singleCompileJar())
+      .addImplicitDep(base.singleCompileJar())
+      .buildSorted()
+    assertThat(jdeps).isEqualTo(expected)
+  }
+
+  @Test
+  fun `supertype used directly in a later file is an explicit dep`() {
+    val base = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Base.kt", "package something\n\nopen class Base")
+    }
+    val middle = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Middle.kt", "package something\n\nopen class Middle : Base()")
+      c.addDirectDependencies(base)
+    }
+    val leaf = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Leaf.kt", "package something\n\nopen class Leaf : Middle()")
+      c.addDirectDependencies(middle)
+      c.addTransitiveDependencies(base)
+    }
+
+    // Middle is known from the hierarchy of Leaf before it is used on its own
+    val dependingTarget = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.setLabel("//:dependingTarget")
+      c.addSource("A.kt", "package something\n\nfun leaf(leaf: Leaf): Leaf = leaf")
+      c.addSource("B.kt", "package something\n\nfun middle(leaf: Leaf): Middle = leaf")
+      c.addDirectDependencies(leaf, middle)
+      c.addTransitiveDependencies(base)
+    }
+
+    val jdeps = depsProto(dependingTarget)
+    val expected = Deps.Dependencies.newBuilder()
+      .setRuleLabel("//:dependingTarget")
+      .setSuccess(true)
+      .addExplicitDep(leaf.singleCompileJar())
+      .addExplicitDep(middle.singleCompileJar())
+      .addImplicitDep(base.singleCompileJar())
+      .buildSorted()
+    assertThat(jdeps).isEqualTo(expected)
+  }
+
+  @Test
+  fun `java compiled in the worker records its dependencies`() {
+    val base = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Base.kt", "package something\n\nopen class Base")
+    }
+    val unused = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Unused.kt", "package other\n\nclass Unused")
+    }
+
+    // only the Java source uses Base
+    val dependingTarget = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.setLabel("//:dependingTarget")
+      c.addSource("KotlinClass.kt", "package something\n\nclass KotlinClass")
+      c.addSource("JavaClass.java", "package something;\n\nclass JavaClass extends Base {}")
+      c.addDirectDependencies(base, unused)
+      c.compileJava()
+    }
+
+    val kinds = depsProto(dependingTarget).dependencyList.associate { it.path to it.kind }
+    assertThat(kinds[base.singleCompileJar()]).isEqualTo(Deps.Dependency.Kind.EXPLICIT)
+    assertThat(kinds[unused.singleCompileJar()]).isNotEqualTo(Deps.Dependency.Kind.EXPLICIT)
+  }
+
+  @Test
+  fun `reduced classpath keeps jars used by dependencies`() {
+    val base = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Base.kt", "package something\n\nopen class Base")
+    }
+    val middle = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Middle.kt", "package something\n\nopen class Middle : Base()")
+      c.addDirectDependencies(base)
+    }
+    val unrelated = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Unrelated.kt", "package other\n\nclass Unrelated")
+    }
+
+    // Base is not a direct dependency, it stays on the classpath as the jdeps of Middle use it
+    runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Leaf.kt", "package something\n\nclass Leaf : Middle()")
+      c.addDirectDependencies(middle)
+      c.addTransitiveDependencies(base, unrelated)
+      c.reducedClasspath(middle, unrelated)
+    }
+
+    // a single compilation, resolving the supertypes of Middle needs Base
+    val classpath = kotlincClasspaths().single()
+    assertThat(classpath).containsAtLeast(middle.classpathEntry(), base.classpathEntry())
+    assertThat(classpath).doesNotContain(unrelated.classpathEntry())
+  }
+
+  @Test
+  fun `reduced classpath falls back to the full classpath`() {
+    val middle = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Middle.kt", "package something\n\nopen class Middle")
+    }
+    val unrelated = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Unrelated.kt", "package other\n\nclass Unrelated")
+    }
+
+    // Unrelated is only on the full classpath, the compilation is run again with it
+    val leaf = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("Leaf.kt", "package something\n\nval unrelated = other.Unrelated()")
+      c.addDirectDependencies(middle)
+      c.addTransitiveDependencies(unrelated)
+      c.reducedClasspath(middle)
+    }
+
+    val classpaths = kotlincClasspaths()
+    assertThat(classpaths).hasSize(2)
+    assertThat(classpaths[0]).doesNotContain(unrelated.classpathEntry())
+    assertThat(classpaths[1]).contains(unrelated.classpathEntry())
+
+    val jdeps = depsProto(leaf)
+    assertThat(jdeps.dependencyList.map { it.path }).contains(unrelated.singleCompileJar())
+  }
+
   @Test
   fun `pattern match exception`() {
     val connectionNotFoundExceptionDep = runJdepsCompileTask { c: KotlinJvmTestBuilder.TaskBuilder ->
@@ -2003,6 +2282,20 @@ class KotlinBuilderJvmJdepsTest(private val enableK2Compiler: Boolean) {
     assertThat(jdeps).isEqualTo(expected)
   }
 
+  /** Returns the classpath of each kotlinc invocation of the last task, read from its trace. */
+  private fun kotlincClasspaths(): List<List<Path>> {
+    val lines = ctx.outLines()
+    return lines.indices
+      .filter { lines[it] == "|  -cp" }
+      .map { index ->
+        lines[index + 1].removePrefix("|  ").split(File.pathSeparator).map(::normalizedPath)
+      }
+  }
+
+  private fun Dep.classpathEntry(): Path = normalizedPath(singleCompileJar())
+
+  private fun normalizedPath(path: String): Path = Paths.get(path).toAbsolutePath().normalize()
+
   private fun depsProto(jdeps: Dep) =
     Deps.Dependencies.parseFrom(BufferedInputStream(Files.newInputStream(Paths.get(jdeps.jdeps()!!))))
 
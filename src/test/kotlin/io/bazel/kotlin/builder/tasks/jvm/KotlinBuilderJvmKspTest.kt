@@ -0,0 +1,80 @@
+/*
+ * Copyright 2024 The Bazel Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.kotlin.builder.Deps.AnnotationProcessor
+import io.bazel.kotlin.builder.Deps.Dep
+import io.bazel.kotlin.builder.DirectoryType
+import io.bazel.kotlin.builder.KotlinJvmTestBuilder
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import java.util.function.Consumer
+import java.util.jar.JarFile
+
+@RunWith(JUnit4::class)
+class KotlinBuilderJvmKspTest {
+  private val ctx = KotlinJvmTestBuilder()
+
+  @Test
+  fun `KSP2 generates sources`() {
+    ctx.runCompileTask(Consumer { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("AClass.kt", "package something", "", "class AClass")
+      c.addAnnotationProcessors(GENERATING_PROCESSOR)
+      c.useKsp2()
+      c.passthroughFlags("-Xjvm-default=all")
+      c.outputKspSrcJar()
+      c.trace()
+    })
+
+    assertThat(ctx.outLines()).contains("|  jvmDefaultMode=all")
+    ctx.assertFilesExist(DirectoryType.SOURCE_GEN, "generated/KotlinGenerated.kt")
+    ctx.assertFilesExist(DirectoryType.SOURCE_GEN, "META-INF/generated/resource.txt")
+    ctx.assertFilesExist(DirectoryType.JAVA_SOURCE_GEN, "generated/JavaGenerated.java")
+  }
+
+  @Test
+  fun `single pass compiles generated sources and resources into the output jar`() {
+    val dep = ctx.runCompileTask(Consumer { c: KotlinJvmTestBuilder.TaskBuilder ->
+      c.addSource("AClass.kt", "package something", "", "class AClass")
+      c.addAnnotationProcessors(GENERATING_PROCESSOR)
+      c.useKsp2()
+      c.outputKspSrcJar()
+      c.outputJar()
+      c.compileKotlin()
+      c.compileJava()
+    })
+
+    val entries = JarFile(dep.singleCompileJar()).use { jar ->
+      jar.stream().map { it.name }.toList()
+    }
+    assertThat(entries).containsAtLeast(
+      "something/AClass.class",
+      "generated/KotlinGenerated.class",
+      "generated/JavaGenerated.class",
+      "META-INF/generated/resource.txt",
+    )
+  }
+
+  companion object {
+    private val GENERATING_PROCESSOR = AnnotationProcessor.builder()
+      .processClass("fixture.ksp.GeneratingProcessorProvider")
+      .processorPath(setOf(Dep.fromLabel(":KspGeneratingProcessor").singleCompileJar()))
+      .build()
+  }
+}
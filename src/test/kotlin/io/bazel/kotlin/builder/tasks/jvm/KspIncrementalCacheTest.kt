@@ -0,0 +1,264 @@
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.model.CompilationTaskInfo
+import io.bazel.kotlin.model.Directories
+import io.bazel.kotlin.model.Inputs
+import io.bazel.kotlin.model.JvmCompilationTask
+import io.bazel.kotlin.model.KotlinToolchainInfo
+import io.bazel.kotlin.model.Outputs
+import io.bazel.kotlin.model.Platform
+import io.bazel.kotlin.model.RuleKind
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+import javax.tools.ToolProvider
+
+class KspIncrementalCacheTest {
+  private val workingDir = Files.createTempDirectory("ksp-incremental-cache").toRealPath()
+  private val cache = KspIncrementalCache.create(Files.createTempDirectory("ksp-caches"))
+  private var version = 0L
+
+  @Test
+  fun `first run is a full run`() {
+    val run = prepare(task())
+
+    assertThat(run.incremental).isFalse()
+    assertThat(run.modified).isEmpty()
+    assertThat(run.removed).isEmpty()
+  }
+
+  @Test
+  fun `unchanged inputs run incrementally and restore caches and outputs`() {
+    val task = task()
+    process(task)
+
+    val run = prepare(task)
+
+    assertThat(run.incremental).isTrue()
+    assertThat(run.modified).isEmpty()
+    assertThat(run.removed).isEmpty()
+    assertThat(Files.readAllLines(run.cachesDir.resolve("symbols"))).containsExactly("A.kt")
+    assertThat(Files.readAllLines(task.directories.generatedSources.resolve("Gen.kt")))
+      .containsExactly("class Gen")
+  }
+
+  @Test
+  fun `changed source is known modified`() {
+    val task = task()
+    process(task)
+
+    source("A.kt", "class A { val b = 1 }")
+    val run = prepare(task)
+
+    assertThat(run.incremental).isTrue()
+    assertThat(run.modified).containsExactly(workingDir.resolve("A.kt"))
+    assertThat(run.removed).isEmpty()
+  }
+
+  @Test
+  fun `added and removed sources are known`() {
+    val task = task()
+    source("B.kt", "class B")
+    process(task.withSources("A.kt", "B.kt"))
+
+    source("C.kt", "class C")
+    val run = prepare(task.withSources("A.kt", "C.kt"))
+
+    assertThat(run.incremental).isTrue()
+    assertThat(run.modified).containsExactly(workingDir.resolve("C.kt"))
+    assertThat(run.removed).containsExactly(workingDir.resolve("B.kt"))
+  }
+
+  @Test
+  fun `changed processor options run in full`() {
+    val task = task()
+    process(task)
+
+    val changed = task.copy(
+      inputs = task.inputs.copy(stubsPluginOptions = listOf("apoption=a:b")),
+    )
+    val run = prepare(changed)
+
+    assertThat(run.incremental).isFalse()
+    assertThat(Files.exists(run.cachesDir.resolve("symbols"))).isFalse()
+    assertThat(Files.exists(task.directories.generatedSources.resolve("Gen.kt"))).isFalse()
+  }
+
+  @Test
+  fun `changed language version runs in full`() {
+    val task = task()
+    process(task)
+
+    val info = task.info
+    val changed = task.copy(
+      info = info.copy(toolchainInfo = info.toolchainInfo.copy(languageVersion = "2.0")),
+    )
+
+    assertThat(prepare(changed).incremental).isFalse()
+  }
+
+  @Test
+  fun `changed processor jar runs in full`() {
+    val task = task()
+    process(task)
+
+    jar(workingDir.resolve("processor.jar"), "META-INF/services/p", "b.Processor".toByteArray())
+
+    assertThat(prepare(task).incremental).isFalse()
+  }
+
+  @Test
+  fun `signature change of a dependency runs in full`() {
+    val task = task()
+    process(task)
+
+    dependency("public class Dep { public long value() { return 1; } }")
+
+    assertThat(prepare(task).incremental).isFalse()
+  }
+
+  @Test
+  fun `method body change of a dependency runs incrementally`() {
+    val task = task()
+    process(task)
+
+    dependency("public class Dep { public int value() { return 2; } }")
+    val run = prepare(task)
+
+    assertThat(run.incremental).isTrue()
+    assertThat(run.modified).isEmpty()
+  }
+
+  private fun context(): CompilationTaskContext =
+    CompilationTaskContext(
+      label = "//a:a",
+      debug = emptyList(),
+      out = PrintStream(ByteArrayOutputStream()),
+      executionRoot = workingDir.toString(),
+      workingDir = workingDir,
+    )
+
+  /** Prepares a run of [task] with empty output directories, as a new request has. */
+  private fun prepare(task: JvmCompilationTask): KspIncrementalCache.Run {
+    val dirs = task.directories
+    for (dir in listOf(dirs.generatedSources, dirs.generatedJavaSources, dirs.generatedClasses)) {
+      clearDirContent(dir)
+    }
+    return cache.prepare(context(), task)
+  }
+
+  /** Runs a stand-in for KSP on [task], writing caches and a generated source, and stores them. */
+  private fun process(task: JvmCompilationTask) {
+    val run = prepare(task)
+    Files.createDirectories(run.cachesDir)
+    Files.write(run.cachesDir.resolve("symbols"), task.inputs.kotlinSources)
+    Files.createDirectories(task.directories.generatedSources)
+    Files.write(task.directories.generatedSources.resolve("Gen.kt"), "class Gen".toByteArray())
+    cache.store(task, run)
+  }
+
+  private fun task(): JvmCompilationTask {
+    source("A.kt", "class A")
+    dependency("public class Dep { public int value() { return 1; } }")
+    jar(workingDir.resolve("processor.jar"), "META-INF/services/p", "a.Processor".toByteArray())
+    val output = Files.createDirectories(workingDir.resolve("out"))
+    return JvmCompilationTask(
+      jvmTarget = "11",
+      info = CompilationTaskInfo(
+        label = "//a:a",
+        platform = Platform.JVM,
+        ruleKind = RuleKind.LIBRARY,
+        moduleName = "a",
+        passthroughFlags = emptyList(),
+        toolchainInfo = KotlinToolchainInfo(languageVersion = "2.1", apiVersion = "2.1"),
+        debug = emptyList(),
+        strictKotlinDeps = "off",
+        reducedClasspathMode = "NONE",
+      ),
+      directories = Directories(
+        classes = output.resolve("classes"),
+        generatedClasses = output.resolve("generated_classes"),
+        generatedSources = output.resolve("generated_sources"),
+        incrementalData = output.resolve("incremental"),
+        temp = output.resolve("temp"),
+        abiClasses = null,
+        generatedJavaSources = output.resolve("generated_java_sources"),
+        coverageMetadataClasses = null,
+      ),
+      outputs = Outputs(
+        jar = output.resolve("a.jar"),
+        jdeps = null,
+        srcjar = null,
+        abiJar = null,
+        generatedKspSrcJar = output.resolve("ksp.srcjar"),
+      ),
+      inputs = Inputs(
+        classpath = listOf(workingDir.resolve("dep.jar")),
+        directDependencies = listOf("dep.jar"),
+        kotlinSources = listOf("A.kt"),
+        javaSources = emptyList(),
+        processors = listOf("a.Processor"),
+        processorPaths = listOf("processor.jar"),
+        stubsPluginOptions = emptyList(),
+        stubsPluginClasspath = emptyList(),
+        compilerPluginOptions = emptyList(),
+        compilerPluginClasspath = emptyList(),
+        depsArtifacts = emptyList(),
+      ),
+      compileKotlin = true,
+      instrumentCoverage = false,
+      friendPaths = emptyList(),
+      kspIncremental = true,
+    )
+  }
+
+  private fun JvmCompilationTask.withSources(vararg sources: String): JvmCompilationTask =
+    copy(inputs = inputs.copy(kotlinSources = sources.toList()))
+
+  private fun source(
+    name: String,
+    content: String,
+  ) {
+    touch(Files.write(workingDir.resolve(name), content.toByteArray()))
+  }
+
+  /** Compiles the Java [source] of `Dep` into the `dep.jar` classpath entry. */
+  private fun dependency(source: String) {
+    val sources = Files.createDirectories(workingDir.resolve("dep-src"))
+    val classes = Files.createDirectories(workingDir.resolve("dep-classes"))
+    Files.write(sources.resolve("Dep.java"), source.toByteArray())
+    val result = ToolProvider.getSystemJavaCompiler()
+      .run(null, null, null, "-d", classes.toString(), sources.resolve("Dep.java").toString())
+    assertThat(result).isEqualTo(0)
+    val bytes = Files.readAllBytes(classes.resolve("Dep.class"))
+    jar(workingDir.resolve("dep.jar"), "Dep.class", bytes)
+  }
+
+  /**
+   * Inputs without a digest reported by Bazel are identified by their size and modification time,
+   * a rewrite within the same millisecond must not look unchanged.
+   */
+  private fun touch(path: Path) {
+    Files.setLastModifiedTime(path, FileTime.fromMillis(++version * 1000))
+  }
+
+  private fun jar(
+    path: Path,
+    name: String,
+    content: ByteArray,
+  ) {
+    JarOutputStream(Files.newOutputStream(path)).use { out ->
+      out.putNextEntry(JarEntry(name))
+      out.write(content)
+      out.closeEntry()
+    }
+    touch(path)
+  }
+}
@@ -0,0 +1,90 @@
+package io.bazel.kotlin.builder.tasks.jvm
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.kotlin.builder.toolchain.CompilationTaskContext
+import io.bazel.kotlin.builder.utils.jars.SourceJarExtractor
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+
+class SourceJarCacheTest {
+  private val workingDir = Files.createTempDirectory("source-jar-cache").toRealPath()
+  private val cache = SourceJarCache.create(Files.createTempDirectory("source-jars"))
+  private var version = 0L
+
+  @Test
+  fun `targets share the extracted tree`() {
+    jar("class A")
+
+    val first = extract("first")
+    val second = extract("second")
+
+    assertThat(String(Files.readAllBytes(second.resolve("a/A.kt")))).isEqualTo("class A")
+    assertThat(Files.isSameFile(first.resolve("a/A.kt"), second.resolve("a/A.kt"))).isTrue()
+  }
+
+  @Test
+  fun `changed jar is not written through the cache`() {
+    jar("class A")
+    val first = extract("first")
+    val second = extract("second")
+
+    jar("class A { val b = 1 }")
+    extract("first")
+
+    assertThat(String(Files.readAllBytes(first.resolve("a/A.kt"))))
+      .isEqualTo("class A { val b = 1 }")
+    assertThat(String(Files.readAllBytes(second.resolve("a/A.kt")))).isEqualTo("class A")
+  }
+
+  @Test
+  fun `tree that is not cached is extracted from the jar`() {
+    jar("class A")
+    // as for a tree larger than the cache
+    val uncached = SourceJarExtractor.TreeCache { _, _ -> null }
+
+    val dir = workingDir.resolve("uncached")
+    SourceJarExtractor(dir, treeCache = uncached).apply {
+      jarFiles.add(workingDir.resolve("gen.srcjar"))
+      execute()
+    }
+
+    assertThat(String(Files.readAllBytes(dir.resolve("a/A.kt")))).isEqualTo("class A")
+  }
+
+  private fun context(): CompilationTaskContext =
+    CompilationTaskContext(
+      label = "//a:a",
+      debug = emptyList(),
+      out = PrintStream(ByteArrayOutputStream()),
+      executionRoot = workingDir.toString(),
+      workingDir = workingDir,
+    )
+
+  /** Extracts `gen.srcjar` for the target [name], returning where its sources are. */
+  private fun extract(name: String): Path {
+    val dir = workingDir.resolve(name).resolve("src-jars")
+    SourceJarExtractor(dir, treeCache = cache.treeCache(context())).apply {
+      jarFiles.add(workingDir.resolve("gen.srcjar"))
+      execute()
+    }
+    return dir
+  }
+
+  /** Writes `gen.srcjar` with `a/A.kt` holding [content]. */
+  private fun jar(content: String) {
+    val path = workingDir.resolve("gen.srcjar")
+    JarOutputStream(Files.newOutputStream(path)).use { out ->
+      out.putNextEntry(JarEntry("a/A.kt"))
+      out.write(content.toByteArray())
+      out.closeEntry()
+    }
+    // a rewrite within the same millisecond must not look unchanged
+    Files.setLastModifiedTime(path, FileTime.fromMillis(++version * 1000))
+  }
+}
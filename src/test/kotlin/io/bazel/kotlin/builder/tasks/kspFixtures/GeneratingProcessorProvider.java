@@ -0,0 +1,63 @@
+package fixture.ksp;
+
+import com.google.devtools.ksp.processing.CodeGenerator;
+import com.google.devtools.ksp.processing.Dependencies;
+import com.google.devtools.ksp.processing.Resolver;
+import com.google.devtools.ksp.processing.SymbolProcessor;
+import com.google.devtools.ksp.processing.SymbolProcessorEnvironment;
+import com.google.devtools.ksp.processing.SymbolProcessorProvider;
+import com.google.devtools.ksp.symbol.KSAnnotated;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Generates a Kotlin source, a Java source and a META-INF resource in its first round, whatever the
+ * sources it processes.
+ */
+public class GeneratingProcessorProvider implements SymbolProcessorProvider {
+  @Override
+  public SymbolProcessor create(SymbolProcessorEnvironment environment) {
+    return new GeneratingProcessor(environment.getCodeGenerator());
+  }
+
+  private static final class GeneratingProcessor implements SymbolProcessor {
+    private final CodeGenerator codeGenerator;
+    private boolean generated;
+
+    GeneratingProcessor(CodeGenerator codeGenerator) {
+      this.codeGenerator = codeGenerator;
+    }
+
+    @Override
+    public List<KSAnnotated> process(Resolver resolver) {
+      if (!generated) {
+        generated = true;
+        write("generated", "KotlinGenerated", "kt", "package generated\n\nclass KotlinGenerated\n");
+        write("generated", "JavaGenerated", "java", "package generated;\n\npublic class JavaGenerated {}\n");
+        write("", "META-INF/generated/resource.txt", "", "generated\n");
+      }
+      return List.of();
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public void onError() {
+    }
+
+    private void write(String packageName, String fileName, String extension, String content) {
+      try (OutputStream out =
+             codeGenerator.createNewFile(new Dependencies(true), packageName, fileName, extension)) {
+        out.write(content.getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
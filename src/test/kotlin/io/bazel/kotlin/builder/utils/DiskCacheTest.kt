@@ -0,0 +1,85 @@
+package io.bazel.kotlin.builder.utils
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.testing.Temporary
+import org.junit.Test
+import java.nio.file.Files
+import java.nio.file.Path
+
+class DiskCacheTest {
+  private val root = Temporary.directoryFor<DiskCacheTest>().resolve("cache")
+
+  @Test fun storedEntryIsReturned() {
+    val cache = DiskCache(root, maxBytes = 100)
+
+    cache.put("a") { write(it, 10) }
+
+    val entry = cache.get("a")
+    assertThat(entry).isNotNull()
+    assertThat(Files.size(entry!!.resolve("content"))).isEqualTo(10)
+    assertThat(cache.get("b")).isNull()
+  }
+
+  @Test fun failedPopulationIsDiscarded() {
+    val cache = DiskCache(root, maxBytes = 100)
+
+    assertThat(cache.put("a") { write(it, 10) && false }).isNull()
+
+    assertThat(cache.get("a")).isNull()
+  }
+
+  @Test fun evictionRespectsSizeCap() {
+    val cache = DiskCache(root, maxBytes = 100)
+
+    cache.put("a") { write(it, 40) }
+    cache.put("b") { write(it, 40) }
+    cache.put("c") { write(it, 40) }
+
+    // the least recently used entry makes room for the last one
+    assertThat(cache.get("a")).isNull()
+    assertThat(cache.get("b")).isNotNull()
+    assertThat(cache.get("c")).isNotNull()
+    assertThat(Files.exists(root.resolve("a"))).isFalse()
+  }
+
+  @Test fun readingAnEntryKeepsIt() {
+    val cache = DiskCache(root, maxBytes = 100)
+
+    cache.put("a") { write(it, 40) }
+    cache.put("b") { write(it, 40) }
+    cache.get("a")
+    cache.put("c") { write(it, 40) }
+
+    assertThat(cache.get("a")).isNotNull()
+    assertThat(cache.get("b")).isNull()
+    assertThat(cache.get("c")).isNotNull()
+  }
+
+  @Test fun entryLargerThanCapIsNotStored() {
+    val cache = DiskCache(root, maxBytes = 100)
+
+    cache.put("a") { write(it, 40) }
+
+    assertThat(cache.put("b") { write(it, 101) }).isNull()
+    assertThat(cache.get("a")).isNotNull()
+    assertThat(cache.get("b")).isNull()
+  }
+
+  @Test fun removedEntryIsGone() {
+    val cache = DiskCache(root, maxBytes = 100)
+
+    cache.put("a") { write(it, 10) }
+    cache.remove("a")
+
+    assertThat(cache.get("a")).isNull()
+    assertThat(Files.exists(root.resolve("a"))).isFalse()
+  }
+
+  private fun write(
+    dir: Path,
+    size: Int,
+  ): Boolean {
+    Files.write(dir.resolve("content"), ByteArray(size))
+    return true
+  }
+}
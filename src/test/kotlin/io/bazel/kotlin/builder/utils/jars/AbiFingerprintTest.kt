@@ -0,0 +1,172 @@
+package io.bazel.kotlin.builder.utils.jars
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.testing.Temporary
+import org.junit.Test
+import java.nio.file.Files
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+import javax.tools.ToolProvider
+
+class AbiFingerprintTest {
+  private val base = fingerprint(
+    """
+      package a;
+
+      @Deprecated
+      public class A {
+        public static final int CONSTANT = 1;
+
+        public int compute(int value) {
+          return value + 1;
+        }
+      }
+    """,
+  )
+
+  @Test fun methodBodyChangeKeepsFingerprint() {
+    val changed = fingerprint(
+      """
+        package a;
+
+        @Deprecated
+        public class A {
+          public static final int CONSTANT = 1;
+
+          public int compute(int value) {
+            return value * 2 + CONSTANT;
+          }
+        }
+      """,
+    )
+
+    assertThat(changed).isEqualTo(base)
+  }
+
+  @Test fun privateMembersAreIgnored() {
+    val changed = fingerprint(
+      """
+        package a;
+
+        @Deprecated
+        public class A {
+          public static final int CONSTANT = 1;
+          private String cache;
+
+          public int compute(int value) {
+            return helper(value);
+          }
+
+          private int helper(int value) {
+            return value + 1;
+          }
+        }
+      """,
+    )
+
+    assertThat(changed).isEqualTo(base)
+  }
+
+  @Test fun signatureChangeAltersFingerprint() {
+    val changed = fingerprint(
+      """
+        package a;
+
+        @Deprecated
+        public class A {
+          public static final int CONSTANT = 1;
+
+          public long compute(int value) {
+            return value + 1;
+          }
+        }
+      """,
+    )
+
+    assertThat(changed).isNotEqualTo(base)
+  }
+
+  @Test fun constantChangeAltersFingerprint() {
+    val changed = fingerprint(
+      """
+        package a;
+
+        @Deprecated
+        public class A {
+          public static final int CONSTANT = 2;
+
+          public int compute(int value) {
+            return value + 1;
+          }
+        }
+      """,
+    )
+
+    assertThat(changed).isNotEqualTo(base)
+  }
+
+  @Test fun annotationChangeAltersFingerprint() {
+    val changed = fingerprint(
+      """
+        package a;
+
+        public class A {
+          public static final int CONSTANT = 1;
+
+          public int compute(int value) {
+            return value + 1;
+          }
+        }
+      """,
+    )
+
+    assertThat(changed).isNotEqualTo(base)
+  }
+
+  @Test fun visibilityChangeAltersFingerprint() {
+    val changed = fingerprint(
+      """
+        package a;
+
+        @Deprecated
+        public class A {
+          public static final int CONSTANT = 1;
+
+          private int compute(int value) {
+            return value + 1;
+          }
+        }
+      """,
+    )
+
+    assertThat(changed).isNotEqualTo(base)
+  }
+
+  /** Compiles the Java [source] of `a.A` into a jar and returns the hex fingerprint of the jar. */
+  private fun fingerprint(source: String): String {
+    val root = Temporary.directoryFor<AbiFingerprintTest> {
+      file("src/a/A.java", source.trimIndent())
+    }
+    val classes = Files.createDirectories(root.resolve("classes"))
+    val javac = ToolProvider.getSystemJavaCompiler()
+    val result = javac.run(
+      null,
+      null,
+      null,
+      "-d",
+      classes.toString(),
+      root.resolve("src/a/A.java").toString(),
+    )
+    assertThat(result).isEqualTo(0)
+
+    val jar = root.resolve("a.jar")
+    JarOutputStream(Files.newOutputStream(jar)).use { out ->
+      out.putNextEntry(JarEntry("a/A.class"))
+      Files.copy(classes.resolve("a/A.class"), out)
+      out.closeEntry()
+    }
+    return hex(AbiFingerprint.of(jar))
+  }
+
+  private fun hex(bytes: ByteArray): String = bytes.joinToString("") { "%02x".format(it) }
+}
@@ -3,6 +3,18 @@ package io.bazel.kotlin.builder.utils.jars
 import com.google.common.truth.Truth.assertThat
 import io.bazel.testing.Temporary
 import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.Calendar
+import java.util.GregorianCalendar
+import java.util.jar.Attributes
+import java.util.jar.JarEntry
+import java.util.jar.JarFile
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.CRC32
 import java.util.zip.ZipFile
 
 class JarCreatorTest {
@@ -22,4 +34,174 @@ class JarCreatorTest {
       "ibbity/bibbity/zibbity.zee"
     )
   }
+
+  @Test fun sameBytesAsJarOutputStream() {
+    val large = "large content ".repeat(10_000)
+    val root = Temporary.directoryFor<JarCreatorTest> {
+      file("a/A.class", "class")
+      file("a/empty.txt")
+      file("b/large.txt", large)
+    }
+
+    val got = Temporary.directoryFor<JarCreatorTest>().resolve("out.jar").apply {
+      JarCreator(this, targetLabel = "//a:b", injectingRuleKind = "kt_jvm_library").use {
+        it.addDirectory(root)
+      }
+    }
+
+    val manifest = Manifest().apply {
+      mainAttributes[Attributes.Name.MANIFEST_VERSION] = "1.0"
+      mainAttributes[Attributes.Name("Created-By")] = "io.bazel.rules.kotlin"
+      mainAttributes[JarOwner.TARGET_LABEL] = "//a:b"
+      mainAttributes[JarOwner.INJECTING_RULE_KIND] = "kt_jvm_library"
+    }
+    val expected = ByteArrayOutputStream()
+    JarOutputStream(expected).use { out ->
+      fun entry(name: String, content: ByteArray) {
+        val entry = JarEntry(name)
+        // 1980-02-01, two seconds later for classes
+        entry.time = GregorianCalendar(1980, Calendar.FEBRUARY, 1).timeInMillis +
+          if (name.endsWith(".class")) 2000 else 0
+        entry.method = JarEntry.STORED
+        entry.size = content.size.toLong()
+        entry.crc = CRC32().apply { update(content) }.value
+        out.putNextEntry(entry)
+        out.write(content)
+        out.closeEntry()
+      }
+      entry("a/", ByteArray(0))
+      entry("b/", ByteArray(0))
+      entry("a/A.class", "class".toByteArray())
+      entry("a/empty.txt", ByteArray(0))
+      entry("b/large.txt", large.toByteArray())
+      val manifestContent = ByteArrayOutputStream().also { manifest.write(it) }.toByteArray()
+      entry(JarFile.MANIFEST_NAME, manifestContent)
+    }
+
+    assertThat(Files.readAllBytes(got)).isEqualTo(expected.toByteArray())
+  }
+
+  @Test fun parallelReadKeepsSequentialOrder() {
+    val root = Temporary.directoryFor<JarCreatorTest> {
+      for (dir in 0 until 8) {
+        for (index in 0 until 25) {
+          file("d$dir/s${index % 3}/F$index.class", "x".repeat(dir * 1000 + index))
+        }
+      }
+      file("d3/large.bin", "large content ".repeat(10_000))
+      file("d5/s1/empty.txt")
+    }
+
+    // what a sequential walk adds: breadth first, each directory sorted by name
+    val expected = ArrayList<String>()
+    val dirs = ArrayDeque(listOf(root))
+    while (dirs.isNotEmpty()) {
+      val dir = dirs.removeFirst()
+      for (child in Files.list(dir).use { it.sorted().toList() }) {
+        val name = root.relativize(child).toString().replace(File.separatorChar, '/')
+        if (Files.isDirectory(child)) {
+          dirs.add(child)
+          expected.add("$name/")
+        } else {
+          expected.add(name)
+        }
+      }
+    }
+
+    for (compress in listOf(false, true)) {
+      val got = Temporary.directoryFor<JarCreatorTest>().resolve("out.jar").apply {
+        JarCreator(
+          this,
+          targetLabel = "//a:b",
+          injectingRuleKind = "kt_jvm_library",
+          compress = compress,
+        ).use { it.addDirectory(root) }
+      }
+
+      ZipFile(got.toFile()).use { zip ->
+        assertThat(zip.entries().asSequence().map { it.name }.toList())
+          .containsExactlyElementsIn(expected + JarFile.MANIFEST_NAME)
+          .inOrder()
+        for (name in expected.filterNot { it.endsWith("/") }) {
+          assertThat(zip.getInputStream(zip.getEntry(name)).use { it.readBytes() })
+            .isEqualTo(Files.readAllBytes(root.resolve(name)))
+        }
+      }
+    }
+  }
+
+  @Test fun foldJars() {
+    val tmp = Temporary.directoryFor<JarCreatorTest>()
+    val kotlinJar = tmp.resolve("kt.jar").apply {
+      JarCreator(this, targetLabel = "//a:b", injectingRuleKind = "kt_jvm_library").use {
+        it.addDirectory(
+          Temporary.directoryFor<JarCreatorTest> {
+            file("a/A.class", "kotlin")
+            file("META-INF/services/a.Service", "a.KotlinService")
+          },
+        )
+      }
+    }
+    val javaJar = tmp.resolve("java.jar").apply {
+      JarOutputStream(Files.newOutputStream(this)).use {
+        it.putNextEntry(JarEntry("a/A.class"))
+        it.write("java".toByteArray())
+        it.putNextEntry(JarEntry("b/c/B.class"))
+        it.write("b".repeat(1000).toByteArray())
+        it.putNextEntry(JarEntry("META-INF/services/a.Service"))
+        it.write("a.JavaService\n".toByteArray())
+        it.closeEntry()
+      }
+    }
+
+    val got = tmp.resolve("out.jar").apply {
+      JarCreator(this, targetLabel = "//a:b", injectingRuleKind = "kt_jvm_library").use {
+        it.addJar(kotlinJar)
+        it.addJar(javaJar)
+      }
+    }
+
+    ZipFile(got.toFile()).use { zip ->
+      assertThat(zip.entries().asSequence().map { it.name }.toList()).containsExactly(
+        "META-INF/", "a/", "META-INF/services/", "a/A.class", "b/", "b/c/", "b/c/B.class",
+        "META-INF/services/a.Service", "META-INF/MANIFEST.MF",
+      ).inOrder()
+      fun content(name: String) =
+        zip.getInputStream(zip.getEntry(name)).use { String(it.readBytes()) }
+      assertThat(content("a/A.class")).isEqualTo("kotlin")
+      assertThat(content("b/c/B.class")).isEqualTo("b".repeat(1000))
+      assertThat(content("META-INF/services/a.Service"))
+        .isEqualTo("a.KotlinService\na.JavaService\n")
+    }
+  }
+
+  @Test fun reusePreviousJar() {
+    val tmp = Temporary.directoryFor<JarCreatorTest>()
+    val root = Temporary.directoryFor<JarCreatorTest> {
+      file("a/A.class", "a".repeat(1000))
+      file("a/B.class", "b".repeat(1000))
+    }
+
+    fun create(name: String, previous: Path? = null) =
+      tmp.resolve(name).apply {
+        JarCreator(
+          this,
+          targetLabel = "//a:b",
+          injectingRuleKind = "kt_jvm_library",
+          compress = true,
+          previous = previous,
+        ).use { it.addDirectory(root) }
+      }
+
+    val first = create("first.jar")
+    Files.write(root.resolve("a/B.class"), "c".repeat(1000).toByteArray())
+    val fresh = create("fresh.jar")
+    val reused = create("reused.jar", previous = first)
+
+    assertThat(Files.readAllBytes(reused)).isEqualTo(Files.readAllBytes(fresh))
+    ZipFile(reused.toFile()).use { zip ->
+      assertThat(zip.getInputStream(zip.getEntry("a/B.class")).use { String(it.readBytes()) })
+        .isEqualTo("c".repeat(1000))
+    }
+  }
 }
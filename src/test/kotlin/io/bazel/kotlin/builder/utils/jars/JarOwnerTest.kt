@@ -0,0 +1,55 @@
+package io.bazel.kotlin.builder.utils.jars
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.testing.Temporary
+import org.junit.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+class JarOwnerTest {
+  private val root = Temporary.directoryFor<JarOwnerTest> { file("a/A.class", "a") }
+  private val jars = Temporary.directoryFor<JarOwnerTest>()
+
+  @Test fun readOwnerFromManifest() {
+    val jar = create("owned.jar", "//a:b")
+
+    assertThat(JarOwner.readJarOwnerFromManifest(jar))
+      .isEqualTo(JarOwner(jar, "//a:b", "kt_jvm_library"))
+  }
+
+  @Test fun unchangedJarIsServedFromCache() {
+    val jar = create("cached.jar", "//a:b")
+    JarOwner.readJarOwnerFromManifest(jar)
+
+    // same file, size and modification time, but no manifest left to read
+    val modified = Files.getLastModifiedTime(jar)
+    Files.write(jar, ByteArray(Files.size(jar).toInt()))
+    Files.setLastModifiedTime(jar, modified)
+
+    assertThat(JarOwner.readJarOwnerFromManifest(jar).label).isEqualTo("//a:b")
+  }
+
+  @Test fun rebuiltJarIsReadAgain() {
+    val jar = create("rebuilt.jar", "//a:b")
+    JarOwner.readJarOwnerFromManifest(jar)
+
+    // a label of the same length gives a jar of the same size, only the modification time differs
+    val rebuilt = create("other.jar", "//a:c")
+    assertThat(Files.size(rebuilt)).isEqualTo(Files.size(jar))
+    val modified = Files.getLastModifiedTime(jar)
+    Files.write(jar, Files.readAllBytes(rebuilt))
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(modified.toMillis() + 1000))
+
+    assertThat(JarOwner.readJarOwnerFromManifest(jar).label).isEqualTo("//a:c")
+  }
+
+  private fun create(
+    name: String,
+    label: String,
+  ): Path =
+    jars.resolve(name).also { jar ->
+      JarCreator(jar, targetLabel = label, injectingRuleKind = "kt_jvm_library")
+        .use { it.addDirectory(root) }
+    }
+}
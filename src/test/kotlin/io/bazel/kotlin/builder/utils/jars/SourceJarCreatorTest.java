@@ -18,8 +18,17 @@ package io.bazel.kotlin.builder.utils.jars;
 import com.google.common.truth.StandardSubjectBuilder;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static com.google.common.truth.Truth.assertWithMessage;
 
@@ -61,4 +70,61 @@ public class SourceJarCreatorTest {
                     subj.that(pkg).isEqualTo("iO.some0.package");
                 });
     }
+
+    @Test
+    public void testPackageScannerSkipsHeader() {
+        List<String> headers =
+                Arrays.asList(
+                        "/*\n * Copyright\n */\n\npackage iO.some1.package\n\nimport a.b\n",
+                        "// license\n// more\npackage iO.some1.package;\n",
+                        "\uFEFF#!/usr/bin/env kotlin\npackage iO.some1.package\n",
+                        "@file:JvmName(\"Name\")\n@file:Suppress(\"a)\", \"b\")\npackage iO.some1.package\n",
+                        "@file:[JvmName(\"Name\") JvmMultifileClass]\npackage iO.some1.package\n",
+                        "@ParametersAreNonnullByDefault\n@Deprecated(since = \"1\")\npackage iO.some1.package;\n",
+                        "/* outer /* nested */ still a comment */\npackage `iO`.some1.`package`\n");
+        headers.forEach(
+                (header) -> {
+                    String pkg = PackageScanner.scan(header.getBytes(StandardCharsets.UTF_8), true);
+                    assertWithMessage("header: " + header).that(pkg).isEqualTo(expectedPackage);
+                });
+        assertWithMessage("no package")
+                .that(PackageScanner.scan("import a.b\nclass C\n".getBytes(StandardCharsets.UTF_8)))
+                .isNull();
+    }
+
+    @Test
+    public void testPacksSourcesAndSourceJars() throws IOException {
+        Path dir = Files.createTempDirectory("sources");
+        Path kotlin = write(dir.resolve("A.kt"), "@file:JvmName(\"A\")\npackage a.b\n");
+        Path java = write(dir.resolve("B.java"), "package a;\nclass B {}\n");
+        Path script = write(dir.resolve("C.kt"), "fun main() {}\n");
+        Path srcjar = dir.resolve("generated.srcjar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(srcjar))) {
+            out.putNextEntry(new ZipEntry("c/D.java"));
+            out.write("package c;".getBytes(StandardCharsets.UTF_8));
+            out.putNextEntry(new ZipEntry("c/README"));
+        }
+
+        Path output = dir.resolve("out.srcjar");
+        SourceJarCreator creator = new SourceJarCreator(output);
+        creator.addSources(Stream.of(kotlin, java, script, srcjar));
+        creator.execute();
+
+        List<String> names = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(output.toFile())) {
+            zip.stream().forEach((entry) -> names.add(entry.getName()));
+            byte[] content = zip.getInputStream(zip.getEntry("c/D.java")).readAllBytes();
+            assertWithMessage("content")
+                    .that(new String(content, StandardCharsets.UTF_8))
+                    .isEqualTo("package c;");
+        }
+        assertWithMessage("entries")
+                .that(names)
+                .containsExactly("C.kt", "a/", "a/B.java", "a/b/", "a/b/A.kt", "c/", "c/D.java")
+                .inOrder();
+    }
+
+    private static Path write(Path path, String content) throws IOException {
+        return Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
 }
@@ -0,0 +1,95 @@
+package io.bazel.kotlin.builder.utils.jars
+
+import com.google.common.truth.Truth.assertThat
+import io.bazel.testing.Temporary
+import org.junit.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+
+class SourceJarExtractorTest {
+  private val root = Temporary.directoryFor<SourceJarExtractorTest>()
+  private val destDir = root.resolve("src-jars")
+
+  @Test fun onlyChangedEntriesAreExtracted() {
+    jar("a.srcjar", "a/A.kt" to "class A", "a/B.kt" to "class B", "a/D.kt" to "class D")
+    extract("a.srcjar")
+    val unchanged = destDir.resolve("a/A.kt")
+    Files.setLastModifiedTime(unchanged, OLD)
+
+    jar("a.srcjar", "a/A.kt" to "class A", "a/B.kt" to "class B2", "a/C.kt" to "class C")
+    val sources = extract("a.srcjar")
+
+    assertThat(Files.getLastModifiedTime(unchanged)).isEqualTo(OLD)
+    assertThat(read("a/B.kt")).isEqualTo("class B2")
+    assertThat(read("a/C.kt")).isEqualTo("class C")
+    assertThat(Files.exists(destDir.resolve("a/D.kt"))).isFalse()
+    assertThat(sources).containsExactly(
+      destDir.resolve("a/A.kt").toString(),
+      destDir.resolve("a/B.kt").toString(),
+      destDir.resolve("a/C.kt").toString(),
+    )
+  }
+
+  @Test fun modifiedFileIsExtractedAgain() {
+    jar("a.srcjar", "a/A.kt" to "class A")
+    extract("a.srcjar")
+
+    Files.write(destDir.resolve("a/A.kt"), "class Changed".toByteArray())
+    extract("a.srcjar")
+
+    assertThat(read("a/A.kt")).isEqualTo("class A")
+  }
+
+  @Test fun missingIndexExtractsEverything() {
+    jar("a.srcjar", "a/A.kt" to "class A")
+    extract("a.srcjar")
+    val file = destDir.resolve("a/A.kt")
+    Files.setLastModifiedTime(file, OLD)
+
+    // as left behind by an interrupted extraction
+    Files.delete(destDir.resolve(".extracted"))
+    extract("a.srcjar")
+
+    assertThat(Files.getLastModifiedTime(file)).isNotEqualTo(OLD)
+    assertThat(read("a/A.kt")).isEqualTo("class A")
+  }
+
+  @Test fun laterJarWins() {
+    jar("a.srcjar", "a/A.kt" to "class A")
+    jar("b.srcjar", "a/A.kt" to "class A2")
+
+    extract("a.srcjar", "b.srcjar")
+
+    assertThat(read("a/A.kt")).isEqualTo("class A2")
+  }
+
+  private fun extract(vararg jars: String): List<String> =
+    SourceJarExtractor(destDir).run {
+      jars.forEach { jarFiles.add(root.resolve(it)) }
+      execute()
+      sourcesList
+    }
+
+  private fun read(name: String): String = String(Files.readAllBytes(destDir.resolve(name)))
+
+  private fun jar(
+    name: String,
+    vararg entries: Pair<String, String>,
+  ): Path =
+    root.resolve(name).also { path ->
+      JarOutputStream(Files.newOutputStream(path)).use { out ->
+        for ((entryName, content) in entries) {
+          out.putNextEntry(JarEntry(entryName))
+          out.write(content.toByteArray())
+          out.closeEntry()
+        }
+      }
+    }
+
+  private companion object {
+    val OLD: FileTime = FileTime.fromMillis(1000)
+  }
+}